@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dasein.persist.annotations.AutoJSON;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * How values of a class map to and from JSON, resolved once per class. The plan records whether the class is
+ * marked {@link AutoJSON}, its JSON hooks (<code>toJSON()</code>, <code>valueOf(JSONObject)</code> and
+ * <code>valueOf(String)</code>), its no-argument constructor and the {@link FieldPlan} of its fields. Plans for
+ * nested values are looked up by the runtime type of each value, so recursive and polymorphic graphs share
+ * the same cache.
+ */
+public final class AutoJSONPlan {
+    static private final ConcurrentHashMap<Class<?>,AutoJSONPlan> plans = new ConcurrentHashMap<Class<?>,AutoJSONPlan>();
+
+    /**
+     * Provides the plan for the specified class, building it on first use.
+     * @param cls the class
+     * @return the plan for the class
+     */
+    static public @Nonnull AutoJSONPlan getInstance(@Nonnull Class<?> cls) {
+        AutoJSONPlan plan = plans.get(cls);
+
+        if( plan == null ) {
+            AutoJSONPlan p = new AutoJSONPlan(cls);
+
+            plan = plans.putIfAbsent(cls, p);
+            if( plan == null ) {
+                plan = p;
+            }
+        }
+        return plan;
+    }
+
+    private final boolean        autoJSON;
+    private final Constructor<?> constructor;
+    private final Class<?>       type;
+    private final Method         toJSON;
+    private final Method         valueOfJSON;
+    private final Method         valueOfString;
+
+    private AutoJSONPlan(@Nonnull Class<?> cls) {
+        boolean auto = false;
+
+        for( Annotation a : cls.getDeclaredAnnotations() ) {
+            if( a instanceof AutoJSON ) {
+                auto = true;
+            }
+        }
+        type = cls;
+        autoJSON = auto;
+        toJSON = getMethod(cls, "toJSON");
+        valueOfJSON = getMethod(cls, "valueOf", JSONObject.class);
+        valueOfString = getMethod(cls, "valueOf", String.class);
+
+        Constructor<?> c = null;
+
+        if( auto ) {
+            try {
+                c = cls.getDeclaredConstructor();
+                c.setAccessible(true);
+            }
+            catch( Exception e ) {
+                c = null;
+            }
+        }
+        constructor = c;
+    }
+
+    static private @Nullable Method getMethod(@Nonnull Class<?> cls, @Nonnull String name, @Nonnull Class<?> ... params) {
+        try {
+            Method m = cls.getDeclaredMethod(name, params);
+
+            if( !Modifier.isPublic(m.getModifiers()) || !Modifier.isPublic(cls.getModifiers()) ) {
+                m.setAccessible(true);
+            }
+            return m;
+        }
+        catch( NoSuchMethodException e ) {
+            return null;
+        }
+        catch( SecurityException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the persistent fields serialized for an {@link AutoJSON} class, in serialization order
+     */
+    public @Nonnull List<FieldPlan.Accessor> getAccessors() {
+        return FieldPlan.getInstance(type).getAccessors();
+    }
+
+    /**
+     * @return the declared <code>toJSON()</code> method of the class, if any
+     */
+    public @Nullable Method getToJSON() {
+        return toJSON;
+    }
+
+    /**
+     * @return the declared <code>valueOf(JSONObject)</code> method of the class, if any
+     */
+    public @Nullable Method getValueOfJSON() {
+        return valueOfJSON;
+    }
+
+    /**
+     * @return the declared <code>valueOf(String)</code> method of the class, if any
+     */
+    public @Nullable Method getValueOfString() {
+        return valueOfString;
+    }
+
+    /**
+     * @return true if the class is marked {@link AutoJSON}
+     */
+    public boolean isAutoJSON() {
+        return autoJSON;
+    }
+
+    /**
+     * Creates an empty instance of an {@link AutoJSON} class.
+     * @return the new instance
+     * @throws Exception the class could not be instantiated
+     */
+    public @Nonnull Object newInstance() throws Exception {
+        if( constructor == null ) {
+            return type.newInstance();
+        }
+        return constructor.newInstance();
+    }
+}
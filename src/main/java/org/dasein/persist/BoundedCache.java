@@ -0,0 +1,603 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A size-bounded cache with frequency-aware admission in the style of W-TinyLFU. New entries land in a
+ * small LRU admission window. When the window overflows, its eldest entry competes with the eldest entry
+ * of the main LRU region and only the one that has been asked for more often (according to a compact
+ * count-min sketch of recent accesses) survives. One-hit wonders therefore cannot push hot lookups out
+ * of the cache, and the cache never holds more than its maximum number of entries.
+ * <p>
+ * Entries may also expire a fixed time after they were written and/or after they were last read. Expired
+ * entries are never returned and are reaped in the background by the shared {@link ExpiryWheel}.
+ * </p>
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BoundedCache<K,V> {
+    /**
+     * Notified when an entry leaves the cache because it expired or was evicted to make room. Explicit
+     * removals and clears are not reported. Listeners are called outside of any cache lock.
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    static public interface RemovalListener<K,V> {
+        public void removed(@Nonnull K key, @Nonnull V value, boolean expired);
+    }
+
+    /**
+     * Notified when an entry that expires after being written is read shortly before it expires, so that a fresh
+     * value can be loaded in the background and {@link BoundedCache#put(Object, Object) put} into the cache. The
+     * cache keeps returning the current value in the meantime and asks only once per entry.
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    static public interface Refresher<K,V> {
+        public void refresh(@Nonnull K key, @Nonnull V value);
+    }
+
+    /**
+     * Takes over entries that expired because they were written too long ago while still in use, so that they can
+     * be checked against the data store and {@link BoundedCache#put(Object, Object) put} back if still current.
+     * Entries handed to a revalidator are not reported to the removal listener.
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    static public interface Revalidator<K,V> {
+        public void revalidate(@Nonnull K key, @Nonnull V value);
+    }
+
+    private class Entry implements Runnable {
+        private final K             key;
+        private V                   value;
+        private final long          written;
+        private long                accessed;
+        private boolean             refreshing = false;
+        private ExpiryWheel.Timeout timeout    = null;
+
+        private Entry(K key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.written = now;
+            this.accessed = now;
+        }
+
+        private long getDeadline() {
+            long deadline = Long.MAX_VALUE;
+
+            if( expireAfterWrite > 0L ) {
+                deadline = written + expireAfterWrite;
+            }
+            if( expireAfterAccess > 0L ) {
+                deadline = Math.min(deadline, accessed + expireAfterAccess);
+            }
+            return deadline;
+        }
+
+        public void run() {
+            expire(this);
+        }
+    }
+
+    private final long                     expireAfterAccess;
+    private final long                     expireAfterWrite;
+    private final RemovalListener<K,V>     listener;
+    private final LinkedHashMap<K,Entry>   main;
+    private final ExpiryWheel              wheel;
+    private final LinkedHashMap<K,Entry>   window;
+
+    private int                   maxMain;
+    private int                   maxWindow;
+    private FrequencySketch       sketch;
+
+    private long                  refreshWindow = 0L;
+    private Refresher<K,V>        refresher     = null;
+    private Revalidator<K,V>      revalidator   = null;
+
+    private long evictions   = 0L;
+    private long expirations = 0L;
+
+    /**
+     * Constructs a cache that holds no more than the specified number of entries.
+     * @param maximumSize the maximum number of entries, a value less than 1 means the cache is unbounded
+     */
+    public BoundedCache(int maximumSize) {
+        this(maximumSize, 0L, 0L, null);
+    }
+
+    /**
+     * Constructs a cache that holds no more than the specified number of entries and expires them
+     * according to the specified policies.
+     * @param maximumSize the maximum number of entries, a value less than 1 means the cache is unbounded
+     * @param expireAfterWrite milliseconds after being written that an entry expires, 0 for never
+     * @param expireAfterAccess milliseconds after last being read that an entry expires, 0 for never
+     * @param listener an optional listener for expired and evicted entries
+     */
+    public BoundedCache(int maximumSize, long expireAfterWrite, long expireAfterAccess, @Nullable RemovalListener<K,V> listener) {
+        setLimits(maximumSize);
+        this.expireAfterWrite = Math.max(0L, expireAfterWrite);
+        this.expireAfterAccess = Math.max(0L, expireAfterAccess);
+        this.listener = listener;
+        main = new LinkedHashMap<K,Entry>(16, 0.75f, true);
+        window = new LinkedHashMap<K,Entry>(16, 0.75f, true);
+        // start the wheel now rather than on the first write, which would stall while holding the cache lock
+        wheel = (isExpiring() ? ExpiryWheel.getInstance() : null);
+    }
+
+    public synchronized void clear() {
+        for( Entry entry : main.values() ) {
+            unschedule(entry);
+        }
+        for( Entry entry : window.values() ) {
+            unschedule(entry);
+        }
+        main.clear();
+        window.clear();
+    }
+
+    private void schedule(@Nonnull Entry entry) {
+        if( wheel != null ) {
+            entry.timeout = wheel.schedule(entry, entry.getDeadline());
+        }
+    }
+
+    private void unschedule(@Nullable Entry entry) {
+        if( entry != null && entry.timeout != null ) {
+            entry.timeout.cancel();
+            entry.timeout = null;
+        }
+    }
+
+    private void expire(@Nonnull Entry entry) {
+        Revalidator<K,V> r = null;
+
+        synchronized( this ) {
+            Entry current = window.get(entry.key);
+
+            if( current == null ) {
+                current = main.get(entry.key);
+            }
+            if( current != entry ) {
+                return;
+            }
+            long deadline = entry.getDeadline();
+
+            if( deadline > System.currentTimeMillis() ) {
+                schedule(entry);
+                return;
+            }
+            entry.timeout = null;
+            if( window.remove(entry.key) == null ) {
+                main.remove(entry.key);
+            }
+            expirations++;
+            if( revalidator != null && (expireAfterAccess < 1L || entry.accessed + expireAfterAccess > System.currentTimeMillis()) ) {
+                r = revalidator;
+            }
+        }
+        if( r != null ) {
+            r.revalidate(entry.key, entry.value);
+        }
+        else {
+            fireRemoval(entry, true);
+        }
+    }
+
+    private boolean isBounded() {
+        return (maxMain != Integer.MAX_VALUE);
+    }
+
+    private void setLimits(int maximumSize) {
+        if( maximumSize < 1 ) {
+            maxWindow = 0;
+            maxMain = Integer.MAX_VALUE;
+        }
+        else {
+            maxWindow = (maximumSize < 100 ? (maximumSize > 1 ? 1 : 0) : maximumSize/100);
+            maxMain = maximumSize - maxWindow;
+            if( sketch == null ) {
+                sketch = new FrequencySketch(maximumSize);
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum number of entries this cache will hold, evicting the least valuable entries right away
+     * if the cache is now over capacity. Evicted entries are reported to the removal listener.
+     * @param maximumSize the new maximum number of entries, a value less than 1 makes the cache unbounded
+     */
+    public void setMaximumSize(int maximumSize) {
+        ArrayList<Entry> dropped = new ArrayList<Entry>();
+
+        synchronized( this ) {
+            setLimits(maximumSize);
+            while( window.size() > maxWindow ) {
+                Iterator<Map.Entry<K,Entry>> it = window.entrySet().iterator();
+                Entry eldest = it.next().getValue();
+
+                it.remove();
+                main.put(eldest.key, eldest);
+            }
+            while( main.size() > maxMain ) {
+                Iterator<Map.Entry<K,Entry>> it = main.entrySet().iterator();
+                Entry victim = it.next().getValue();
+
+                unschedule(victim);
+                dropped.add(victim);
+                it.remove();
+                evictions++;
+            }
+        }
+        for( Entry entry : dropped ) {
+            fireRemoval(entry, false);
+        }
+    }
+
+    public @Nullable V get(@Nonnull K key) {
+        Entry entry;
+        Refresher<K,V> r = null;
+
+        synchronized( this ) {
+            if( sketch != null ) {
+                sketch.increment(key);
+            }
+            entry = window.get(key);
+            if( entry == null ) {
+                entry = main.get(key);
+            }
+            if( entry == null ) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+
+            if( entry.getDeadline() <= now ) {
+                if( window.remove(key) == null ) {
+                    main.remove(key);
+                }
+                unschedule(entry);
+                expirations++;
+            }
+            else {
+                entry.accessed = now;
+                if( refresher != null && !entry.refreshing && now >= entry.written + expireAfterWrite - refreshWindow ) {
+                    entry.refreshing = true;
+                    r = refresher;
+                }
+                else {
+                    return entry.value;
+                }
+            }
+        }
+        if( r != null ) {
+            r.refresh(entry.key, entry.value);
+            return entry.value;
+        }
+        fireRemoval(entry, true);
+        return null;
+    }
+
+    /**
+     * @return the number of entries dropped from this cache because it was full
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries dropped from this cache because they expired
+     */
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    /**
+     * @return the maximum number of entries this cache will hold
+     */
+    public int getMaximumSize() {
+        return (isBounded() ? maxMain + maxWindow : -1);
+    }
+
+    /**
+     * Asks the specified refresher to reload entries that are read within the specified number of milliseconds
+     * before they expire. Only meaningful for caches whose entries expire after being written.
+     * @param window the number of milliseconds before expiry in which reads trigger a refresh
+     * @param refresher the refresher to ask
+     */
+    public synchronized void setRefresher(long window, @Nullable Refresher<K,V> refresher) {
+        this.refreshWindow = Math.max(0L, window);
+        this.refresher = (expireAfterWrite > 0L && window > 0L ? refresher : null);
+    }
+
+    /**
+     * Hands entries that expire after being written, but not from going unused, to the specified revalidator
+     * instead of the removal listener. Only meaningful for caches whose entries expire after being written.
+     * @param revalidator the revalidator
+     */
+    public synchronized void setRevalidator(@Nullable Revalidator<K,V> revalidator) {
+        this.revalidator = (expireAfterWrite > 0L ? revalidator : null);
+    }
+
+    private boolean isExpiring() {
+        return (expireAfterWrite > 0L || expireAfterAccess > 0L);
+    }
+
+    private void fireRemoval(@Nonnull Entry entry, boolean expired) {
+        if( listener != null ) {
+            listener.removed(entry.key, entry.value, expired);
+        }
+    }
+
+    public void put(@Nonnull K key, @Nonnull V value) {
+        put(key, value, false);
+    }
+
+    /**
+     * Adds an entry unless the cache already holds an unexpired entry for the key.
+     * @param key the key
+     * @param value the value
+     * @return true if the entry was added
+     */
+    public boolean putIfAbsent(@Nonnull K key, @Nonnull V value) {
+        return put(key, value, true);
+    }
+
+    private boolean put(@Nonnull K key, @Nonnull V value, boolean ifAbsent) {
+        Entry entry = new Entry(key, value, System.currentTimeMillis());
+        Entry dropped = null;
+
+        synchronized( this ) {
+            if( ifAbsent ) {
+                Entry current = window.get(key);
+
+                if( current == null ) {
+                    current = main.get(key);
+                }
+                if( current != null && current.getDeadline() > entry.written ) {
+                    return false;
+                }
+            }
+            if( window.containsKey(key) ) {
+                unschedule(window.put(key, entry));
+            }
+            else if( main.containsKey(key) ) {
+                unschedule(main.put(key, entry));
+            }
+            else if( !isBounded() ) {
+                main.put(key, entry);
+            }
+            else {
+                if( sketch.frequency(key) < 1 ) {
+                    sketch.increment(key);
+                }
+                if( maxWindow < 1 ) {
+                    dropped = admit(entry);
+                }
+                else {
+                    window.put(key, entry);
+                    if( window.size() > maxWindow ) {
+                        Iterator<Map.Entry<K,Entry>> it = window.entrySet().iterator();
+                        Entry eldest = it.next().getValue();
+
+                        it.remove();
+                        dropped = admit(eldest);
+                    }
+                }
+            }
+            if( dropped != entry ) {
+                schedule(entry);
+            }
+            unschedule(dropped);
+        }
+        if( dropped != null ) {
+            fireRemoval(dropped, false);
+        }
+        return true;
+    }
+
+    private @Nullable Entry admit(@Nonnull Entry candidate) {
+        if( main.size() < maxMain ) {
+            main.put(candidate.key, candidate);
+            return null;
+        }
+        Iterator<Map.Entry<K,Entry>> it = main.entrySet().iterator();
+        Entry victim = it.next().getValue();
+
+        evictions++;
+        if( sketch.frequency(candidate.key) > sketch.frequency(victim.key) ) {
+            it.remove();
+            main.put(candidate.key, candidate);
+            return victim;
+        }
+        return candidate;
+    }
+
+    public synchronized @Nullable V remove(@Nonnull K key) {
+        Entry entry = window.remove(key);
+
+        if( entry == null ) {
+            entry = main.remove(key);
+        }
+        unschedule(entry);
+        return (entry == null ? null : entry.value);
+    }
+
+    /**
+     * Replaces the value of an unexpired entry in place. Unlike {@link #put(Object, Object)}, the entry keeps the
+     * time it was written, so it still expires when the value it replaces would have.
+     * @param key the key of the entry
+     * @param value the new value
+     * @return the previous value or <code>null</code> if there was no unexpired entry and nothing was stored
+     */
+    public synchronized @Nullable V replace(@Nonnull K key, @Nonnull V value) {
+        Entry entry = window.get(key);
+
+        if( entry == null ) {
+            entry = main.get(key);
+        }
+        if( entry == null || entry.getDeadline() <= System.currentTimeMillis() ) {
+            return null;
+        }
+        V previous = entry.value;
+
+        entry.value = value;
+        return previous;
+    }
+
+    /**
+     * Removes the entry stored under the specified key only if it holds the specified value.
+     * @param key the key of the entry
+     * @param value the value the entry must hold
+     * @return true if the entry was removed
+     */
+    public synchronized boolean remove(@Nonnull K key, @Nonnull V value) {
+        Entry entry = window.get(key);
+
+        if( entry == null ) {
+            entry = main.get(key);
+        }
+        if( entry == null || entry.value != value ) {
+            return false;
+        }
+        if( window.remove(key) == null ) {
+            main.remove(key);
+        }
+        unschedule(entry);
+        return true;
+    }
+
+    public synchronized int size() {
+        return main.size() + window.size();
+    }
+
+    /**
+     * Provides the values currently in the cache without counting as accesses. The main region comes first,
+     * ordered from least to most recently used, followed by the admission window.
+     * @return a copy of the unexpired values in the cache
+     */
+    public synchronized @Nonnull List<V> values() {
+        ArrayList<V> values = new ArrayList<V>(main.size() + window.size());
+        long now = System.currentTimeMillis();
+
+        for( Entry entry : main.values() ) {
+            if( entry.getDeadline() > now ) {
+                values.add(entry.value);
+            }
+        }
+        for( Entry entry : window.values() ) {
+            if( entry.getDeadline() > now ) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    public synchronized String toString() {
+        return "[" + size() + "/" + (isBounded() ? String.valueOf(getMaximumSize()) : "unbounded") + "]";
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters that estimates how often a key has been requested recently.
+     * All counters are halved once the sample size is reached so that the estimate tracks recent history.
+     */
+    static private class FrequencySketch {
+        private final long[] table;
+        private final int    mask;
+        private final int    sampleSize;
+        private       int    additions = 0;
+
+        FrequencySketch(int maximumSize) {
+            int len = 1;
+
+            while( len < maximumSize && len < (1 << 26) ) {
+                len <<= 1;
+            }
+            table = new long[len];
+            mask = len - 1;
+            sampleSize = (maximumSize > Integer.MAX_VALUE/10 ? Integer.MAX_VALUE : maximumSize * 10);
+        }
+
+        int frequency(@Nonnull Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+
+            for( int i=0; i<4; i++ ) {
+                int idx = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+                int count = (int)((table[idx] >>> offset) & 0xfL);
+
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(@Nonnull Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+
+            for( int i=0; i<4; i++ ) {
+                int idx = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+
+                if( ((table[idx] >>> offset) & 0xfL) != 0xfL ) {
+                    table[idx] += (1L << offset);
+                    added = true;
+                }
+            }
+            if( added && ++additions >= sampleSize ) {
+                reset();
+            }
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + (row + 1) * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+
+            return (int)(h ^ (h >>> 32)) & mask;
+        }
+
+        private int offsetOf(int hash, int row) {
+            // each long holds 16 counters, each row gets its own quarter of them
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private void reset() {
+            for( int i=0; i<table.length; i++ ) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions = additions/2;
+        }
+
+        private int spread(int h) {
+            h ^= (h >>> 17);
+            h *= 0xed5ad4bb;
+            h ^= (h >>> 11);
+            h *= 0xac4c1b51;
+            return h ^ (h >>> 15);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CachedItem;
+import org.dasein.util.DaseinUtilTasks;
+
+/**
+ * Saves the most used objects of selected caches to local files when the JVM shuts down and loads them back
+ * when the caches are next created, so that a restarted node does not begin with cold caches. A cache is
+ * selected by setting <code>dsn.cache.snapshot.maxEntries</code> (optionally per class, as with all cache
+ * settings) to the number of objects to keep and <code>dsn.cache.snapshot.dir</code> to the directory for the
+ * files. Snapshots hold full object state, so there is no default directory and the directory and files are
+ * created readable by their owner only.
+ * <p>
+ * Each file holds one object per line in the JSON state format used by the data stores, including its
+ * <code>SCHEMA_VERSION</code>, so snapshots taken before a schema change are upgraded through the configured
+ * {@link SchemaMapper}s. Snapshots are restored in the background, without replacing objects already loaded by
+ * then. Restored objects may be out of date and are therefore reloaded from the data store in the background, one
+ * every <code>dsn.cache.snapshot.revalidateDelay</code> milliseconds (default 10).
+ * </p>
+ */
+public class CacheSnapshot {
+    static private final Logger logger = Logger.getLogger(CacheSnapshot.class);
+
+    static private final Charset UTF8 = Charset.forName("utf-8");
+
+    static private final HashMap<String,PersistentCache<? extends CachedItem>> caches = new HashMap<String,PersistentCache<? extends CachedItem>>();
+
+    static private boolean hooked = false;
+
+    /**
+     * Restores the snapshot of the specified cache, if any, in the background and arranges for a new snapshot to be
+     * written when the JVM shuts down. Does nothing unless snapshots are enabled and a directory is configured for
+     * the cache.
+     * @param cache the newly created cache
+     */
+    static public <T extends CachedItem> void register(@Nonnull final PersistentCache<T> cache) {
+        if( !cache.isCacheEnabled() || cache.getCacheProperty("snapshot.maxEntries", 0) < 1 ) {
+            return;
+        }
+        final File file = getFile(cache);
+
+        if( file == null ) {
+            logger.warn("Snapshots of " + cache.getEntityClassName() + " are disabled because dsn.cache.snapshot.dir is not set");
+            return;
+        }
+        synchronized( caches ) {
+            caches.put(cache.getEntityClassName(), cache);
+            if( !hooked ) {
+                hooked = true;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        saveAll();
+                    }
+                });
+            }
+        }
+        if( file.exists() ) {
+            DaseinUtilTasks.submit(new Runnable() {
+                public void run() {
+                    restore(cache, file);
+                }
+            });
+        }
+    }
+
+    static private @Nullable File getFile(@Nonnull PersistentCache<? extends CachedItem> cache) {
+        String dir = cache.getCacheProperty("snapshot.dir");
+
+        if( dir == null || dir.length() < 1 ) {
+            return null;
+        }
+        return new File(dir, cache.getEntityClassName() + ".snapshot");
+    }
+
+    /**
+     * Restricts a snapshot file or directory to its owner.
+     * @param file the file or directory
+     * @param directory true if the file is a directory
+     */
+    static private void restrict(@Nonnull File file, boolean directory) {
+        boolean ok = file.setReadable(false, false) && file.setReadable(true, true);
+
+        ok = file.setWritable(false, false) && file.setWritable(true, true) && ok;
+        if( directory ) {
+            ok = file.setExecutable(false, false) && file.setExecutable(true, true) && ok;
+        }
+        if( !ok ) {
+            logger.warn("Unable to restrict access to " + file + " to its owner");
+        }
+    }
+
+    static private <T extends CachedItem> void restore(@Nonnull final PersistentCache<T> cache, @Nonnull File file) {
+        final List<T> restored = new ArrayList<T>();
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+
+            try {
+                String line;
+
+                while( (line = in.readLine()) != null ) {
+                    if( line.length() < 1 ) {
+                        continue;
+                    }
+                    try {
+                        T item = cache.toTargetFromJSON(line);
+                        Object key = cache.getValue(item, cache.getPrimaryKeyField());
+
+                        synchronized( cache.getCache() ) {
+                            // the cache is already in use, so anything loaded in the meantime is fresher
+                            if( key == null || cache.getCache().find(cache.getPrimaryKeyField(), key) != null ) {
+                                continue;
+                            }
+                            cache.getCache().cache(item);
+                        }
+                        cache.track(item);
+                        restored.add(item);
+                    }
+                    catch( Exception e ) {
+                        logger.warn("Skipping unreadable snapshot entry for " + cache.getEntityClassName() + ": " + e.getMessage());
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read snapshot " + file + ": " + e.getMessage());
+            return;
+        }
+        logger.info("Restored " + restored.size() + " objects into " + cache.getEntityClassName() + " from " + file);
+
+        long delay = cache.getCacheProperty("snapshot.revalidateDelay", 10L);
+
+        for( T item : restored ) {
+            try {
+                cache.revalidate(item);
+                if( delay > 0L ) {
+                    Thread.sleep(delay);
+                }
+            }
+            catch( InterruptedException e ) {
+                return;
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to revalidate restored " + item + ": " + t.getMessage());
+            }
+        }
+    }
+
+    static private void saveAll() {
+        ArrayList<PersistentCache<? extends CachedItem>> list;
+
+        synchronized( caches ) {
+            list = new ArrayList<PersistentCache<? extends CachedItem>>(caches.values());
+        }
+        for( PersistentCache<? extends CachedItem> cache : list ) {
+            try {
+                save(cache);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to save snapshot of " + cache.getEntityClassName() + ": " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot of the specified cache, replacing any earlier snapshot.
+     * @param cache the cache to save
+     * @throws IOException the snapshot could not be written
+     */
+    static public <T extends CachedItem> void save(@Nonnull PersistentCache<T> cache) throws IOException {
+        File file = getFile(cache);
+
+        if( file == null ) {
+            throw new IOException("No snapshot directory configured for " + cache.getEntityClassName());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        int count = 0;
+
+        if( !file.getParentFile().exists() ) {
+            if( !file.getParentFile().mkdirs() ) {
+                throw new IOException("Unable to create " + file.getParent());
+            }
+            restrict(file.getParentFile(), true);
+        }
+        if( !tmp.exists() && !tmp.createNewFile() ) {
+            throw new IOException("Unable to create " + tmp);
+        }
+        restrict(tmp, false);
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+
+        try {
+            for( T item : cache.getTrackedItems() ) {
+                if( !item.isValidForCache() ) {
+                    continue;
+                }
+                try {
+                    Memento<T> memento = new Memento<T>(item);
+
+                    memento.save(new HashMap<String,Object>());
+                    out.write(cache.toDataStoreJSONFromCurrentState(memento.getState()));
+                    out.write('\n');
+                    count++;
+                }
+                catch( PersistenceException e ) {
+                    logger.warn("Unable to save " + item + " to snapshot: " + e.getMessage());
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if( file.exists() && !file.delete() ) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if( !tmp.renameTo(file) ) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+        logger.info("Saved " + count + " objects from " + cache.getEntityClassName() + " to " + file);
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hit, miss and load statistics for a single {@link PersistentCache}, exposed over JMX as
+ * <code>org.dasein.persist:type=PersistentCache,name=CLASS</code>.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+    static private final Logger logger = Logger.getLogger(CacheStatistics.class);
+
+    private final PersistentCache<?>                  cache;
+    private final LinkedHashMap<String,BoundedCache<?,?>> tiers = new LinkedHashMap<String,BoundedCache<?,?>>();
+
+    private final AtomicLong          negativeHits      = new AtomicLong(0L);
+    private final AtomicLong          offHeapHits       = new AtomicLong(0L);
+    private final AtomicLong          primaryHits       = new AtomicLong(0L);
+    private final AtomicLong          primaryLoads      = new AtomicLong(0L);
+    private final AtomicLong          primaryRequests   = new AtomicLong(0L);
+    private final AtomicLong          secondaryHits     = new AtomicLong(0L);
+    private final AtomicLong          secondaryLoads    = new AtomicLong(0L);
+    private final AtomicLong          secondaryMisses   = new AtomicLong(0L);
+    private volatile LatencyHistogram primaryLatency    = new LatencyHistogram();
+    private volatile LatencyHistogram secondaryLatency  = new LatencyHistogram();
+
+    public CacheStatistics(@Nonnull PersistentCache<?> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server. Failures are logged and otherwise ignored.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.dasein.persist:type=PersistentCache,name=" + ObjectName.quote(cache.getEntityClassName()));
+
+            if( !server.isRegistered(name) ) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register cache statistics for " + cache.getEntityClassName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a bounded cache to the tiers whose sizes, evictions and expirations are reported.
+     * @param name a name for the tier
+     * @param tier the cache
+     */
+    public void addTier(@Nonnull String name, @Nonnull BoundedCache<?,?> tier) {
+        synchronized( tiers ) {
+            tiers.put(name, tier);
+        }
+    }
+
+    /**
+     * @return the bounded caches whose sizes are reported, by name
+     */
+    public @Nonnull Map<String,BoundedCache<?,?>> getTierCaches() {
+        synchronized( tiers ) {
+            return new LinkedHashMap<String,BoundedCache<?,?>>(tiers);
+        }
+    }
+
+    /**
+     * @return the share of all primary and secondary lookups answered from the cache, between 0 and 1
+     */
+    public double getOverallHitRatio() {
+        long requests = primaryRequests.get() + secondaryHits.get() + secondaryMisses.get();
+
+        return (requests == 0L ? 0.0 : (primaryHits.get() + negativeHits.get() + offHeapHits.get() + secondaryHits.get())/(double)requests);
+    }
+
+    /**
+     * Records a request by primary key answered from the in-memory cache.
+     */
+    public void primaryHit() {
+        primaryHits.incrementAndGet();
+    }
+
+    /**
+     * Records a request by primary key answered by a recorded miss instead of querying the data store.
+     */
+    public void negativeHit() {
+        negativeHits.incrementAndGet();
+    }
+
+    /**
+     * Records a request by primary key answered by restoring the object from the off-heap tier.
+     */
+    public void offHeapHit() {
+        offHeapHits.incrementAndGet();
+    }
+
+    /**
+     * Records a request for an object by primary key, whether or not it is answered from the cache.
+     */
+    public void primaryRequest() {
+        primaryRequests.incrementAndGet();
+    }
+
+    /**
+     * Records a load of an object by primary key from the data store after a cache miss.
+     * @param nanos the time the load took in nanoseconds
+     */
+    public void primaryLoad(long nanos) {
+        primaryLoads.incrementAndGet();
+        primaryLatency.record(nanos);
+    }
+
+    public void secondaryHit() {
+        secondaryHits.incrementAndGet();
+    }
+
+    public void secondaryMiss() {
+        secondaryMisses.incrementAndGet();
+    }
+
+    /**
+     * Records a load of an object by secondary key from the data store after a cache miss.
+     * @param nanos the time the load took in nanoseconds
+     */
+    public void secondaryLoad(long nanos) {
+        secondaryLoads.incrementAndGet();
+        secondaryLatency.record(nanos);
+    }
+
+    public String getEntityClassName() {
+        return cache.getEntityClassName();
+    }
+
+    public String getCacheType() {
+        return cache.getClass().getName();
+    }
+
+    public long getPrimaryHits() {
+        return primaryHits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getOffHeapHits() {
+        return offHeapHits.get();
+    }
+
+    public long getPrimaryMisses() {
+        return primaryLoads.get();
+    }
+
+    public double getPrimaryHitRatio() {
+        long requests = primaryRequests.get();
+
+        return (requests == 0L ? 0.0 : primaryHits.get()/(double)requests);
+    }
+
+    public long getPrimaryLoads() {
+        return primaryLoads.get();
+    }
+
+    public double getPrimaryLoadLatencyMeanMillis() {
+        return primaryLatency.getMeanMillis();
+    }
+
+    public double getPrimaryLoadLatency95thPercentileMillis() {
+        return primaryLatency.getPercentileMillis(95.0);
+    }
+
+    public double getPrimaryLoadLatency99thPercentileMillis() {
+        return primaryLatency.getPercentileMillis(99.0);
+    }
+
+    public double getPrimaryLoadLatencyMaxMillis() {
+        return primaryLatency.getMaxMillis();
+    }
+
+    public long[] getPrimaryLoadLatencyHistogram() {
+        return primaryLatency.getBuckets();
+    }
+
+    public long getSecondaryHits() {
+        return secondaryHits.get();
+    }
+
+    public long getSecondaryMisses() {
+        return secondaryMisses.get();
+    }
+
+    public double getSecondaryHitRatio() {
+        long hits = secondaryHits.get();
+        long requests = hits + secondaryMisses.get();
+
+        return (requests == 0L ? 0.0 : hits/(double)requests);
+    }
+
+    public long getSecondaryLoads() {
+        return secondaryLoads.get();
+    }
+
+    public long getCoalescedLoads() {
+        return cache.getCoalescedLoadCount();
+    }
+
+    public double getSecondaryLoadLatencyMeanMillis() {
+        return secondaryLatency.getMeanMillis();
+    }
+
+    public double getSecondaryLoadLatency95thPercentileMillis() {
+        return secondaryLatency.getPercentileMillis(95.0);
+    }
+
+    public double getSecondaryLoadLatency99thPercentileMillis() {
+        return secondaryLatency.getPercentileMillis(99.0);
+    }
+
+    public double getSecondaryLoadLatencyMaxMillis() {
+        return secondaryLatency.getMaxMillis();
+    }
+
+    public long[] getSecondaryLoadLatencyHistogram() {
+        return secondaryLatency.getBuckets();
+    }
+
+    public long getEntryCount() {
+        long count = 0L;
+
+        synchronized( tiers ) {
+            for( BoundedCache<?,?> tier : tiers.values() ) {
+                count += tier.size();
+            }
+        }
+        return count;
+    }
+
+    public long getEvictionCount() {
+        long count = 0L;
+
+        synchronized( tiers ) {
+            for( BoundedCache<?,?> tier : tiers.values() ) {
+                count += tier.getEvictionCount();
+            }
+        }
+        return count;
+    }
+
+    public long getExpirationCount() {
+        long count = 0L;
+
+        synchronized( tiers ) {
+            for( BoundedCache<?,?> tier : tiers.values() ) {
+                count += tier.getExpirationCount();
+            }
+        }
+        return count;
+    }
+
+    public String[] getTiers() {
+        synchronized( tiers ) {
+            String[] names = new String[tiers.size()];
+            int i = 0;
+
+            for( Map.Entry<String,BoundedCache<?,?>> entry : tiers.entrySet() ) {
+                names[i++] = entry.getKey() + " " + entry.getValue().toString();
+            }
+            return names;
+        }
+    }
+
+    public void resetCounters() {
+        primaryRequests.set(0L);
+        primaryHits.set(0L);
+        negativeHits.set(0L);
+        offHeapHits.set(0L);
+        primaryLoads.set(0L);
+        secondaryHits.set(0L);
+        secondaryMisses.set(0L);
+        secondaryLoads.set(0L);
+        primaryLatency = new LatencyHistogram();
+        secondaryLatency = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+/**
+ * Management interface for the cache statistics of a single {@link PersistentCache}. Latencies are in
+ * milliseconds and histograms are bucket counts as described in {@link LatencyHistogram}.
+ */
+public interface CacheStatisticsMBean {
+    public String getEntityClassName();
+
+    public String getCacheType();
+
+    public long getPrimaryHits();
+
+    public long getNegativeHits();
+
+    public long getOffHeapHits();
+
+    public long getPrimaryMisses();
+
+    public double getPrimaryHitRatio();
+
+    public long getPrimaryLoads();
+
+    public double getPrimaryLoadLatencyMeanMillis();
+
+    public double getPrimaryLoadLatency95thPercentileMillis();
+
+    public double getPrimaryLoadLatency99thPercentileMillis();
+
+    public double getPrimaryLoadLatencyMaxMillis();
+
+    public long[] getPrimaryLoadLatencyHistogram();
+
+    public long getSecondaryHits();
+
+    public long getSecondaryMisses();
+
+    public double getSecondaryHitRatio();
+
+    public long getSecondaryLoads();
+
+    public long getCoalescedLoads();
+
+    public double getSecondaryLoadLatencyMeanMillis();
+
+    public double getSecondaryLoadLatency95thPercentileMillis();
+
+    public double getSecondaryLoadLatency99thPercentileMillis();
+
+    public double getSecondaryLoadLatencyMaxMillis();
+
+    public long[] getSecondaryLoadLatencyHistogram();
+
+    public long getEntryCount();
+
+    public long getEvictionCount();
+
+    public long getExpirationCount();
+
+    public String[] getTiers();
+
+    public void resetCounters();
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.util.uom.Measured;
+
+/**
+ * Resolves, once per combination of field type and data store value class, the {@link TypeConverter} that
+ * {@link PersistentCache#mapValue(String, Object, Class, ParameterizedType)} uses, so loading a row does not run
+ * through a chain of type tests for every value. Common conversions (identity, strings, enums, booleans, numbers,
+ * UUIDs and locales) have built-in converters. Converters registered for a field type take precedence over the
+ * built-in ones and receive every value for fields of that type, including <code>null</code>. Anything else is
+ * left to the general mapping in <code>mapValue()</code>.
+ */
+public final class ConverterRegistry {
+    static private final TypeConverter identity = new TypeConverter() {
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+            return value;
+        }
+    };
+
+    static private final TypeConverter toStringConverter = new TypeConverter() {
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+            return (value == null ? null : value.toString());
+        }
+    };
+
+    static private final TypeConverter toEnum = new TypeConverter() {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
+            try {
+                return Enum.valueOf((Class<? extends Enum>)toType, value.toString());
+            }
+            catch( IllegalArgumentException e ) {
+                throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + value);
+            }
+        }
+    };
+
+    static private final TypeConverter toBoolean = new TypeConverter() {
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+            if( value instanceof Number ) {
+                return (((Number)value).intValue() != 0);
+            }
+            String str = value.toString().trim();
+
+            return (str.equalsIgnoreCase("true") || str.equalsIgnoreCase("y"));
+        }
+    };
+
+    static private final TypeConverter toUUID = new TypeConverter() {
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
+            try {
+                return UUID.fromString(value.toString());
+            }
+            catch( IllegalArgumentException e ) {
+                throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + value);
+            }
+        }
+    };
+
+    static private final TypeConverter toLocale = new TypeConverter() {
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+            String[] parts = value.toString().split("_");
+
+            return (parts.length > 1 ? new Locale(parts[0], parts[1]) : new Locale(parts[0]));
+        }
+    };
+
+    /**
+     * Converts numbers, strings and booleans into one of the primitive number types or its wrapper.
+     */
+    static private final class NumberConverter implements TypeConverter {
+        private final char kind;
+
+        private NumberConverter(char kind) {
+            this.kind = kind;
+        }
+
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
+            if( value instanceof Number ) {
+                Number n = (Number)value;
+
+                switch( kind ) {
+                    case 'B': return n.byteValue();
+                    case 'S': return n.shortValue();
+                    case 'I': return n.intValue();
+                    case 'J': return n.longValue();
+                    case 'F': return n.floatValue();
+                    default: return n.doubleValue();
+                }
+            }
+            if( value instanceof Boolean ) {
+                boolean b = (Boolean)value;
+
+                switch( kind ) {
+                    case 'B': return (byte)(b ? 1 : 0);
+                    case 'S': return (short)(b ? 1 : 0);
+                    case 'I': return (b ? 1 : 0);
+                    case 'J': return (b ? 1L : 0L);
+                    case 'F': return (b ? 1.0f : 0.0f);
+                    default: return (b ? 1.0 : 0.0);
+                }
+            }
+            try {
+                String str = value.toString();
+
+                switch( kind ) {
+                    case 'B': return Byte.parseByte(str);
+                    case 'S': return Short.parseShort(str);
+                    case 'I': return Integer.parseInt(str);
+                    case 'J': return Long.parseLong(str);
+                    case 'F': return Float.parseFloat(str);
+                    default: return Double.parseDouble(str);
+                }
+            }
+            catch( NumberFormatException e ) {
+                throw new PersistenceException("Unable to map " + fieldName + " as " + toType + " using " + value);
+            }
+        }
+    }
+
+    /**
+     * Provides the value of a primitive field for a missing data store value.
+     */
+    static private final class Zero implements TypeConverter {
+        private final Object zero;
+
+        private Zero(Object zero) {
+            this.zero = zero;
+        }
+
+        public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+            return zero;
+        }
+    }
+
+    /**
+     * Marks value classes resolved to the general mapping, since the resolved map cannot hold <code>null</code>.
+     */
+    static private final Object GENERAL = new Object();
+
+    static private final ConcurrentHashMap<Class<?>,TypeConverter>                           custom   = new ConcurrentHashMap<Class<?>,TypeConverter>();
+    static private final ConcurrentHashMap<Class<?>,ConcurrentHashMap<Class<?>,Object>>     resolved = new ConcurrentHashMap<Class<?>,ConcurrentHashMap<Class<?>,Object>>();
+
+    /**
+     * Registers a converter for all fields of the specified type, replacing any converter registered before.
+     * @param toType the field type
+     * @param converter the converter for values loaded into fields of that type
+     */
+    static public void register(@Nonnull Class<?> toType, @Nonnull TypeConverter converter) {
+        custom.put(toType, converter);
+        resolved.remove(toType);
+    }
+
+    /**
+     * Removes the converter registered for the specified type.
+     * @param toType the field type
+     */
+    static public void unregister(@Nonnull Class<?> toType) {
+        custom.remove(toType);
+        resolved.remove(toType);
+    }
+
+    /**
+     * Provides the converter for values of the specified class loaded into fields of the specified type.
+     * @param toType the field type
+     * @param valueClass the class of the data store value, <code>null</code> for missing values
+     * @return the converter or <code>null</code> if the general mapping in <code>mapValue()</code> applies
+     */
+    static public @Nullable TypeConverter getConverter(@Nonnull Class<?> toType, @Nullable Class<?> valueClass) {
+        ConcurrentHashMap<Class<?>,Object> byValue = resolved.get(toType);
+
+        if( byValue == null ) {
+            ConcurrentHashMap<Class<?>,Object> m = new ConcurrentHashMap<Class<?>,Object>();
+
+            byValue = resolved.putIfAbsent(toType, m);
+            if( byValue == null ) {
+                byValue = m;
+            }
+        }
+        Class<?> key = (valueClass == null ? Void.class : valueClass);
+        Object converter = byValue.get(key);
+
+        if( converter == null ) {
+            converter = resolve(toType, valueClass);
+            byValue.put(key, converter == null ? GENERAL : converter);
+        }
+        return (converter == GENERAL ? null : (TypeConverter)converter);
+    }
+
+    static private @Nullable TypeConverter resolve(@Nonnull Class<?> toType, @Nullable Class<?> valueClass) {
+        TypeConverter converter = custom.get(toType);
+
+        if( converter != null ) {
+            return converter;
+        }
+        if( valueClass == null ) {
+            if( toType.equals(boolean.class) || toType.equals(Boolean.class) ) {
+                return new Zero(Boolean.FALSE);
+            }
+            if( toType.isPrimitive() ) {
+                if( toType.equals(byte.class) ) { return new Zero((byte)0); }
+                if( toType.equals(short.class) ) { return new Zero((short)0); }
+                if( toType.equals(int.class) ) { return new Zero(0); }
+                if( toType.equals(long.class) ) { return new Zero(0L); }
+                if( toType.equals(float.class) ) { return new Zero(0.0f); }
+                if( toType.equals(double.class) ) { return new Zero(0.0); }
+            }
+            return (toType.isArray() ? null : identity);
+        }
+        if( toType.equals(String.class) ) {
+            return toStringConverter;
+        }
+        if( toType.isAssignableFrom(valueClass) && !Measured.class.isAssignableFrom(toType) ) {
+            return identity;
+        }
+        if( toType.equals(boolean.class) && valueClass.equals(Boolean.class) ) {
+            return identity;
+        }
+        char kind = getNumberKind(toType);
+
+        if( kind != 0 && (Number.class.isAssignableFrom(valueClass) || valueClass.equals(String.class) || valueClass.equals(Boolean.class)) ) {
+            return new NumberConverter(kind);
+        }
+        if( toType.equals(boolean.class) || toType.equals(Boolean.class) ) {
+            return toBoolean;
+        }
+        if( valueClass.equals(String.class) ) {
+            if( Enum.class.isAssignableFrom(toType) ) {
+                return toEnum;
+            }
+            if( toType.equals(UUID.class) ) {
+                return toUUID;
+            }
+            if( toType.equals(Locale.class) ) {
+                return toLocale;
+            }
+        }
+        return null;
+    }
+
+    static private char getNumberKind(@Nonnull Class<?> type) {
+        if( type.equals(int.class) || type.equals(Integer.class) ) { return 'I'; }
+        if( type.equals(long.class) || type.equals(Long.class) ) { return 'J'; }
+        if( type.equals(double.class) || type.equals(Double.class) ) { return 'D'; }
+        if( type.equals(float.class) || type.equals(Float.class) ) { return 'F'; }
+        if( type.equals(short.class) || type.equals(Short.class) ) { return 'S'; }
+        if( type.equals(byte.class) || type.equals(Byte.class) ) { return 'B'; }
+        return 0;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+
+/**
+ * Caches the results of <code>count()</code> queries by the shape (columns and operators) and values of their
+ * terms. When rows are created, removed or updated through the same cache, shapes whose terms all compare for
+ * equality adjust the one count the row belongs to. Other shapes drop their counts, unless the cache was set up
+ * to give approximate answers, in which case they are only refreshed once their counts expire.
+ */
+public class CountCache {
+    /**
+     * Identifies a cacheable count and remembers the state of the cache when the count was started so that counts
+     * computed before a concurrent write are not cached.
+     */
+    static public class Ticket {
+        private final long   generation;
+        private final Shape  shape;
+        private final String values;
+
+        private Ticket(@Nonnull Shape shape, @Nonnull String values) {
+            this.shape = shape;
+            this.values = values;
+            this.generation = shape.generation.get();
+        }
+    }
+
+    static private class Shape {
+        private final String[]                     columns;
+        private final BoundedCache<String,Long>    counts;
+        private final boolean                      exact;
+        private final AtomicLong                   generation = new AtomicLong(0L);
+
+        private Shape(@Nonnull SearchTerm[] sorted, int maxEntries, long ttl) {
+            boolean eq = true;
+
+            columns = new String[sorted.length];
+            for( int i=0; i<sorted.length; i++ ) {
+                columns[i] = sorted[i].getColumn();
+                if( !Operator.EQUALS.equals(sorted[i].getOperator()) ) {
+                    eq = false;
+                }
+            }
+            exact = eq;
+            counts = new BoundedCache<String,Long>(maxEntries, ttl, 0L, null);
+        }
+
+        private synchronized void adjust(@Nonnull String values, long delta) {
+            Long count = counts.get(values);
+
+            generation.incrementAndGet();
+            if( count != null ) {
+                // an adjusted count is still only as fresh as the query that produced it
+                counts.replace(values, Math.max(0L, count + delta));
+            }
+        }
+
+        private synchronized void clear() {
+            generation.incrementAndGet();
+            counts.clear();
+        }
+
+        private synchronized void put(@Nonnull Ticket ticket, long count) {
+            if( generation.get() == ticket.generation ) {
+                counts.put(ticket.values, count);
+            }
+        }
+
+        private @Nonnull String toValues(@Nonnull QueryCache.Row row) {
+            StringBuilder str = new StringBuilder();
+
+            for( String column : columns ) {
+                str.append(toKeyValue(row.getValue(column))).append('\0');
+            }
+            return str.toString();
+        }
+    }
+
+    static private final Comparator<SearchTerm> byColumn = new Comparator<SearchTerm>() {
+        public int compare(SearchTerm a, SearchTerm b) {
+            int x = a.getColumn().compareTo(b.getColumn());
+
+            if( x == 0 ) {
+                x = a.getOperator().compareTo(b.getOperator());
+            }
+            return x;
+        }
+    };
+
+    static private @Nullable String toKeyValue(@Nullable Object value) {
+        if( value == null ) {
+            return null;
+        }
+        if( value instanceof Enum ) {
+            return ((Enum<?>)value).name();
+        }
+        return value.toString();
+    }
+
+    private final boolean                            approximate;
+    private final int                                maxEntries;
+    private final ConcurrentHashMap<String,Shape>    shapes = new ConcurrentHashMap<String,Shape>();
+    private final CacheStatistics                    statistics;
+    private final long                               ttl;
+
+    /**
+     * Constructs a count cache.
+     * @param maxEntries the maximum number of cached counts per term shape
+     * @param ttl the number of milliseconds after which a count is recomputed, 0 for no limit
+     * @param approximate true if counts that writes cannot adjust may be served until they expire
+     */
+    public CountCache(int maxEntries, long ttl, boolean approximate) {
+        this(maxEntries, ttl, approximate, null);
+    }
+
+    /**
+     * Constructs a count cache that adds the counts of each term shape as a tier of the specified statistics.
+     * @param maxEntries the maximum number of cached counts per term shape
+     * @param ttl the number of milliseconds after which a count is recomputed, 0 for no limit
+     * @param approximate true if counts that writes cannot adjust may be served until they expire
+     * @param statistics the statistics of the cache owning this count cache
+     */
+    public CountCache(int maxEntries, long ttl, boolean approximate, @Nullable CacheStatistics statistics) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.approximate = approximate;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Provides the count previously cached for the specified query.
+     * @param ticket the ticket identifying the query
+     * @return the cached count or <code>null</code> if none is cached
+     */
+    public @Nullable Long get(@Nonnull Ticket ticket) {
+        return ticket.shape.counts.get(ticket.values);
+    }
+
+    /**
+     * Drops every cached count.
+     */
+    public void invalidate() {
+        for( Shape shape : shapes.values() ) {
+            shape.clear();
+        }
+    }
+
+    /**
+     * Drops every cached count unless approximate answers are allowed. Used when rows were written by another node
+     * or by a bulk operation that cannot be applied to individual counts.
+     */
+    public void invalidateExact() {
+        if( !approximate ) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Identifies the specified count for lookups in and additions to this cache.
+     * @param terms the terms of the count, <code>null</code> or empty to count all rows
+     * @return a ticket for the count or <code>null</code> if the count cannot be cached
+     */
+    public @Nullable Ticket prepare(@Nullable SearchTerm[] terms) {
+        SearchTerm[] sorted = (terms == null ? new SearchTerm[0] : Arrays.copyOf(terms, terms.length));
+
+        for( SearchTerm term : sorted ) {
+            Object value = term.getValue();
+
+            // joins read other tables and ranges/collections cannot be matched against a single row value
+            if( term.getJoinEntity() != null || value instanceof Range || value instanceof Collection || (value != null && value.getClass().isArray()) ) {
+                return null;
+            }
+        }
+        Arrays.sort(sorted, byColumn);
+
+        StringBuilder key = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for( SearchTerm term : sorted ) {
+            key.append(term.getColumn()).append(' ').append(term.getOperator().name()).append(',');
+            values.append(toKeyValue(term.getValue())).append('\0');
+        }
+        Shape shape = shapes.get(key.toString());
+
+        if( shape == null ) {
+            Shape s = new Shape(sorted, maxEntries, ttl);
+
+            shape = shapes.putIfAbsent(key.toString(), s);
+            if( shape == null ) {
+                shape = s;
+                if( statistics != null ) {
+                    statistics.addTier("count " + key, s.counts);
+                }
+            }
+        }
+        return new Ticket(shape, values.toString());
+    }
+
+    /**
+     * Caches a count unless a write affecting it happened since the ticket was prepared.
+     * @param ticket the ticket identifying the count
+     * @param count the count
+     */
+    public void put(@Nonnull Ticket ticket, long count) {
+        ticket.shape.put(ticket, count);
+    }
+
+    /**
+     * Works out how a write changes the cached counts. The values of the rows are read right away so that the
+     * adjustment can be applied later, once the write is committed.
+     * @param before the row before the write, <code>null</code> for a create
+     * @param after the row after the write, <code>null</code> for a remove
+     * @return the adjustment to apply once the write is committed
+     */
+    public @Nonnull Runnable prepareWrite(@Nullable QueryCache.Row before, @Nullable QueryCache.Row after) {
+        final ArrayList<Shape> cleared = new ArrayList<Shape>();
+        final ArrayList<Shape> adjusted = new ArrayList<Shape>();
+        final ArrayList<String> decrements = new ArrayList<String>();
+        final ArrayList<String> increments = new ArrayList<String>();
+
+        for( Shape shape : shapes.values() ) {
+            if( shape.exact ) {
+                String b = (before == null ? null : shape.toValues(before));
+                String a = (after == null ? null : shape.toValues(after));
+
+                if( b == null || a == null || !b.equals(a) ) {
+                    adjusted.add(shape);
+                    decrements.add(b);
+                    increments.add(a);
+                }
+            }
+            else if( !approximate && (before == null || after == null || isTouched(shape, before, after)) ) {
+                cleared.add(shape);
+            }
+        }
+        return new Runnable() {
+            public void run() {
+                for( Shape shape : cleared ) {
+                    shape.clear();
+                }
+                for( int i=0; i<adjusted.size(); i++ ) {
+                    Shape shape = adjusted.get(i);
+
+                    if( decrements.get(i) != null ) {
+                        shape.adjust(decrements.get(i), -1L);
+                    }
+                    if( increments.get(i) != null ) {
+                        shape.adjust(increments.get(i), 1L);
+                    }
+                }
+            }
+        };
+    }
+
+    private boolean isTouched(@Nonnull Shape shape, @Nonnull QueryCache.Row before, @Nonnull QueryCache.Row after) {
+        for( String column : shape.columns ) {
+            String a = toKeyValue(before.getValue(column));
+            String b = toKeyValue(after.getValue(column));
+
+            if( a == null ? b != null : !a.equals(b) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
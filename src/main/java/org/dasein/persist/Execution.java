@@ -24,15 +24,18 @@ package org.dasein.persist;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Stack;
+import java.util.WeakHashMap;
 
 // J2EE imports
 import javax.naming.NamingException;
@@ -67,6 +70,21 @@ public abstract class Execution {
     static private HashMap<String,Stack<Execution>> cache        = new HashMap<String,Stack<Execution>>();
 
     static private HashMap<String,String>           dataSources  = new HashMap<String,String>();
+
+    /**
+     * Identifier quoting and case of each open connection, read from the connection metadata only once.
+     */
+    static private final Map<Connection,Dialect>    dialects     = Collections.synchronizedMap(new WeakHashMap<Connection,Dialect>());
+
+    static private final class Dialect {
+        private final String  quotes;
+        private final boolean upperCase;
+
+        private Dialect(String quotes, boolean upperCase) {
+            this.quotes = quotes;
+            this.upperCase = upperCase;
+        }
+    }
     
     /**
      * Loads the sequencers from the dasein-persistence.properties
@@ -295,10 +313,23 @@ public abstract class Execution {
     
     public String getQuotes() throws SQLException {
         if( connection != null ) {
-            return connection.getMetaData().getIdentifierQuoteString();
+            return getDialect().quotes;
         }
         return "";
     }
+
+    private Dialect getDialect() throws SQLException {
+        Dialect dialect = dialects.get(connection);
+
+        if( dialect == null ) {
+            DatabaseMetaData meta = connection.getMetaData();
+            String dbms = meta.getDatabaseProductName();
+
+            dialect = new Dialect(meta.getIdentifierQuoteString(), dbms != null && dbms.toLowerCase().startsWith("hsql"));
+            dialects.put(connection, dialect);
+        }
+        return dialect;
+    }
     
     /**
      * Executes this event in the specified transaction context.
@@ -345,18 +376,21 @@ public abstract class Execution {
                 if( logger.isDebugEnabled() ) {
                     logger.debug("Preparing: " + sql);
                 }
-                if( statementHolder != null ) {
+                if( statementHolder != null && sql != null ) {
                     statementHolder.append(sql);
                 }
-                statement = connection.prepareStatement(sql);
+                // an event with no SQL of its own only runs its follow-up work
+                statement = (sql == null ? null : connection.prepareStatement(sql));
                 try {
                     logger.debug("And executing the prepared statement.");
                 
                     res = run(trans, args);
                 }
                 finally {
-                    try { statement.close(); statement = null; }
-                    catch( Throwable ignore ) { }
+                    if( statement != null ) {
+                        try { statement.close(); statement = null; }
+                        catch( Throwable ignore ) { }
+                    }
                 }
                 if( logger.isDebugEnabled() ) {
                     logger.debug("RESULTS: " + res);
@@ -408,7 +442,7 @@ public abstract class Execution {
     }
     
     /**
-     * @return the SQL for this event
+     * @return the SQL for this event, <code>null</code> if the event has no statement of its own to prepare
      */
    public String getStatement() throws SQLException {
         return null;
@@ -445,13 +479,7 @@ public abstract class Execution {
     }
     
     public boolean isUpperCase() throws SQLException {
-        String dbms = connection.getMetaData().getDatabaseProductName();
-        
-        if( dbms == null ) {
-            return false;
-        }
-        dbms = dbms.toLowerCase();
-        return dbms.startsWith("hsql");
+        return getDialect().upperCase;
     }
     
     @SuppressWarnings("unchecked")
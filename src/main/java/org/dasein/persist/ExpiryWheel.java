@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel shared by all caches in the JVM for reaping expired entries. Each tick covers one
+ * second and only the tasks hashed into the current slot are examined, so expiry work is spread evenly
+ * over time instead of happening all at once. Tasks run on the single wheel thread and should be cheap.
+ */
+public final class ExpiryWheel {
+    static private final Logger logger = Logger.getLogger(ExpiryWheel.class);
+
+    static private final long TICK  = 1000L;
+    static private final int  SLOTS = 512;
+
+    static private ExpiryWheel instance = null;
+
+    static public @Nonnull ExpiryWheel getInstance() {
+        synchronized( ExpiryWheel.class ) {
+            if( instance == null ) {
+                instance = new ExpiryWheel();
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * A scheduled task. Cancelling it drops the reference to the task right away so that whatever the task
+     * refers to can be collected; the empty timeout itself is discarded the next time the wheel passes its slot.
+     */
+    static public final class Timeout {
+        private final    long     deadline;
+        private volatile Runnable task;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public void cancel() {
+            task = null;
+        }
+
+        public boolean isCancelled() {
+            return (task == null);
+        }
+    }
+
+    private final List<ArrayList<Timeout>> wheel = new ArrayList<ArrayList<Timeout>>(SLOTS);
+
+    private ExpiryWheel() {
+        for( int i=0; i<SLOTS; i++ ) {
+            wheel.add(new ArrayList<Timeout>());
+        }
+        Thread t = new Thread() {
+            public void run() {
+                long tick = System.currentTimeMillis()/TICK;
+
+                while( true ) {
+                    try {
+                        long now = System.currentTimeMillis();
+                        long wait = ((tick + 1) * TICK) - now;
+
+                        if( wait > 0L ) {
+                            Thread.sleep(wait);
+                        }
+                        tick++;
+                        expire(tick);
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Error reaping expired cache entries: " + t.getMessage(), t);
+                    }
+                }
+            }
+        };
+
+        t.setDaemon(true);
+        t.setName("DASEIN CACHE EXPIRY");
+        t.start();
+    }
+
+    private void expire(long tick) {
+        ArrayList<Timeout> due = new ArrayList<Timeout>();
+        ArrayList<Timeout> slot = wheel.get((int)(tick % SLOTS));
+        long now = System.currentTimeMillis();
+
+        synchronized( wheel ) {
+            int i = 0;
+
+            while( i < slot.size() ) {
+                Timeout timeout = slot.get(i);
+
+                if( timeout.task == null || timeout.deadline <= now ) {
+                    if( timeout.task != null ) {
+                        due.add(timeout);
+                    }
+                    slot.set(i, slot.get(slot.size()-1));
+                    slot.remove(slot.size()-1);
+                }
+                else {
+                    i++;
+                }
+            }
+        }
+        for( Timeout timeout : due ) {
+            Runnable task = timeout.task;
+
+            if( task == null ) {
+                continue;
+            }
+            try {
+                task.run();
+            }
+            catch( Throwable t ) {
+                logger.error("Error expiring cache entry: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Schedules a task to run on the wheel thread at or shortly after the specified time.
+     * @param task the task to run
+     * @param deadline the time, in milliseconds since the epoch, at which the task should run
+     * @return a handle for cancelling the task
+     */
+    public @Nonnull Timeout schedule(@Nonnull Runnable task, long deadline) {
+        long tick = Math.max((deadline + TICK - 1)/TICK, System.currentTimeMillis()/TICK + 1);
+        Timeout timeout = new Timeout(deadline, task);
+
+        synchronized( wheel ) {
+            wheel.get((int)(tick % SLOTS)).add(timeout);
+        }
+        return timeout;
+    }
+}
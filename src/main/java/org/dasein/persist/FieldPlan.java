@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The persistent fields of a class, resolved once and shared by everything that copies state into or out of
+ * objects of that class. Fields are listed from the class itself up through its superclasses in declaration
+ * order, skipping static and transient fields, and are already made accessible.
+ */
+public final class FieldPlan {
+    /**
+     * A persistent field with its resolved type information.
+     */
+    static public final class Accessor {
+        private final Class<?>          boxedType;
+        private final Field             field;
+        private final String            name;
+        private final ParameterizedType parameterizedType;
+        private final Class<?>          type;
+
+        private Accessor(@Nonnull Field field) {
+            field.setAccessible(true);
+            this.field = field;
+            this.name = field.getName();
+            this.type = field.getType();
+            this.parameterizedType = (field.getGenericType() instanceof ParameterizedType ? (ParameterizedType)field.getGenericType() : null);
+            this.boxedType = box(type);
+        }
+
+        /**
+         * @param value a candidate value for this field
+         * @return true if the value can be set on the field as is, without any conversion
+         */
+        public boolean accepts(@Nullable Object value) {
+            if( value == null ) {
+                return !type.isPrimitive();
+            }
+            return boxedType.isInstance(value);
+        }
+
+        public @Nullable Object get(@Nonnull Object target) throws IllegalAccessException {
+            return field.get(target);
+        }
+
+        public @Nonnull Field getField() {
+            return field;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        public @Nullable ParameterizedType getParameterizedType() {
+            return parameterizedType;
+        }
+
+        public @Nonnull Class<?> getType() {
+            return type;
+        }
+
+        public void set(@Nonnull Object target, @Nullable Object value) throws IllegalAccessException {
+            field.set(target, value);
+        }
+    }
+
+    static private @Nonnull Class<?> box(@Nonnull Class<?> type) {
+        if( !type.isPrimitive() ) {
+            return type;
+        }
+        if( type.equals(boolean.class) ) { return Boolean.class; }
+        if( type.equals(byte.class) ) { return Byte.class; }
+        if( type.equals(char.class) ) { return Character.class; }
+        if( type.equals(short.class) ) { return Short.class; }
+        if( type.equals(int.class) ) { return Integer.class; }
+        if( type.equals(long.class) ) { return Long.class; }
+        if( type.equals(float.class) ) { return Float.class; }
+        return Double.class;
+    }
+
+    static private final ConcurrentHashMap<Class<?>,FieldPlan> plans = new ConcurrentHashMap<Class<?>,FieldPlan>();
+
+    /**
+     * Provides the plan for the specified class, building it on first use.
+     * @param cls the class
+     * @return the plan for the class
+     */
+    static public @Nonnull FieldPlan getInstance(@Nonnull Class<?> cls) {
+        FieldPlan plan = plans.get(cls);
+
+        if( plan == null ) {
+            FieldPlan p = new FieldPlan(cls);
+
+            plan = plans.putIfAbsent(cls, p);
+            if( plan == null ) {
+                plan = p;
+            }
+        }
+        return plan;
+    }
+
+    private final List<Accessor>        accessors;
+    private final Map<String,Accessor>  byName;
+
+    private FieldPlan(@Nonnull Class<?> cls) {
+        ArrayList<Accessor> list = new ArrayList<Accessor>();
+        HashMap<String,Accessor> names = new HashMap<String,Accessor>();
+
+        while( cls != null && !cls.getName().equals(Object.class.getName()) ) {
+            for( Field field : cls.getDeclaredFields() ) {
+                int modifiers = field.getModifiers();
+
+                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
+                    continue;
+                }
+                Accessor accessor = new Accessor(field);
+
+                list.add(accessor);
+                // a field hidden by a subclass field of the same name is only reachable through the list
+                if( !names.containsKey(accessor.getName()) ) {
+                    names.put(accessor.getName(), accessor);
+                }
+            }
+            cls = cls.getSuperclass();
+        }
+        accessors = Collections.unmodifiableList(list);
+        byName = names;
+    }
+
+    /**
+     * @return the persistent fields, from the class itself up through its superclasses
+     */
+    public @Nonnull List<Accessor> getAccessors() {
+        return accessors;
+    }
+
+    /**
+     * @param name the name of a persistent field
+     * @return the field or <code>null</code> if the class has no persistent field of that name
+     */
+    public @Nullable Accessor getAccessor(@Nonnull String name) {
+        return byName.get(name);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CachedItem;
+
+/**
+ * Carries cache invalidations between the JVMs sharing a data store so that a write on one node evicts the
+ * affected keys from the caches of all other nodes. The transport is chosen by setting
+ * <code>dsn.invalidation.transport</code> in <code>dasein-persistence.properties</code> to the name of a
+ * subclass, such as {@link MulticastInvalidationBus} or {@link JdbcInvalidationBus}. Without that property,
+ * caches stay local to their JVM.
+ * <p>
+ * An invalidation names an entity class and the key values of the written object, each in the form
+ * <code>KEY=VALUE</code> where <code>KEY</code> is the string form of a {@link Key}. Receivers evict only those
+ * keys.
+ * </p>
+ */
+public abstract class InvalidationBus {
+    static private final Logger logger = Logger.getLogger(InvalidationBus.class);
+
+    static public final String TRANSPORT = "dsn.invalidation.transport";
+
+    static private InvalidationBus instance = null;
+    static private boolean         loaded   = false;
+
+    /**
+     * Provides the invalidation bus configured for this JVM, starting it on first use.
+     * @return the configured bus or <code>null</code> if none is configured
+     */
+    static public @Nullable InvalidationBus getInstance() {
+        synchronized( InvalidationBus.class ) {
+            if( !loaded ) {
+                Properties props = PersistentCache.getProperties();
+                String cname = props.getProperty(TRANSPORT);
+
+                loaded = true;
+                if( cname != null && cname.trim().length() > 0 ) {
+                    try {
+                        InvalidationBus bus = (InvalidationBus)Class.forName(cname.trim()).newInstance();
+
+                        bus.start(props);
+                        instance = bus;
+                    }
+                    catch( Exception e ) {
+                        logger.error("Unable to start invalidation transport " + cname + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+            return instance;
+        }
+    }
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * @return the identifier this JVM uses to recognize its own invalidations
+     */
+    public @Nonnull String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sends an invalidation to all other nodes.
+     * @param entityClassName the name of the class of the written object
+     * @param keys the key values of the written object
+     */
+    public void publish(@Nonnull String entityClassName, @Nonnull Collection<String> keys) {
+        if( keys.isEmpty() ) {
+            return;
+        }
+        StringBuilder str = new StringBuilder();
+
+        try {
+            str.append(URLEncoder.encode(nodeId, "utf-8")).append('\n');
+            str.append(URLEncoder.encode(entityClassName, "utf-8"));
+            for( String key : keys ) {
+                str.append('\n').append(URLEncoder.encode(key, "utf-8"));
+            }
+            send(str.toString());
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to publish invalidation for " + entityClassName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evicts the keys named in an invalidation received from another node from the local caches.
+     * Invalidations that this node published itself are ignored.
+     * @param message the invalidation as produced by {@link #publish(String, Collection)}
+     */
+    protected void receive(@Nonnull String message) {
+        String[] lines = message.split("\n");
+
+        if( lines.length < 3 ) {
+            return;
+        }
+        try {
+            if( nodeId.equals(URLDecoder.decode(lines[0], "utf-8")) ) {
+                return;
+            }
+            String entityClassName = URLDecoder.decode(lines[1], "utf-8");
+            List<String> keys = new ArrayList<String>();
+
+            for( int i=2; i<lines.length; i++ ) {
+                keys.add(URLDecoder.decode(lines[i], "utf-8"));
+            }
+            PersistentCache<? extends CachedItem> cache = PersistentCache.getLoadedCache(entityClassName);
+
+            if( cache != null ) {
+                cache.evict(keys);
+            }
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delivers an encoded invalidation to the other nodes.
+     * @param message the encoded invalidation
+     * @throws Exception the message could not be sent
+     */
+    protected abstract void send(@Nonnull String message) throws Exception;
+
+    /**
+     * Starts this transport.
+     * @param properties the Dasein persistence properties
+     * @throws PersistenceException the transport could not be started
+     */
+    public abstract void start(@Nonnull Properties properties) throws PersistenceException;
+
+    /**
+     * Stops this transport and releases its resources.
+     */
+    public abstract void stop();
+}
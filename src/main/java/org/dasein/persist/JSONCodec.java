@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes the JSON form of entity state for caches backed by JSON stores. Implementations work
+ * directly against streams so that entities can be written field by field and decoded as the bytes arrive,
+ * without first building an intermediate document tree. A cache picks its codec from the
+ * <code>dsn.cache.json.codec</code> property, falling back to {@link StreamingJSONCodec}.
+ * <p>
+ * Nested objects and arrays are handed back as {@link org.json.JSONObject} and {@link org.json.JSONArray} so
+ * that existing value mapping, {@link SchemaMapper} and <code>valueOf(JSONObject)</code> conventions keep working.
+ * </p>
+ */
+public interface JSONCodec {
+    /**
+     * The kind of the next value in a JSON stream.
+     */
+    static public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+
+    /**
+     * Writes a single JSON object one field at a time.
+     */
+    static public interface ObjectWriter {
+        /**
+         * Writes a field of the object. Values may be <code>null</code>, strings, numbers, booleans, arrays,
+         * collections, maps or org.json values; anything else is written as its string form.
+         * @param name the field name
+         * @param value the field value
+         * @throws IOException an error occurred writing to the underlying stream
+         */
+        public void field(@Nonnull String name, @Nullable Object value) throws IOException;
+
+        /**
+         * Ends the object and flushes it to the underlying stream without closing the stream.
+         * @throws IOException an error occurred writing to the underlying stream
+         */
+        public void close() throws IOException;
+    }
+
+    /**
+     * Pulls values from a JSON stream.
+     */
+    static public interface Parser {
+        public @Nonnull Token peek() throws IOException;
+
+        public void beginArray() throws IOException;
+
+        public void endArray() throws IOException;
+
+        public void beginObject() throws IOException;
+
+        public void endObject() throws IOException;
+
+        /**
+         * @return true if the current array or object has more entries
+         * @throws IOException an error occurred reading the stream
+         */
+        public boolean hasNext() throws IOException;
+
+        public @Nonnull String nextName() throws IOException;
+
+        /**
+         * Reads the next value completely. Objects come back as {@link org.json.JSONObject}, arrays as
+         * {@link org.json.JSONArray} and JSON <code>null</code> as {@link org.json.JSONObject#NULL}.
+         * @return the next value
+         * @throws IOException an error occurred reading the stream or the value is malformed
+         */
+        public @Nonnull Object nextValue() throws IOException;
+
+        /**
+         * Reads the next object as a map of its top-level fields. Fields set to JSON <code>null</code> map to
+         * <code>null</code>; nested values are read as with {@link #nextValue()}.
+         * @return the fields of the object
+         * @throws IOException an error occurred reading the stream or the next value is not an object
+         */
+        public @Nonnull Map<String,Object> nextObject() throws IOException;
+
+        public void skipValue() throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    public @Nonnull ObjectWriter newWriter(@Nonnull OutputStream out) throws IOException;
+
+    public @Nonnull Parser newParser(@Nonnull InputStream in) throws IOException;
+
+    public @Nonnull Parser newParser(@Nonnull Reader in) throws IOException;
+}
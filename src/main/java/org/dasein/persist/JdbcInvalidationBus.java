@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shares cache invalidations through a change log table in the database that all nodes already use, so no
+ * additional infrastructure is needed. Each node appends its invalidations to the table and polls it for rows
+ * added by other nodes. The data source is named by <code>dsn.invalidation.jdbc.dsn</code>, the table by
+ * <code>dsn.invalidation.jdbc.table</code> (default <code>dsn_invalidation</code>, see
+ * <code>schema.sql</code>), the polling interval in milliseconds by <code>dsn.invalidation.jdbc.interval</code>
+ * (default 1000) and the age in milliseconds after which rows are purged by
+ * <code>dsn.invalidation.jdbc.retention</code> (default one hour).
+ * <p>
+ * Ids are allocated when a row is inserted but become visible only when it commits, so a row may appear after
+ * rows with higher ids have already been read. Each poll therefore also re-reads the rows created within the
+ * last <code>dsn.invalidation.jdbc.grace</code> milliseconds (default 30000) and skips the ones it has already
+ * processed. The grace period should cover both the longest commit delay and the clock skew between nodes.
+ * </p>
+ */
+public class JdbcInvalidationBus extends InvalidationBus implements Runnable {
+    static private final Logger logger = Logger.getLogger(JdbcInvalidationBus.class);
+
+    private String            dataSourceName;
+    private long              grace;
+    private long              interval;
+    private long              lastId    = -1L;
+    private long              lastPurge = 0L;
+    private long              retention;
+    private volatile boolean  running   = false;
+    private Map<Long,Long>    seen      = new HashMap<Long,Long>();
+    private String            table;
+
+    public JdbcInvalidationBus() { }
+
+    private @Nonnull Connection getConnection() throws SQLException, NamingException {
+        InitialContext ctx = new InitialContext();
+        DataSource ds = (DataSource)ctx.lookup(dataSourceName);
+        Connection conn = ds.getConnection();
+
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
+    private void poll() throws SQLException, NamingException {
+        Connection conn = getConnection();
+
+        try {
+            PreparedStatement stmt;
+            ResultSet rs;
+
+            if( lastId < 0L ) {
+                stmt = conn.prepareStatement("SELECT MAX(id) FROM " + table);
+                try {
+                    rs = stmt.executeQuery();
+                    lastId = (rs.next() ? rs.getLong(1) : 0L);
+                    rs.close();
+                }
+                finally {
+                    stmt.close();
+                }
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long cutoff = now - grace;
+
+            stmt = conn.prepareStatement("SELECT id, node, message, created FROM " + table + " WHERE id > ? OR created >= ? ORDER BY id");
+            try {
+                stmt.setLong(1, lastId);
+                stmt.setLong(2, cutoff);
+                rs = stmt.executeQuery();
+                while( rs.next() ) {
+                    long id = rs.getLong(1);
+
+                    if( seen.containsKey(id) ) {
+                        continue;
+                    }
+                    seen.put(id, rs.getLong(4));
+                    if( id > lastId ) {
+                        lastId = id;
+                    }
+                    if( !getNodeId().equals(rs.getString(2)) ) {
+                        try {
+                            receive(rs.getString(3));
+                        }
+                        catch( Throwable t ) {
+                            logger.error("Problem processing invalidation " + id + ": " + t.getMessage(), t);
+                        }
+                    }
+                }
+                rs.close();
+            }
+            finally {
+                stmt.close();
+            }
+            // rows older than the grace period are only read again if their id is above lastId, which a seen id never is
+            Iterator<Long> created = seen.values().iterator();
+
+            while( created.hasNext() ) {
+                if( created.next() < cutoff ) {
+                    created.remove();
+                }
+            }
+
+            if( now - lastPurge > retention ) {
+                lastPurge = now;
+                stmt = conn.prepareStatement("DELETE FROM " + table + " WHERE created < ?");
+                try {
+                    stmt.setLong(1, now - retention);
+                    stmt.executeUpdate();
+                }
+                finally {
+                    stmt.close();
+                }
+            }
+        }
+        finally {
+            try { conn.close(); }
+            catch( SQLException ignore ) { /* ignore */ }
+        }
+    }
+
+    public void run() {
+        while( running ) {
+            try {
+                poll();
+            }
+            catch( Throwable t ) {
+                logger.warn("Problem polling " + table + " for invalidations: " + t.getMessage());
+            }
+            try {
+                Thread.sleep(interval);
+            }
+            catch( InterruptedException e ) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void send(@Nonnull String message) throws SQLException, NamingException {
+        Connection conn = getConnection();
+
+        try {
+            PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + table + " ( node, message, created ) VALUES ( ?, ?, ? )");
+
+            try {
+                stmt.setString(1, getNodeId());
+                stmt.setString(2, message);
+                stmt.setLong(3, System.currentTimeMillis());
+                stmt.executeUpdate();
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        finally {
+            try { conn.close(); }
+            catch( SQLException ignore ) { /* ignore */ }
+        }
+    }
+
+    @Override
+    public void start(@Nonnull Properties properties) throws PersistenceException {
+        dataSourceName = properties.getProperty("dsn.invalidation.jdbc.dsn");
+        if( dataSourceName == null ) {
+            throw new PersistenceException("No data source defined in dsn.invalidation.jdbc.dsn");
+        }
+        table = properties.getProperty("dsn.invalidation.jdbc.table", "dsn_invalidation");
+        try {
+            grace = Long.parseLong(properties.getProperty("dsn.invalidation.jdbc.grace", "30000"));
+            interval = Long.parseLong(properties.getProperty("dsn.invalidation.jdbc.interval", "1000"));
+            retention = Long.parseLong(properties.getProperty("dsn.invalidation.jdbc.retention", "3600000"));
+        }
+        catch( NumberFormatException e ) {
+            throw new PersistenceException("Invalid JDBC invalidation settings: " + e.getMessage());
+        }
+        running = true;
+
+        Thread t = new Thread(this);
+
+        t.setName("DASEIN INVALIDATION POLLER");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with power-of-two microsecond buckets. Bucket <code>i</code> counts
+ * latencies below <code>2^i</code> microseconds that did not fit in the previous bucket, and the last bucket
+ * counts everything longer.
+ */
+public class LatencyHistogram {
+    static public final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong(0L);
+    private final AtomicLong      max     = new AtomicLong(0L);
+    private final AtomicLong      total   = new AtomicLong(0L);
+
+    /**
+     * Records one latency.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos/1000L);
+        int bucket = Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        while( true ) {
+            long current = max.get();
+
+            if( micros <= current || max.compareAndSet(current, micros) ) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of recorded latencies in each bucket
+     */
+    public long[] getBuckets() {
+        long[] copy = new long[BUCKETS];
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMaxMillis() {
+        return max.get()/1000.0;
+    }
+
+    public double getMeanMillis() {
+        long c = count.get();
+
+        return (c == 0L ? 0.0 : (total.get()/(double)c)/1000.0);
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket the percentile falls in.
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated latency in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] copy = getBuckets();
+        long c = 0L;
+
+        for( long b : copy ) {
+            c += b;
+        }
+        if( c == 0L ) {
+            return 0.0;
+        }
+        long target = (long)Math.ceil(c * (percentile/100.0));
+        long seen = 0L;
+
+        for( int i=0; i<copy.length; i++ ) {
+            seen += copy[i];
+            if( seen >= target ) {
+                return Math.min((1L << i), Math.max(1L, max.get()))/1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+}
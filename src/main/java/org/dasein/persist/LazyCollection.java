@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.util.JiteratorFilter;
+
+/**
+ * A query result that keeps its rows in column form and builds each entity only when an
+ * iterator hands it out. Entities are kept once built, so iterating again does not go back
+ * to the cache. If the entity filter also implements {@link RowFilter}, rows are screened on
+ * their raw values before anything is materialized.
+ * @param <T> the type of the entities in the result
+ */
+public class LazyCollection<T> extends AbstractCollection<T> {
+    /**
+     * Builds the entity for a single row of the result.
+     * @param <T> the type of the entities built
+     */
+    static public interface Materializer<T> {
+        /**
+         * @param row the column values of the row
+         * @return the entity for the row or <code>null</code> if it no longer exists
+         * @throws PersistenceException the entity could not be built
+         */
+        public @Nullable T materialize(@Nonnull Map<String,Object> row) throws PersistenceException;
+    }
+
+    static private final Object SKIPPED = new Object();
+
+    private final JiteratorFilter<T>            filter;
+    private final Materializer<T>               materializer;
+    private final AtomicReferenceArray<Object>  items;
+    private final List<Map<String,Object>>      rows;
+    private final RowFilter                     rowFilter;
+
+    public LazyCollection(@Nonnull List<Map<String,Object>> rows, @Nonnull Materializer<T> materializer, @Nullable JiteratorFilter<T> filter) {
+        this.rows = rows;
+        this.materializer = materializer;
+        this.filter = filter;
+        this.rowFilter = (filter instanceof RowFilter ? (RowFilter)filter : null);
+        this.items = new AtomicReferenceArray<Object>(rows.size());
+    }
+
+    /**
+     * @return the number of rows matched by the query, before any filtering
+     */
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public @Nonnull Iterator<T> iterator() {
+        return new LazyIterator();
+    }
+
+    @Override
+    public int size() {
+        if( filter == null ) {
+            return rows.size();
+        }
+        int count = 0;
+
+        for( Iterator<T> it = iterator(); it.hasNext(); it.next() ) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nullable T get(int i) {
+        Object item = items.get(i);
+
+        if( item == null ) {
+            Map<String,Object> row = rows.get(i);
+
+            try {
+                if( rowFilter != null && !rowFilter.filter(row) ) {
+                    item = SKIPPED;
+                }
+                else {
+                    T target = materializer.materialize(row);
+
+                    if( target == null || (filter != null && !filter.filter(target)) ) {
+                        item = SKIPPED;
+                    }
+                    else {
+                        item = target;
+                    }
+                }
+            }
+            catch( RuntimeException e ) {
+                throw e;
+            }
+            catch( Throwable t ) {
+                throw new RuntimeException(t);
+            }
+            items.compareAndSet(i, null, item);
+            item = items.get(i);
+        }
+        return (item == SKIPPED ? null : (T)item);
+    }
+
+    private class LazyIterator implements Iterator<T> {
+        private int index = 0;
+        private T   next  = null;
+
+        @Override
+        public boolean hasNext() {
+            while( next == null && index < rows.size() ) {
+                next = get(index++);
+            }
+            return (next != null);
+        }
+
+        @Override
+        public T next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+
+            next = null;
+            return item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Coalesces concurrent loads of the same key into a single load. The first thread to ask for a key runs the
+ * load while every other thread asking for that key in the meantime waits for and shares its result.
+ * @param <V> the type of the loaded values
+ */
+public class LoadCoalescer<V> {
+    private final AtomicLong                                coalesced = new AtomicLong(0L);
+    private final ConcurrentHashMap<String,FutureTask<V>>   inFlight  = new ConcurrentHashMap<String,FutureTask<V>>();
+
+    /**
+     * @return the number of loads that were satisfied by waiting on another thread's load
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Loads the value for the specified key, sharing the load with any other thread loading the same key.
+     * @param key the key identifying the load
+     * @param loader the load to run if no load for the key is currently in flight
+     * @return the loaded value
+     * @throws PersistenceException the load failed
+     */
+    public @Nullable V load(@Nonnull String key, @Nonnull Callable<V> loader) throws PersistenceException {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> current = inFlight.putIfAbsent(key, task);
+
+        if( current == null ) {
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.remove(key, task);
+            }
+            current = task;
+        }
+        else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return current.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable t = e.getCause();
+
+            if( t instanceof PersistenceException ) {
+                throw (PersistenceException)t;
+            }
+            if( t instanceof RuntimeException ) {
+                throw (RuntimeException)t;
+            }
+            if( t instanceof Error ) {
+                throw (Error)t;
+            }
+            throw new PersistenceException((Exception)t);
+        }
+    }
+}
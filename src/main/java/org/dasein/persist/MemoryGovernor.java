@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CachedItem;
+
+/**
+ * Shrinks cache tiers when the heap runs short and lets them grow back once the pressure is gone. The governor
+ * is enabled by setting <code>dsn.memory.threshold</code> to the fraction of each heap pool that may remain in use
+ * after a garbage collection, for example 0.8. When the {@link java.lang.management.MemoryMXBean} reports that
+ * a pool is above that threshold, the governor removes <code>dsn.memory.shrink</code> (default 0.25) of all
+ * cached entries. Each tier gives up entries in proportion to its size and to how rarely its cache is hit. Every
+ * <code>dsn.memory.interval</code> milliseconds (default 10000) that the heap is back below 90% of the threshold,
+ * shrunken tiers regain a tenth of their original capacity. Unbounded tiers grow by a tenth of their current
+ * capacity until they no longer fill it.
+ */
+public final class MemoryGovernor implements NotificationListener, Runnable {
+    static private final Logger logger = Logger.getLogger(MemoryGovernor.class);
+
+    static private MemoryGovernor instance = null;
+
+    /**
+     * Starts the governor if it is configured and not yet running.
+     */
+    static public void start() {
+        synchronized( MemoryGovernor.class ) {
+            if( instance != null ) {
+                return;
+            }
+            Properties props = PersistentCache.getProperties();
+            double threshold, shrink;
+            long interval;
+
+            try {
+                threshold = Double.parseDouble(props.getProperty("dsn.memory.threshold", "0").trim());
+                shrink = Double.parseDouble(props.getProperty("dsn.memory.shrink", "0.25").trim());
+                interval = Long.parseLong(props.getProperty("dsn.memory.interval", "10000").trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid memory governor settings: " + e.getMessage());
+                return;
+            }
+            if( threshold <= 0.0 || threshold >= 1.0 ) {
+                return;
+            }
+            instance = new MemoryGovernor(threshold, Math.min(0.9, Math.max(0.01, shrink)), interval);
+            instance.install();
+        }
+    }
+
+    private final IdentityHashMap<BoundedCache<?,?>,Integer> capacities = new IdentityHashMap<BoundedCache<?,?>,Integer>();
+    private final long                                        interval;
+    private final ArrayList<MemoryPoolMXBean>                 pools      = new ArrayList<MemoryPoolMXBean>();
+    private final double                                      shrink;
+    private final double                                      threshold;
+
+    private MemoryGovernor(double threshold, double shrink, long interval) {
+        this.threshold = threshold;
+        this.shrink = shrink;
+        this.interval = interval;
+    }
+
+    private void install() {
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if( pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() ) {
+                long max = pool.getUsage().getMax();
+
+                if( max > 0L ) {
+                    pool.setCollectionUsageThreshold((long)(max * threshold));
+                    pools.add(pool);
+                }
+            }
+        }
+        ((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+
+        Thread t = new Thread(this);
+
+        t.setName("DASEIN MEMORY GOVERNOR");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if( MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()) ) {
+            try {
+                shrink();
+            }
+            catch( Throwable t ) {
+                logger.error("Problem shrinking caches: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    private boolean isUnderPressure() {
+        for( MemoryPoolMXBean pool : pools ) {
+            MemoryUsage usage = pool.getCollectionUsage();
+
+            if( usage != null && usage.getMax() > 0L && usage.getUsed() > usage.getMax() * threshold * 0.9 ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void run() {
+        while( true ) {
+            try {
+                Thread.sleep(interval);
+                if( !isUnderPressure() ) {
+                    grow();
+                }
+            }
+            catch( InterruptedException e ) {
+                return;
+            }
+            catch( Throwable t ) {
+                logger.error("Problem growing caches: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    private synchronized void grow() {
+        if( capacities.isEmpty() ) {
+            return;
+        }
+        ArrayList<BoundedCache<?,?>> restored = new ArrayList<BoundedCache<?,?>>();
+
+        for( Map.Entry<BoundedCache<?,?>,Integer> entry : capacities.entrySet() ) {
+            BoundedCache<?,?> tier = entry.getKey();
+            int original = entry.getValue();
+            int current = tier.getMaximumSize();
+
+            if( original < 1 ) {
+                // unbounded tiers were capped at their size, lift the cap once the tier no longer fills it
+                if( tier.size() < current ) {
+                    tier.setMaximumSize(0);
+                    restored.add(tier);
+                }
+                else {
+                    tier.setMaximumSize((int)Math.min(Integer.MAX_VALUE, current + Math.max(1L, current/10L)));
+                }
+            }
+            else {
+                int next = Math.min(original, current + Math.max(1, original/10));
+
+                tier.setMaximumSize(next);
+                if( next >= original ) {
+                    restored.add(tier);
+                }
+            }
+        }
+        for( BoundedCache<?,?> tier : restored ) {
+            capacities.remove(tier);
+        }
+        if( capacities.isEmpty() ) {
+            logger.info("Memory pressure is gone, all cache tiers are back to full capacity");
+        }
+    }
+
+    private synchronized void shrink() {
+        ArrayList<BoundedCache<?,?>> tiers = new ArrayList<BoundedCache<?,?>>();
+        ArrayList<Double> weights = new ArrayList<Double>();
+        long total = 0L;
+        double weight = 0.0;
+
+        for( PersistentCache<? extends CachedItem> cache : PersistentCache.getLoadedCaches() ) {
+            CacheStatistics stats = cache.getStatistics();
+            double miss = 1.0 - stats.getOverallHitRatio();
+
+            for( BoundedCache<?,?> tier : stats.getTierCaches().values() ) {
+                int size = tier.size();
+
+                if( size > 0 ) {
+                    // tiers that are rarely hit give up more, but even a perfect hit ratio gives up something
+                    double w = size * (0.1 + miss);
+
+                    tiers.add(tier);
+                    weights.add(w);
+                    total += size;
+                    weight += w;
+                }
+            }
+        }
+        if( tiers.isEmpty() ) {
+            return;
+        }
+        long target = (long)(total * shrink);
+
+        logger.warn("Heap usage above " + (int)(threshold * 100) + "%, shrinking " + tiers.size() + " cache tiers by " + target + " of " + total + " entries");
+        for( int i=0; i<tiers.size(); i++ ) {
+            BoundedCache<?,?> tier = tiers.get(i);
+            int size = tier.size();
+            int remove = (int)Math.min(size, Math.round(target * weights.get(i)/weight));
+
+            if( !capacities.containsKey(tier) ) {
+                capacities.put(tier, tier.getMaximumSize());
+            }
+            tier.setMaximumSize(Math.max(1, size - remove));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends cache invalidations as UDP multicast datagrams. All nodes sharing a data store must use the same group
+ * and port, configured through <code>dsn.invalidation.multicast.group</code> (default 230.0.0.1),
+ * <code>dsn.invalidation.multicast.port</code> (default 45566) and <code>dsn.invalidation.multicast.ttl</code>
+ * (default 1). Delivery is best effort, so entries should still carry a time to live.
+ */
+public class MulticastInvalidationBus extends InvalidationBus implements Runnable {
+    static private final Logger logger = Logger.getLogger(MulticastInvalidationBus.class);
+
+    static private final int MAX_PACKET = 65507;
+
+    private InetAddress       group;
+    private int               port;
+    private volatile boolean  running = false;
+    private MulticastSocket   socket;
+
+    public MulticastInvalidationBus() { }
+
+    public void run() {
+        byte[] buffer = new byte[MAX_PACKET];
+
+        while( running ) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+                socket.receive(packet);
+                receive(new String(packet.getData(), packet.getOffset(), packet.getLength(), "utf-8"));
+            }
+            catch( IOException e ) {
+                if( running ) {
+                    logger.warn("Problem receiving invalidation: " + e.getMessage());
+                }
+            }
+            catch( Throwable t ) {
+                logger.error("Problem processing invalidation: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    @Override
+    protected void send(@Nonnull String message) throws IOException {
+        byte[] data = message.getBytes("utf-8");
+
+        if( data.length > MAX_PACKET ) {
+            logger.warn("Dropping invalidation of " + data.length + " bytes, too large for a datagram");
+            return;
+        }
+        socket.send(new DatagramPacket(data, data.length, group, port));
+    }
+
+    @Override
+    public void start(@Nonnull Properties properties) throws PersistenceException {
+        try {
+            group = InetAddress.getByName(properties.getProperty("dsn.invalidation.multicast.group", "230.0.0.1"));
+            port = Integer.parseInt(properties.getProperty("dsn.invalidation.multicast.port", "45566"));
+            socket = new MulticastSocket(port);
+            socket.setTimeToLive(Integer.parseInt(properties.getProperty("dsn.invalidation.multicast.ttl", "1")));
+            socket.joinGroup(group);
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( NumberFormatException e ) {
+            throw new PersistenceException("Invalid multicast invalidation settings: " + e.getMessage());
+        }
+        running = true;
+
+        Thread t = new Thread(this);
+
+        t.setName("DASEIN INVALIDATION RECEIVER");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            socket.leaveGroup(group);
+        }
+        catch( IOException ignore ) {
+            // ignore
+        }
+        socket.close();
+    }
+}
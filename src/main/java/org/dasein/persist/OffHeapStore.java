@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Stores serialized values outside of the Java heap in direct {@link ByteBuffer} slabs so that large caches do
+ * not add to garbage collection pressure. Values are appended to the current slab; when every slab is full, the
+ * oldest slab is recycled and the values it held are dropped. Only the small key index lives on the heap. It is a
+ * {@link BoundedCache} so that it can be shrunk under memory pressure, which drops the values it no longer indexes.
+ */
+public class OffHeapStore {
+    static private class Location {
+        private final String key;
+        private final int    length;
+        private final int    offset;
+        private final int    slab;
+
+        private Location(String key, int slab, int offset, int length) {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final BoundedCache<String,Location> index;
+    private final List<ArrayList<Location>>     locations;
+    private final int                           slabBytes;
+    private final ByteBuffer[]                  slabs;
+
+    private int  current   = 0;
+    private long evictions = 0L;
+
+    /**
+     * Constructs a store of the specified capacity.
+     * @param maxBytes the total number of bytes to allocate off heap
+     * @param slabBytes the size of each slab, which limits the size of a single value
+     * @param ttl the number of milliseconds a stored value may be used, 0 for no limit
+     */
+    public OffHeapStore(long maxBytes, int slabBytes, long ttl) {
+        int count = (int)Math.max(2L, Math.min(Integer.MAX_VALUE, maxBytes/slabBytes));
+
+        this.slabBytes = slabBytes;
+        slabs = new ByteBuffer[count];
+        locations = new ArrayList<ArrayList<Location>>(count);
+        for( int i=0; i<count; i++ ) {
+            locations.add(new ArrayList<Location>());
+        }
+        index = new BoundedCache<String,Location>(0, ttl, 0L, null);
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        for( int i=0; i<slabs.length; i++ ) {
+            locations.get(i).clear();
+            if( slabs[i] != null ) {
+                slabs[i].clear();
+            }
+        }
+        current = 0;
+    }
+
+    /**
+     * Provides the value stored under the specified key.
+     * @param key the key of the value
+     * @return a copy of the stored bytes or <code>null</code> if nothing is stored or the value expired
+     */
+    public synchronized @Nullable byte[] get(@Nonnull String key) {
+        Location location = index.get(key);
+
+        if( location == null ) {
+            return null;
+        }
+        ByteBuffer buffer = slabs[location.slab].duplicate();
+        byte[] data = new byte[location.length];
+
+        buffer.position(location.offset);
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * @return the on-heap index of the stored values
+     */
+    public @Nonnull BoundedCache<String,?> getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of values dropped because their slab was recycled
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of bytes allocated off heap so far
+     */
+    public synchronized long getAllocatedBytes() {
+        long total = 0L;
+
+        for( ByteBuffer slab : slabs ) {
+            if( slab != null ) {
+                total += slab.capacity();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Stores the specified value, replacing any value stored under the same key. Values larger than a slab are
+     * not stored.
+     * @param key the key of the value
+     * @param data the bytes to store
+     * @return true if the value was stored
+     */
+    public synchronized boolean put(@Nonnull String key, @Nonnull byte[] data) {
+        if( data.length > slabBytes ) {
+            index.remove(key);
+            return false;
+        }
+        ByteBuffer slab = slabs[current];
+
+        if( slab == null ) {
+            slab = allocate();
+        }
+        if( slab.remaining() < data.length ) {
+            current = (current + 1) % slabs.length;
+            slab = (slabs[current] == null ? allocate() : recycle(current));
+        }
+        Location location = new Location(key, current, slab.position(), data.length);
+
+        slab.put(data);
+        index.put(key, location);
+        locations.get(current).add(location);
+        return true;
+    }
+
+    private @Nonnull ByteBuffer allocate() {
+        slabs[current] = ByteBuffer.allocateDirect(slabBytes);
+        return slabs[current];
+    }
+
+    private @Nonnull ByteBuffer recycle(int slab) {
+        for( Location location : locations.get(slab) ) {
+            if( index.remove(location.key, location) ) {
+                evictions++;
+            }
+        }
+        locations.get(slab).clear();
+        slabs[slab].clear();
+        return slabs[slab];
+    }
+
+    public synchronized void remove(@Nonnull String key) {
+        index.remove(key);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+}
@@ -18,8 +18,15 @@
 
 package org.dasein.persist;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -32,8 +39,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Currency;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -41,13 +50,19 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
-import org.dasein.persist.annotations.AutoJSON;
+import org.dasein.persist.annotations.CachePolicy;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.persist.annotations.Lookup;
 import org.dasein.persist.annotations.Schema;
+import org.dasein.persist.jdbc.Row;
+import org.dasein.persist.jdbc.StatementPlan;
+import org.dasein.util.CacheLoader;
+import org.dasein.util.CacheManagementException;
 import org.dasein.util.CachedItem;
 import org.dasein.util.ConcurrentMultiCache;
 import org.dasein.util.CursorPopulator;
@@ -161,19 +176,7 @@ public abstract class PersistentCache<T extends CachedItem> {
             }
         }
 
-        Properties props = new Properties();
-
-        try {
-            InputStream is = DaseinSequencer.class.getResourceAsStream(DaseinSequencer.PROPERTIES);
-
-            if( is != null ) {
-                props.load(is);
-            }
-        }
-        catch( Exception e ) {
-            logger.error("Problem reading " + DaseinSequencer.PROPERTIES + ": " + e.getMessage(), e);
-        }
-        
+        Properties props = getProperties();
         TreeSet<Key> keys = new TreeSet<Key>();
         Class<?> cls = forClass;
 
@@ -275,6 +278,8 @@ public abstract class PersistentCache<T extends CachedItem> {
                 throw new PersistenceException(err);
             }
         }
+        boolean created = false;
+
         synchronized( caches ) {
             PersistentCache<? extends CachedItem> c = caches.get(className);
 
@@ -283,16 +288,86 @@ public abstract class PersistentCache<T extends CachedItem> {
             }
             else {
                 caches.put(className, cache);
+                cache.getStatistics().register();
+                created = true;
             }
         }
+        if( created ) {
+            CacheSnapshot.register(cache);
+            MemoryGovernor.start();
+        }
         return cache;
     }
 
+    /**
+     * Provides the cache for the specified entity class if one has already been created in this JVM.
+     * @param className the name of the entity class
+     * @return the cache for the class or <code>null</code> if none has been created
+     */
+    static @Nullable PersistentCache<? extends CachedItem> getLoadedCache(@Nonnull String className) {
+        synchronized( caches ) {
+            return caches.get(className);
+        }
+    }
+
+    /**
+     * @return all caches created so far in this JVM
+     */
+    static @Nonnull Collection<PersistentCache<? extends CachedItem>> getLoadedCaches() {
+        synchronized( caches ) {
+            return new ArrayList<PersistentCache<? extends CachedItem>>(caches.values());
+        }
+    }
+
+    static private Properties properties = null;
+
+    /**
+     * Provides the contents of the Dasein persistence properties file, loading it on first use.
+     * @return the persistence properties, empty if none could be found
+     */
+    static protected @Nonnull Properties getProperties() {
+        synchronized( caches ) {
+            if( properties == null ) {
+                Properties props = new Properties();
+
+                try {
+                    InputStream is = DaseinSequencer.class.getResourceAsStream(DaseinSequencer.PROPERTIES);
+
+                    if( is != null ) {
+                        props.load(is);
+                    }
+                }
+                catch( Exception e ) {
+                    logger.error("Problem reading " + DaseinSequencer.PROPERTIES + ": " + e.getMessage(), e);
+                }
+                properties = props;
+            }
+            return properties;
+        }
+    }
+
     private ConcurrentMultiCache<T>                     cache           = null;
+    private boolean                                     cacheEnabled    = true;
+    private boolean                                     lazyFinds       = false;
+    private boolean                                     partialUpdates  = false;
+    private JSONCodec                                   codec           = null;
+    private CountCache                                  counts          = null;
+    private volatile FieldPlan                          fieldPlan       = null;
+    private volatile RowBinding                         rowBinding      = null;
     private String                                      entityName      = null;
     private Map<Class<? extends CachedItem>,EntityJoin> joins           = new HashMap<Class<? extends CachedItem>,EntityJoin>();
     private Map<String,LookupDelegate>                  lookups         = new HashMap<String,LookupDelegate>();
+    private BoundedCache<String,LoadedState>            loadedStates    = null;
+    private LoadCoalescer<T>                            loads           = new LoadCoalescer<T>();
+    private BoundedCache<String,Boolean>                misses          = null;
+    private OffHeapStore                                offHeap         = null;
+    private Properties                                  policy          = new Properties();
+    private BoundedCache<String,T>                      tracked         = null;
+    private QueryCache                                  queries         = null;
+    private CacheStatistics                             statistics      = new CacheStatistics(this);
     private Key                                         primaryKey      = null;
+    private final ConcurrentHashMap<String,SchemaMapper[]> mapperChains    = new ConcurrentHashMap<String,SchemaMapper[]>();
+    private final ConcurrentHashMap<String,StatementPlan>  plans           = new ConcurrentHashMap<String,StatementPlan>();
     private SchemaMapper[]                              schemaMappers   = null;
     private String                                      schemaVersion   = null;
     private Key[]                                       secondaryKeys   = null;
@@ -338,7 +413,68 @@ public abstract class PersistentCache<T extends CachedItem> {
             secondaryKeys = new Key[0];
         }
         cache = new ConcurrentMultiCache<T>(cls, primaryKey.getFields()[0]);
-        
+        loadPolicy(cls.getAnnotation(CachePolicy.class));
+
+        String enabled = getCacheProperty("enabled");
+
+        cacheEnabled = (enabled == null || !enabled.equalsIgnoreCase("false"));
+
+        String partial = getCacheProperty("update.partial");
+
+        partialUpdates = (partial != null && partial.equalsIgnoreCase("true"));
+        if( partialUpdates ) {
+            loadedStates = new BoundedCache<String,LoadedState>(getCacheProperty("update.partial.maxEntries", 10000), getCacheProperty("update.partial.ttl", 60000L), 0L, null);
+            statistics.addTier("loaded", loadedStates);
+        }
+
+        String lazy = getCacheProperty("find.lazy");
+
+        lazyFinds = (lazy != null && lazy.equalsIgnoreCase("true"));
+
+        String codecName = getCacheProperty("json.codec");
+
+        if( codecName != null ) {
+            try {
+                codec = (JSONCodec)Class.forName(codecName).newInstance();
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to load JSON codec " + codecName + " for " + getEntityClassName() + ": " + e.getMessage());
+            }
+        }
+        if( codec == null ) {
+            codec = new StreamingJSONCodec();
+        }
+
+        long missTtl = getCacheProperty("negative.ttl", 0L);
+
+        if( missTtl > 0L ) {
+            misses = new BoundedCache<String,Boolean>(getCacheProperty("negative.maxEntries", 10000), missTtl, 0L, null);
+            statistics.addTier("misses", misses);
+        }
+        int maxQueries = getCacheProperty("query.maxEntries", 0);
+
+        if( cacheEnabled && maxQueries > 0 ) {
+            queries = new QueryCache(maxQueries, getCacheProperty("query.ttl", 60000L), statistics);
+        }
+        int maxCounts = getCacheProperty("count.maxEntries", 0);
+
+        if( cacheEnabled && maxCounts > 0 ) {
+            String approximate = getCacheProperty("count.approximate");
+
+            counts = new CountCache(maxCounts, getCacheProperty("count.ttl", 60000L), approximate != null && approximate.equalsIgnoreCase("true"), statistics);
+        }
+        int maxTracked = getCacheProperty("snapshot.maxEntries", 0);
+
+        if( cacheEnabled && maxTracked > 0 ) {
+            tracked = new BoundedCache<String,T>(maxTracked);
+            statistics.addTier("snapshot", tracked);
+        }
+        long offHeapBytes = getCacheProperty("offheap.maxBytes", 0L);
+
+        if( offHeapBytes > 0L ) {
+            offHeap = new OffHeapStore(offHeapBytes, getCacheProperty("offheap.slabBytes", 16 * 1024 * 1024), getCacheProperty("offheap.ttl", 15L * 60L * 1000L));
+            statistics.addTier("offheap", offHeap.getIndex());
+        }
         init(cls, keys);
         Class<?> current = cls;
         
@@ -363,22 +499,240 @@ public abstract class PersistentCache<T extends CachedItem> {
         }
     }
 
+    private void loadPolicy(@Nullable CachePolicy annotation) {
+        if( annotation == null ) {
+            return;
+        }
+        if( !annotation.cached() ) {
+            policy.setProperty("enabled", "false");
+        }
+        if( annotation.maxEntries() >= 0 ) {
+            policy.setProperty("secondary.maxEntries", String.valueOf(annotation.maxEntries()));
+        }
+        if( annotation.maxBytes() >= 0L ) {
+            policy.setProperty("offheap.maxBytes", String.valueOf(annotation.maxBytes()));
+        }
+        if( annotation.ttl() >= 0L ) {
+            policy.setProperty("expireAfterWrite", String.valueOf(annotation.ttl()));
+        }
+        if( annotation.idleTimeout() >= 0L ) {
+            policy.setProperty("expireAfterAccess", String.valueOf(annotation.idleTimeout()));
+        }
+        if( annotation.negativeTtl() >= 0L ) {
+            policy.setProperty("negative.ttl", String.valueOf(annotation.negativeTtl()));
+        }
+        if( annotation.refreshWindow() >= 0L ) {
+            policy.setProperty("refresh.window", String.valueOf(annotation.refreshWindow()));
+        }
+        if( annotation.versionField().length() > 0 ) {
+            policy.setProperty("revalidate.field", annotation.versionField());
+        }
+    }
+
     protected void init(Class<T> cls, Key ... keys) {
         // NO-OP
     }
 
+    /**
+     * @return <code>false</code> if the entity's cache policy turns caching off
+     */
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * @return true if find results should hold their rows and build each entity only as it is iterated
+     */
+    protected boolean isLazyFind() {
+        return lazyFinds;
+    }
+
+    /**
+     * Releases an object from the cache right after it was loaded if caching is turned off for this entity, so
+     * the next request loads it again.
+     * @param item the object that was loaded
+     * @return the object
+     */
+    protected @Nullable T detach(@Nullable T item) {
+        if( !cacheEnabled && item != null ) {
+            cache.release(item);
+        }
+        return item;
+    }
+
     public long count() throws PersistenceException {
-        return list().size();
+        return cachedCount(null, new Callable<Long>() {
+            public Long call() throws PersistenceException {
+                return (long)list().size();
+            }
+        });
+    }
+
+    public long count(final SearchTerm ... terms) throws PersistenceException {
+        return cachedCount(terms, new Callable<Long>() {
+            public Long call() throws PersistenceException {
+                return (long)find(terms).size();
+            }
+        });
+    }
+
+    /**
+     * Answers a count from the count cache, if enabled through <code>dsn.cache.count.maxEntries</code>, or runs
+     * the specified counter and caches its answer.
+     * @param terms the terms of the count, <code>null</code> to count all objects
+     * @param counter counts the matching objects in the data store
+     * @return the number of matching objects
+     * @throws PersistenceException an error occurred talking to the data store
+     */
+    protected long cachedCount(@Nullable SearchTerm[] terms, @Nonnull Callable<Long> counter) throws PersistenceException {
+        CountCache.Ticket ticket = (counts == null ? null : counts.prepare(terms));
+
+        if( ticket != null ) {
+            Long count = counts.get(ticket);
+
+            if( count != null ) {
+                return count;
+            }
+        }
+        long count;
+
+        try {
+            count = counter.call();
+        }
+        catch( PersistenceException e ) {
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            throw e;
+        }
+        catch( Exception e ) {
+            throw new PersistenceException(e);
+        }
+        if( ticket != null ) {
+            counts.put(ticket, count);
+        }
+        return count;
+    }
+
+    /**
+     * Adjusts the cached counts for an object being created, removed or updated once the write is committed.
+     * @param xaction the transaction governing the write, or <code>null</code> to adjust immediately
+     * @param item the object being removed or updated, still holding its old values, or <code>null</code> for a create
+     * @param state the new state of the object, or <code>null</code> for a remove
+     */
+    protected void adjustCounts(@Nullable Transaction xaction, final @Nullable T item, final @Nullable Map<String,Object> state) {
+        if( counts == null ) {
+            return;
+        }
+        QueryCache.Row before = null, after = null;
+
+        if( item != null ) {
+            before = new QueryCache.Row() {
+                public Object getValue(String column) {
+                    return PersistentCache.this.getValue(item, column);
+                }
+            };
+        }
+        if( state != null ) {
+            after = new QueryCache.Row() {
+                public Object getValue(String column) {
+                    return state.get(column);
+                }
+            };
+        }
+        Runnable adjustment = counts.prepareWrite(before, after);
+
+        if( xaction == null ) {
+            adjustment.run();
+        }
+        else {
+            xaction.addCommitHook(adjustment);
+        }
     }
 
-    public long count(SearchTerm ... terms) throws PersistenceException {
-        return find(terms).size();
+    /**
+     * Drops the cached counts after a bulk write that cannot be applied to individual counts, unless approximate
+     * counts were allowed through <code>dsn.cache.count.approximate</code>.
+     * @param xaction the transaction governing the write, or <code>null</code> to drop them immediately
+     */
+    protected void invalidateCounts(@Nullable Transaction xaction) {
+        if( counts == null ) {
+            return;
+        }
+        if( xaction == null ) {
+            counts.invalidateExact();
+        }
+        else {
+            xaction.addCommitHook(new Runnable() {
+                public void run() {
+                    counts.invalidateExact();
+                }
+            });
+        }
     }
 
     protected ConcurrentMultiCache<T> getCache() {
         return cache;
     }
 
+    /**
+     * Looks up a cache tuning property for this entity. The most specific of <code>dsn.cache.NAME.CLASS</code>,
+     * <code>dsn.cache.NAME.PACKAGE</code> (walking up the package hierarchy), the entity's {@link CachePolicy}
+     * and <code>dsn.cache.NAME</code> wins.
+     * @param name the name of the tuning property
+     * @return the configured value or <code>null</code> if none was configured
+     */
+    protected @Nullable String getCacheProperty(@Nonnull String name) {
+        Properties props = getProperties();
+        String base = "dsn.cache." + name;
+        String propKey = base + "." + getEntityClassName();
+
+        while( !propKey.equals(base) ) {
+            String prop = props.getProperty(propKey);
+
+            if( prop != null ) {
+                return prop.trim();
+            }
+            propKey = propKey.substring(0, propKey.lastIndexOf('.'));
+        }
+        String prop = policy.getProperty(name);
+
+        if( prop != null ) {
+            return prop;
+        }
+        prop = props.getProperty(base);
+
+        return (prop == null ? null : prop.trim());
+    }
+
+    protected int getCacheProperty(@Nonnull String name, int defaultValue) {
+        String prop = getCacheProperty(name);
+
+        if( prop != null && prop.length() > 0 ) {
+            try {
+                return Integer.parseInt(prop);
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for dsn.cache." + name + " in " + getEntityClassName() + ": " + prop);
+            }
+        }
+        return defaultValue;
+    }
+
+    protected long getCacheProperty(@Nonnull String name, long defaultValue) {
+        String prop = getCacheProperty(name);
+
+        if( prop != null && prop.length() > 0 ) {
+            try {
+                return Long.parseLong(prop);
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for dsn.cache." + name + " in " + getEntityClassName() + ": " + prop);
+            }
+        }
+        return defaultValue;
+    }
+
     public abstract T create(Transaction xaction, Map<String,Object> state) throws PersistenceException;
 
     public Collection<T> find(SearchTerm ... terms) throws PersistenceException {
@@ -570,6 +924,527 @@ public abstract class PersistentCache<T extends CachedItem> {
         return list;
     }
 
+    /**
+     * Runs the specified load of an object by key value unless another thread is already loading the same key
+     * value, in which case this thread waits for and shares the result of that load.
+     * @param key the key being loaded
+     * @param keyValue the value of the key being loaded
+     * @param loader the load to run
+     * @return the loaded object
+     * @throws PersistenceException an error occurred loading the object
+     */
+    protected @Nullable T coalesce(@Nonnull Key key, @Nonnull String keyValue, @Nonnull Callable<T> loader) throws PersistenceException {
+        return loads.load(key.toString() + "=" + keyValue, loader);
+    }
+
+    /**
+     * @return the number of lookups that waited on another thread's load of the same key instead of querying
+     */
+    public long getCoalescedLoadCount() {
+        return loads.getCoalescedCount();
+    }
+
+    /**
+     * @return the hit, miss and load statistics for this cache
+     */
+    public @Nonnull CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return the query result cache for this entity or <code>null</code> if query caching is not enabled through
+     * <code>dsn.cache.query.maxEntries</code>
+     */
+    protected @Nullable QueryCache getQueryCache() {
+        return queries;
+    }
+
+    /**
+     * Drops every cached query result that the specified object being created or removed could belong to, both
+     * now and once the specified transaction commits, so that results read before the commit are not kept.
+     * @param xaction the transaction writing the object
+     * @param state the state of the object being written
+     */
+    protected void invalidateQueries(@Nonnull Transaction xaction, final @Nonnull Map<String,Object> state) {
+        invalidateQueries(xaction, new QueryCache.Row() {
+            public Object getValue(String column) {
+                return state.get(column);
+            }
+        }, null);
+    }
+
+    /**
+     * Drops every cached query result that the specified object being removed could belong to, both now and once
+     * the specified transaction commits.
+     * @param xaction the transaction removing the object
+     * @param item the object being removed
+     */
+    protected void invalidateQueriesFor(@Nonnull Transaction xaction, final @Nonnull T item) {
+        invalidateQueries(xaction, new QueryCache.Row() {
+            public Object getValue(String column) {
+                return PersistentCache.this.getValue(item, column);
+            }
+        }, null);
+    }
+
+    /**
+     * Drops every cached query result that the specified object could belong to before or after an update, both
+     * now and once the specified transaction commits.
+     * @param xaction the transaction updating the object
+     * @param item the object being updated, still holding its old values
+     * @param state the new state of the object
+     */
+    protected void invalidateQueries(@Nonnull Transaction xaction, final @Nonnull T item, final @Nonnull Map<String,Object> state) {
+        invalidateQueries(xaction, new QueryCache.Row() {
+            public Object getValue(String column) {
+                return PersistentCache.this.getValue(item, column);
+            }
+        }, new QueryCache.Row() {
+            public Object getValue(String column) {
+                return state.get(column);
+            }
+        });
+    }
+
+    /**
+     * Drops every cached query result, both now and once the specified transaction commits.
+     * @param xaction the transaction whose writes could affect any result
+     */
+    protected void invalidateAllQueries(@Nonnull Transaction xaction) {
+        final QueryCache q = queries;
+
+        if( q != null ) {
+            q.invalidate();
+            xaction.addCommitHook(new Runnable() {
+                public void run() {
+                    q.invalidate();
+                }
+            });
+        }
+    }
+
+    private void invalidateQueries(@Nonnull Transaction xaction, final @Nonnull QueryCache.Row before, final @Nullable QueryCache.Row after) {
+        final QueryCache q = queries;
+
+        if( q != null ) {
+            Runnable invalidation = new Runnable() {
+                public void run() {
+                    if( after == null ) {
+                        q.invalidate(before);
+                    }
+                    else {
+                        q.invalidate(before, after);
+                    }
+                }
+            };
+
+            invalidation.run();
+            xaction.addCommitHook(invalidation);
+        }
+    }
+
+    /**
+     * Evicts the specified key values from this cache after another node wrote the object they identify. Each key
+     * value has the form <code>KEY=VALUE</code> as produced by {@link #getInvalidationKeys(Map)}; the single value
+     * <code>*</code> evicts everything.
+     * @param keys the key values to evict
+     */
+    public void evict(@Nonnull Collection<String> keys) {
+        if( keys.contains("*") ) {
+            releaseAll();
+            if( misses != null ) {
+                misses.clear();
+            }
+            if( loadedStates != null ) {
+                loadedStates.clear();
+            }
+            if( queries != null ) {
+                queries.invalidate();
+            }
+            if( counts != null ) {
+                counts.invalidateExact();
+            }
+            return;
+        }
+        String pk = primaryKey.toString() + "=";
+
+        for( String key : keys ) {
+            int idx = key.indexOf("]=");
+
+            if( idx < 0 ) {
+                continue;
+            }
+            if( misses != null ) {
+                misses.remove(key);
+            }
+            if( key.startsWith(pk) ) {
+                try {
+                    String value = key.substring(pk.length());
+
+                    dropSpilled(value);
+                    if( loadedStates != null ) {
+                        loadedStates.remove(value);
+                    }
+                    Class<?> cls = getTarget();
+                    Field field = null;
+
+                    while( field == null && cls != null && !cls.equals(Object.class) ) {
+                        try {
+                            field = cls.getDeclaredField(getPrimaryKeyField());
+                        }
+                        catch( NoSuchFieldException ignore ) {
+                            cls = cls.getSuperclass();
+                        }
+                    }
+                    T item = getCache().find(getPrimaryKeyField(), field == null ? value : mapValue(getPrimaryKeyField(), value, field.getType(), null));
+
+                    if( item != null ) {
+                        getCache().release(item);
+                    }
+                }
+                catch( PersistenceException e ) {
+                    logger.warn("Unable to evict " + key + " from " + getEntityClassName() + ": " + e.getMessage());
+                }
+            }
+            else {
+                evictSecondary(key.substring(0, idx+1), key.substring(idx+2));
+            }
+        }
+        if( queries != null ) {
+            queries.invalidate();
+        }
+        if( counts != null ) {
+            counts.invalidateExact();
+        }
+    }
+
+    /**
+     * Evicts a single secondary key value from this cache. Subclasses that cache lookups by secondary key override
+     * this method to drop the matching entry.
+     * @param key the string form of the secondary {@link Key}
+     * @param keyValue the value of the key
+     */
+    protected void evictSecondary(@Nonnull String key, @Nonnull String keyValue) {
+        // NO-OP
+    }
+
+    /**
+     * Provides the primary and secondary key values of the specified state in the form carried by invalidations.
+     * @param state the state of an object being written
+     * @return the key values present in the state
+     */
+    protected @Nonnull Collection<String> getInvalidationKeys(@Nonnull Map<String,Object> state) {
+        ArrayList<String> keys = new ArrayList<String>();
+        String value = toMissKey(primaryKey, state);
+
+        if( value != null ) {
+            keys.add(value);
+        }
+        for( Key key : secondaryKeys ) {
+            value = toMissKey(key, state);
+            if( value != null ) {
+                keys.add(value);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Provides the primary and secondary key values of the specified object in the form carried by invalidations.
+     * @param item an object being written
+     * @return the key values of the object
+     */
+    protected @Nonnull Collection<String> getInvalidationKeysFor(@Nonnull T item) {
+        ArrayList<String> keys = new ArrayList<String>();
+
+        try {
+            String value = getKeyValue(item, primaryKey);
+
+            if( value != null ) {
+                keys.add(primaryKey.toString() + "=" + value);
+            }
+            for( Key key : secondaryKeys ) {
+                value = getKeyValue(item, key);
+                if( value != null ) {
+                    keys.add(key.toString() + "=" + value);
+                }
+            }
+        }
+        catch( PersistenceException e ) {
+            logger.warn("Unable to determine key values of " + item + ": " + e.getMessage());
+        }
+        return keys;
+    }
+
+    /**
+     * Notes a use of the specified object so that the most used objects can be saved in a {@link CacheSnapshot}.
+     * Does nothing unless snapshots are enabled through <code>dsn.cache.snapshot.maxEntries</code>.
+     * @param item the object being used, may be <code>null</code>
+     * @return the object
+     */
+    protected @Nullable T track(@Nullable T item) {
+        if( tracked != null && item != null ) {
+            Object key = getValue(item, getPrimaryKeyField());
+
+            if( key != null ) {
+                String value = toMissValue(key);
+
+                if( tracked.get(value) != item ) {
+                    tracked.put(value, item);
+                }
+            }
+        }
+        return item;
+    }
+
+    /**
+     * @return the most used objects of this cache as noted by {@link #track(CachedItem)}
+     */
+    protected @Nonnull Collection<T> getTrackedItems() {
+        return (tracked == null ? new ArrayList<T>() : tracked.values());
+    }
+
+    /**
+     * Replaces a cached object that may be out of date, such as one restored from a {@link CacheSnapshot}, with a
+     * fresh copy from the data store.
+     * @param item the possibly outdated object
+     * @throws PersistenceException an error occurred loading the fresh copy
+     */
+    protected void revalidate(@Nonnull T item) throws PersistenceException {
+        Object key = getValue(item, getPrimaryKeyField());
+
+        getCache().release(item);
+        if( key != null ) {
+            track(get(key));
+        }
+    }
+
+    /**
+     * Builds a fresh copy of a cached object carrying a committed state. Other threads may be reading the cached
+     * copy, so it is never modified; fields missing from the state keep the values of the cached copy.
+     * @param item the cached copy of the object
+     * @param state the state written to the data store
+     * @return the fresh copy or <code>null</code> if the state could not be applied
+     */
+    protected @Nullable T copyWithState(@Nonnull T item, @Nonnull Map<String,Object> state) {
+        try {
+            Memento<T> current = new Memento<T>(item);
+            T copy = getTarget().newInstance();
+
+            current.save(state);
+            new Memento<T>(copy).load(current.getState());
+            return recordLoadedState(copy);
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to apply new state to a copy of " + item + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Puts an object whose version was found unchanged back into the cache tier it expired from. A write may have
+     * replaced or evicted the object while its version was being checked, so the object goes back only if the tier
+     * has no newer entry and the object is still the one held by the primary cache. That is checked again after
+     * the put, because a write replaces the primary copy before it updates the tiers.
+     * @param tier the tier the object expired from
+     * @param key the key of the object in the tier
+     * @param item the revalidated object
+     */
+    protected <K> void restoreRevalidated(@Nonnull BoundedCache<K,T> tier, @Nonnull K key, @Nonnull T item) {
+        if( isCachedInstance(item) && tier.putIfAbsent(key, item) && !isCachedInstance(item) ) {
+            tier.remove(key, item);
+        }
+    }
+
+    private boolean isCachedInstance(@Nonnull T item) {
+        Object key = getValue(item, getPrimaryKeyField());
+
+        return (key != null && item.isValidForCache() && getCache().find(getPrimaryKeyField(), key) == item);
+    }
+
+    /**
+     * Puts a fresh copy of an object into the primary cache in place of the copy currently cached under its keys.
+     * Every write to the primary cache holds its monitor, so no concurrent load can slip in between the two.
+     * @param stale the copy being replaced
+     * @param fresh the copy replacing it
+     */
+    protected void swap(@Nonnull T stale, @Nonnull T fresh) {
+        ConcurrentMultiCache<T> c = getCache();
+
+        synchronized( c ) {
+            c.release(stale);
+            c.cache(fresh);
+        }
+        track(fresh);
+    }
+
+    /**
+     * Keeps a serialized copy of an object leaving the in-memory cache in the off-heap tier so that a later lookup
+     * can restore it without querying the data store. Does nothing unless the tier is enabled through
+     * <code>dsn.cache.offheap.maxBytes</code>.
+     * @param item the object leaving the in-memory cache
+     */
+    protected void spill(@Nonnull T item) {
+        if( offHeap == null || !item.isValidForCache() ) {
+            return;
+        }
+        try {
+            Memento<T> memento = new Memento<T>(item);
+
+            memento.save(new HashMap<String,Object>());
+            offHeap.put(getKeyValue(item), toDataStoreJSONBytes(memento.getState()));
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to move " + item + " off heap: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Restores an object from the off-heap tier.
+     * @param primaryKeyValue the primary key value of the object
+     * @return the restored object or <code>null</code> if it is not in the off-heap tier
+     */
+    protected @Nullable T unspill(@Nullable Object primaryKeyValue) {
+        if( offHeap == null || primaryKeyValue == null ) {
+            return null;
+        }
+        String key = toMissValue(primaryKeyValue);
+        byte[] data = offHeap.get(key);
+
+        if( data == null ) {
+            return null;
+        }
+        try {
+            return toTargetFromJSON(new ByteArrayInputStream(data));
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to restore " + key + " from off heap: " + e.getMessage());
+            offHeap.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Drops any off-heap copy of the object with the specified primary key value. Called whenever the object is
+     * written.
+     * @param primaryKeyValue the primary key value of the object
+     */
+    protected void dropSpilled(@Nullable Object primaryKeyValue) {
+        if( offHeap != null && primaryKeyValue != null ) {
+            offHeap.remove(toMissValue(primaryKeyValue));
+        }
+    }
+
+    /**
+     * Tells the other nodes sharing the data store to evict the specified key values once the specified transaction
+     * commits. Does nothing unless an {@link InvalidationBus} is configured.
+     * @param xaction the transaction governing the write, or <code>null</code> to publish immediately
+     * @param keys the key values to evict
+     */
+    protected void publishInvalidation(@Nullable Transaction xaction, final @Nonnull Collection<String> keys) {
+        final InvalidationBus bus = InvalidationBus.getInstance();
+
+        if( bus == null || keys.isEmpty() ) {
+            return;
+        }
+        if( xaction == null ) {
+            bus.publish(getEntityClassName(), keys);
+        }
+        else {
+            xaction.addCommitHook(new Runnable() {
+                public void run() {
+                    bus.publish(getEntityClassName(), keys);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets any recorded misses for the primary and secondary key values present in the specified state. Called
+     * whenever an object is written so that a key that did not exist a moment ago can be found. The misses are
+     * cleared right away and again once the transaction commits, since a concurrent lookup against the data store
+     * before the commit can still record them.
+     * @param xaction the transaction governing the write, or <code>null</code> if the write is already durable
+     * @param state the state of the object being written
+     */
+    protected void clearMisses(@Nullable Transaction xaction, @Nonnull Map<String,Object> state) {
+        final BoundedCache<String,Boolean> m = misses;
+
+        if( m == null ) {
+            return;
+        }
+        final ArrayList<String> values = new ArrayList<String>();
+        String value = toMissKey(primaryKey, state);
+
+        if( value != null ) {
+            values.add(value);
+        }
+        for( Key key : secondaryKeys ) {
+            value = toMissKey(key, state);
+            if( value != null ) {
+                values.add(value);
+            }
+        }
+        if( values.isEmpty() ) {
+            return;
+        }
+        Runnable clear = new Runnable() {
+            public void run() {
+                for( String v : values ) {
+                    m.remove(v);
+                }
+            }
+        };
+
+        clear.run();
+        if( xaction != null ) {
+            xaction.addCommitHook(clear);
+        }
+    }
+
+    /**
+     * Checks whether a recent lookup of the specified key value found nothing in the data store. Only meaningful
+     * when negative caching is enabled through <code>dsn.cache.negative.ttl</code>.
+     * @param key the key being looked up
+     * @param keyValue the value of the key being looked up
+     * @return true if the key value was recently found to be missing
+     */
+    protected boolean isKnownMiss(@Nonnull Key key, @Nullable Object keyValue) {
+        return (misses != null && keyValue != null && misses.get(key.toString() + "=" + toMissValue(keyValue)) != null);
+    }
+
+    /**
+     * Records that a lookup of the specified key value found nothing in the data store.
+     * @param key the key that was looked up
+     * @param keyValue the value of the key that was looked up
+     */
+    protected void recordMiss(@Nonnull Key key, @Nullable Object keyValue) {
+        if( misses != null && keyValue != null ) {
+            misses.put(key.toString() + "=" + toMissValue(keyValue), Boolean.TRUE);
+        }
+    }
+
+    private @Nullable String toMissKey(@Nonnull Key key, @Nonnull Map<String,Object> state) {
+        StringBuilder value = new StringBuilder();
+
+        for( String fieldName : key.getFields() ) {
+            Object v = state.get(fieldName);
+
+            if( v == null ) {
+                return null;
+            }
+            if( value.length() > 0 ) {
+                value.append(":");
+            }
+            value.append(toMissValue(v));
+        }
+        return key.toString() + "=" + value.toString();
+    }
+
+    private @Nonnull String toMissValue(@Nonnull Object keyValue) {
+        return (keyValue instanceof Enum ? ((Enum<?>)keyValue).name() : keyValue.toString());
+    }
+
     public LookupDelegate getLookupDelegate(String field) {
         return lookups.get(field);
     }
@@ -588,6 +1463,35 @@ public abstract class PersistentCache<T extends CachedItem> {
 
     public abstract String getSchema() throws PersistenceException;
 
+    /**
+     * Resolves the mappers that take data from the specified version to the current schema version. The chain
+     * is resolved once per source version.
+     * @param fromVersion the version the data was written with
+     * @return the mappers to apply in order, empty if the data is current or cannot be mapped
+     */
+    public @Nonnull SchemaMapper[] getSchemaMapperChain(@Nonnull String fromVersion) {
+        SchemaMapper[] chain = mapperChains.get(fromVersion);
+
+        if( chain == null ) {
+            ArrayList<SchemaMapper> list = new ArrayList<SchemaMapper>();
+            String version = fromVersion;
+
+            // a chain can visit each mapper at most once, anything longer is a cycle
+            while( !version.equals(schemaVersion) && list.size() <= schemaMappers.length ) {
+                SchemaMapper mapper = getSchemaMapper(version);
+
+                if( mapper == null ) {
+                    break;
+                }
+                list.add(mapper);
+                version = mapper.getTargetVersion();
+            }
+            chain = list.toArray(new SchemaMapper[list.size()]);
+            mapperChains.putIfAbsent(fromVersion, chain);
+        }
+        return chain;
+    }
+
     public @Nullable SchemaMapper getSchemaMapper(@Nonnull String fromVersion) {
         if( schemaMappers.length < 1 || fromVersion.equalsIgnoreCase(schemaVersion) ) {
             return null;
@@ -608,11 +1512,228 @@ public abstract class PersistentCache<T extends CachedItem> {
         return secondaryKeys;
     }
 
-    public Class<T> getTarget() {
-        return cache.getTarget();
+    public Class<T> getTarget() {
+        return cache.getTarget();
+    }
+
+    /**
+     * Provides the statement plan shared by every execution of the specified shape so the target fields
+     * are parsed and the SQL is built only once per shape.
+     * @param kind the kind of execution the plan is for
+     * @param terms the search terms of the execution, if any
+     * @param descending true if the execution orders its results in descending order
+     * @param orderColumns the columns the execution orders its results by, if any
+     * @return the plan for the shape
+     */
+    protected @Nonnull StatementPlan getPlan(@Nonnull String kind, @Nullable SearchTerm[] terms, boolean descending, @Nullable String ... orderColumns) {
+        StringBuilder key = new StringBuilder(kind);
+
+        if( terms != null ) {
+            for( SearchTerm term : terms ) {
+                key.append(":");
+                if( term.getJoinEntity() != null ) {
+                    key.append(term.getJoinEntity().getName());
+                    key.append(".");
+                }
+                key.append(term.getColumn());
+                key.append("-");
+                key.append(term.getOperator().name());
+            }
+        }
+        if( orderColumns != null && orderColumns.length > 0 ) {
+            key.append(descending ? "/desc" : "/asc");
+            for( String col : orderColumns ) {
+                key.append("/");
+                key.append(col);
+            }
+        }
+        StatementPlan plan = plans.get(key.toString());
+
+        if( plan == null ) {
+            StatementPlan current;
+
+            plan = new StatementPlan();
+            current = plans.putIfAbsent(key.toString(), plan);
+            if( current != null ) {
+                plan = current;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return the persistent fields of the entity class, resolved once
+     */
+    protected @Nonnull FieldPlan getFieldPlan() {
+        FieldPlan plan = fieldPlan;
+
+        if( plan == null ) {
+            plan = FieldPlan.getInstance(getTarget());
+            fieldPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * The field values of an item as they were in the data store when the item was loaded or last written by this
+     * node, used to work out which columns an update has to write.
+     */
+    static private class LoadedState {
+        private final WeakReference<Object> item;
+        private final Object[]              values;
+
+        private LoadedState(@Nonnull Object item, @Nonnull Object[] values) {
+            this.item = new WeakReference<Object>(item);
+            this.values = values;
+        }
+    }
+
+    /**
+     * Stands in for a recorded value that could be changed in place, so the field is always treated as changed.
+     */
+    static private final Object MUTABLE = new Object();
+
+    /**
+     * Copies a field value so that later changes made to the item in place cannot alter what was recorded. Immutable
+     * values are kept as they are and dates are copied; any other value, such as a collection, map, array or bean,
+     * is recorded as {@link #MUTABLE}.
+     * @param value the current value of the field
+     * @return the value to record
+     */
+    static private @Nullable Object toLoadedValue(@Nullable Object value) {
+        if( value == null || value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Enum ) {
+            return value;
+        }
+        if( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte || value instanceof Double || value instanceof Float ) {
+            return value;
+        }
+        if( value instanceof BigDecimal || value instanceof BigInteger || value instanceof UUID || value instanceof Locale || value instanceof Currency ) {
+            return value;
+        }
+        if( value instanceof Date ) {
+            return ((Date)value).clone();
+        }
+        return MUTABLE;
+    }
+
+    /**
+     * Remembers the field values of an item that was just built from the state of the data store so that an update
+     * of the same item can later write only the columns that changed. Does nothing unless partial updates are
+     * enabled.
+     * @param item the item just built from the data store
+     * @return the item
+     */
+    protected @Nonnull T recordLoadedState(@Nonnull T item) {
+        if( loadedStates == null ) {
+            return item;
+        }
+        Object key = getValue(item, getPrimaryKeyField());
+
+        if( key != null ) {
+            List<FieldPlan.Accessor> accessors = getFieldPlan().getAccessors();
+            Object[] values = new Object[accessors.size()];
+
+            try {
+                for( int i=0; i<values.length; i++ ) {
+                    values[i] = toLoadedValue(accessors.get(i).get(item));
+                }
+                loadedStates.put(toMissValue(key), new LoadedState(item, values));
+            }
+            catch( Exception e ) {
+                loadedStates.remove(toMissValue(key));
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Compares the new state of an item with the values it had when it was loaded to identify the fields an update
+     * has to write. Partial updates are off unless <code>dsn.cache.update.partial</code> is <code>true</code>; until
+     * then every update writes every column. The comparison is against the values recorded at load time rather than
+     * the item itself, which the caller may have changed in place, and only for the very instance that was loaded.
+     * Values that can change in place without a new instance, like collections, maps and arrays, are always written.
+     * Values recorded longer
+     * ago than <code>dsn.cache.update.partial.ttl</code> milliseconds (default 60000) or evicted by another node's
+     * write are not trusted, and neither are values already used for an earlier update, so those updates write
+     * every column. Values are treated as unchanged only when they are clearly equal, so anything ambiguous is
+     * written. Fields missing from the state are compared as <code>null</code> because a full update would clear
+     * them.
+     * @param item the item being updated
+     * @param state the new state of the item
+     * @return the names of the changed fields or <code>null</code> if every column must be written
+     */
+    protected @Nullable Set<String> getChangedFields(@Nonnull T item, @Nonnull Map<String,Object> state) {
+        if( loadedStates == null ) {
+            return null;
+        }
+        Object key = getValue(item, getPrimaryKeyField());
+
+        if( key == null ) {
+            return null;
+        }
+        LoadedState loaded = loadedStates.get(toMissValue(key));
+
+        loadedStates.remove(toMissValue(key));
+        if( loaded == null || loaded.item.get() != item ) {
+            return null;
+        }
+        List<FieldPlan.Accessor> accessors = getFieldPlan().getAccessors();
+        HashSet<String> changed = new HashSet<String>();
+
+        for( int i=0; i<accessors.size(); i++ ) {
+            String name = accessors.get(i).getName();
+
+            if( !isSameValue(loaded.values[i], state.get(name)) ) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    private boolean isSameValue(@Nullable Object current, @Nullable Object value) {
+        if( current == MUTABLE ) {
+            return false;
+        }
+        if( current == value ) {
+            return true;
+        }
+        if( current == null || value == null ) {
+            return false;
+        }
+        if( current.equals(value) ) {
+            return true;
+        }
+        if( current instanceof Enum && value instanceof String ) {
+            return ((Enum<?>)current).name().equals(value);
+        }
+        if( current instanceof Date && value instanceof Date ) {
+            return ((Date)current).getTime() == ((Date)value).getTime();
+        }
+        if( current instanceof Number && value instanceof Number ) {
+            try {
+                return new BigDecimal(current.toString()).compareTo(new BigDecimal(value.toString())) == 0;
+            }
+            catch( NumberFormatException e ) {
+                return false;
+            }
+        }
+        if( current.getClass().isArray() && value.getClass().isArray() ) {
+            return Arrays.deepEquals(new Object[] { current }, new Object[] { value });
+        }
+        return false;
     }
 
     public Object getValue(T item, String field) {
+        FieldPlan.Accessor accessor = FieldPlan.getInstance(item.getClass()).getAccessor(field);
+
+        if( accessor != null ) {
+            try {
+                return accessor.get(item);
+            }
+            catch( Exception e ) {
+                throw new RuntimeException(e);
+            }
+        }
         Class<?> cls = item.getClass();
         
         while( !cls.equals(Object.class) ) {
@@ -700,6 +1821,38 @@ public abstract class PersistentCache<T extends CachedItem> {
         // NO-OP
     }
 
+    /**
+     * Lists the primary key values of every stored record so that background jobs such as
+     * {@link SchemaUpgrader} can walk the store.
+     * @return the key values or <code>null</code> if this store cannot enumerate its records
+     * @throws PersistenceException an error occurred listing the keys
+     */
+    public @Nullable Collection<String> listKeys() throws PersistenceException {
+        return null;
+    }
+
+    /**
+     * Rewrites a stored record in the current schema version if it was written under an older one.
+     * @param keyValue the primary key value of the record
+     * @return true if the record was rewritten
+     * @throws PersistenceException an error occurred reading or writing the record
+     */
+    public boolean upgradeStoredRecord(@Nonnull String keyValue) throws PersistenceException {
+        return false;
+    }
+
+    /**
+     * Starts a background upgrade of all records stored under older schema versions, resuming any earlier
+     * upgrade to the current version.
+     * @return the running upgrade
+     */
+    public @Nonnull SchemaUpgrader<T> startSchemaUpgrade() {
+        SchemaUpgrader<T> upgrader = new SchemaUpgrader<T>(this);
+
+        upgrader.start();
+        return upgrader;
+    }
+
     public abstract void remove(Transaction xaction, T item) throws PersistenceException;
 
     public abstract void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException;
@@ -710,6 +1863,18 @@ public abstract class PersistentCache<T extends CachedItem> {
         map.put(fieldName, mapValue(fieldName, value, type, null));
     }
     
+    protected void set(T target, FieldPlan.Accessor accessor, Object value) throws PersistenceException {
+        try {
+            accessor.set(target, mapValue(accessor.getName(), value, accessor.getType(), accessor.getParameterizedType()));
+        }
+        catch( IllegalArgumentException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
     protected void set(T target, Field field, Object value) throws PersistenceException {
         try {
             ParameterizedType pt = null;
@@ -729,11 +1894,22 @@ public abstract class PersistentCache<T extends CachedItem> {
     
     @SuppressWarnings({ "rawtypes", "unchecked" })
     protected Object mapValue(String fieldName, Object dataStoreValue, Class<?> toType, ParameterizedType ptype) throws PersistenceException {
-        LookupDelegate delegate = getLookupDelegate(fieldName);
+        LookupDelegate delegate = (lookups.isEmpty() ? null : getLookupDelegate(fieldName));
 
         if( dataStoreValue != null && delegate != null && !delegate.validate(dataStoreValue.toString()) ) {
             throw new PersistenceException("Value " + dataStoreValue + " for " + fieldName + " is not valid.");
         }
+        TypeConverter converter = ConverterRegistry.getConverter(toType, dataStoreValue == null ? null : dataStoreValue.getClass());
+
+        if( converter != null ) {
+            try {
+                return converter.convert(fieldName, dataStoreValue, toType, ptype);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error mapping field in " + toType + " for " + fieldName + ": " + e.getMessage(), e);
+                throw new PersistenceException(e);
+            }
+        }
         try {
             if( toType.equals(String.class) ) {
                 if( dataStoreValue != null && !(dataStoreValue instanceof String) ) {
@@ -1114,38 +2290,19 @@ public abstract class PersistentCache<T extends CachedItem> {
                 }
             }
             else if( dataStoreValue != null && !toType.isAssignableFrom(dataStoreValue.getClass()) ) {
-                Annotation[] alist = toType.getDeclaredAnnotations();
-                boolean autoJSON = false;
+                AutoJSONPlan plan = AutoJSONPlan.getInstance(toType);
 
-                for( Annotation a : alist ) {
-                    if( a instanceof AutoJSON ) {
-                        autoJSON = true;
-                    }
+                if( plan.isAutoJSON() ) {
+                    dataStoreValue = autoDeJSON(plan, (JSONObject)dataStoreValue);
+                }
+                else if( plan.getValueOfJSON() != null ) {
+                    dataStoreValue = plan.getValueOfJSON().invoke(null, dataStoreValue);
                 }
-                if( autoJSON ) {
-                    dataStoreValue = autoDeJSON(toType, (JSONObject)dataStoreValue);
+                else if( plan.getValueOfString() != null ) {
+                    dataStoreValue = plan.getValueOfString().invoke(null, dataStoreValue.toString());
                 }
                 else {
-                    try {
-                        Method m = toType.getDeclaredMethod("valueOf", JSONObject.class);
-
-                        dataStoreValue = m.invoke(null, dataStoreValue);
-                    }
-                    catch( NoSuchMethodException ignore ) {
-                        try {
-                            Method m = toType.getDeclaredMethod("valueOf", String.class);
-
-                            if( m != null ) {
-                                dataStoreValue = m.invoke(null, dataStoreValue.toString());
-                            }
-                            else {
-                                throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName);
-                            }
-                        }
-                        catch( NoSuchMethodException e ) {
-                            throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName + " with " + dataStoreValue + ": (" + dataStoreValue.getClass().getName() + " vs " + toType.getName() + ")");
-                        }
-                    }
+                    throw new PersistenceException("No valueOf() field in " + toType + " for mapping " + fieldName + " with " + dataStoreValue + ": (" + dataStoreValue.getClass().getName() + " vs " + toType.getName() + ")");
                 }
             }
         }
@@ -1157,27 +2314,52 @@ public abstract class PersistentCache<T extends CachedItem> {
         return dataStoreValue;
     }
     
-    protected String toDataStoreJSONFromCurrentState(Map<String,Object> state) {
-        HashMap<String,Object> friendlyState = new HashMap<String,Object>();
-        Class<? extends Object> t = getTarget();
-        
-        while( !t.equals(Object.class) ) {
-            for( Field field : t.getDeclaredFields()) {
-                int modifiers = field.getModifiers();
-                
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
-                    continue;
-                }
-                Object value = state.get(field.getName());
-                
-                if( value != null ) {
-                    friendlyState.put(field.getName(), toJSONValue(value));
-                }
+    /**
+     * @return the codec used to read and write the JSON form of entities in this cache
+     */
+    public @Nonnull JSONCodec getJSONCodec() {
+        return codec;
+    }
+
+    /**
+     * Streams the JSON form of the specified state to the output stream, field by field, using the codec of this cache.
+     * @param state the state to write
+     * @param out the stream to write to, left open
+     * @throws IOException an error occurred writing the stream
+     */
+    protected void writeDataStoreJSON(@Nonnull Map<String,Object> state, @Nonnull OutputStream out) throws IOException {
+        JSONCodec.ObjectWriter writer = codec.newWriter(out);
+
+        writer.field("SCHEMA_VERSION", getSchemaVersion());
+        for( FieldPlan.Accessor accessor : getFieldPlan().getAccessors() ) {
+            Object value = state.get(accessor.getName());
+
+            if( value != null ) {
+                writer.field(accessor.getName(), toJSONValue(value));
             }
-            t = t.getSuperclass();
         }
-        friendlyState.put("SCHEMA_VERSION", getSchemaVersion());
-        return new JSONObject(friendlyState).toString();
+        writer.close();
+    }
+
+    protected @Nonnull byte[] toDataStoreJSONBytes(@Nonnull Map<String,Object> state) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        try {
+            writeDataStoreJSON(state, out);
+        }
+        catch( IOException e ) {
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    protected String toDataStoreJSONFromCurrentState(Map<String,Object> state) {
+        try {
+            return new String(toDataStoreJSONBytes(state), "utf-8");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
     }
     
 
@@ -1302,101 +2484,67 @@ public abstract class PersistentCache<T extends CachedItem> {
             return replacement;
         }
         else {
-            Annotation[] alist = value.getClass().getDeclaredAnnotations();
-            boolean autoJSON = false;
+            AutoJSONPlan plan = AutoJSONPlan.getInstance(value.getClass());
 
-            for( Annotation a : alist ) {
-                if( a instanceof AutoJSON ) {
-                    autoJSON = true;
-                }
+            if( plan.isAutoJSON() ) {
+                return autoJSON(plan, value);
             }
-            if( autoJSON ) {
-                return autoJSON(value);
-            }
-            else {
+            else if( plan.getToJSON() != null ) {
                 try {
-                    Method m = value.getClass().getDeclaredMethod("toJSON");
-
-                    return (JSONObject)m.invoke(value);
+                    return (JSONObject)plan.getToJSON().invoke(value);
                 }
                 catch( Exception e ) {
                     return value.toString();
                 }
             }
+            return value.toString();
         }
     }
 
-    private @Nonnull JSONObject autoJSON(@Nonnull Object ob) {
+    private @Nonnull JSONObject autoJSON(@Nonnull AutoJSONPlan plan, @Nonnull Object ob) {
         HashMap<String,Object> json = new HashMap<String, Object>();
-        Class<?> cls = ob.getClass();
-
-        while( !(cls.getName().equals(Object.class.getName())) ) {
-            Field[] fields = cls.getDeclaredFields();
 
-            for( Field field : fields ) {
-                int modifiers = field.getModifiers();
-
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
-                    continue;
-                }
-                field.setAccessible(true);
-                try {
-                    Object value = field.get(ob);
-
-                    value = toJSONValue(value);
-                    json.put(field.getName(), value);
-                }
-                catch( IllegalAccessException e ) {
-                    // this should not happen, don't map
-                    logger.warn("Illegal access exception mapping " + cls.getName() + "." + field.getName() + ": " + e.getMessage(), e);
-                }
+        for( FieldPlan.Accessor accessor : plan.getAccessors() ) {
+            try {
+                json.put(accessor.getName(), toJSONValue(accessor.get(ob)));
+            }
+            catch( IllegalAccessException e ) {
+                // this should not happen, don't map
+                logger.warn("Illegal access exception mapping " + ob.getClass().getName() + "." + accessor.getName() + ": " + e.getMessage(), e);
             }
-            cls = cls.getSuperclass();
         }
         return new JSONObject(json);
     }
 
-    private @Nonnull <T> T autoDeJSON(@Nonnull Class<T> targetClass, @Nonnull JSONObject ob) throws PersistenceException {
-        Class<?> cls = targetClass;
-
-        T item;
+    private @Nonnull Object autoDeJSON(@Nonnull AutoJSONPlan plan, @Nonnull JSONObject ob) throws PersistenceException {
+        Object item;
 
         try {
-            item = targetClass.newInstance();
+            item = plan.newInstance();
         }
         catch( Exception e ) {
             throw new PersistenceException(e);
         }
-        while( !(cls.getName().equals(Object.class.getName())) ) {
-            Field[] fields = cls.getDeclaredFields();
-
-            for( Field field : fields ) {
-                int modifiers = field.getModifiers();
+        for( FieldPlan.Accessor accessor : plan.getAccessors() ) {
+            String name = accessor.getName();
+            Object value = null;
 
-                if( Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) ) {
-                    continue;
+            if( ob.has(name) ) {
+                try {
+                    value = mapValue(name, ob.get(name), accessor.getType(), null);
                 }
-                field.setAccessible(true);
-                Object value = null;
-
-                if( ob.has(field.getName()) ) {
-                    try {
-                        value = mapValue(field.getName(), ob.get(field.getName()), field.getType(), null);
-                    }
-                    catch( JSONException e ) {
-                        logger.warn("JSON error mapping " + targetClass.getName() + "." + field.getName() + ": " + e.getMessage(), e);
-                    }
+                catch( JSONException e ) {
+                    logger.warn("JSON error mapping " + item.getClass().getName() + "." + name + ": " + e.getMessage(), e);
                 }
-                if( value != null || !field.getType().isPrimitive() ) {
-                    try {
-                        field.set(item, value);
-                    }
-                    catch( IllegalAccessException e ) {
-                        logger.warn("Could not set " + targetClass.getName() + "." + field.getName() + ": " + e.getMessage(), e);
-                    }
+            }
+            if( value != null || !accessor.getType().isPrimitive() ) {
+                try {
+                    accessor.set(item, value);
+                }
+                catch( IllegalAccessException e ) {
+                    logger.warn("Could not set " + item.getClass().getName() + "." + name + ": " + e.getMessage(), e);
                 }
             }
-            cls = cls.getSuperclass();
         }
         return item;
     }
@@ -1405,21 +2553,11 @@ public abstract class PersistentCache<T extends CachedItem> {
         try {
             HashMap<String,Object> values = new HashMap<String,Object>();
             JSONObject j = new JSONObject(json);
-            Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
-            
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        String fieldName = field.getName();
-                        
-                        set(values, fieldName, j.has(fieldName) ? j.get(fieldName) : null, field.getType());
-                    }
-                }
-                t = t.getSuperclass();
+            for( FieldPlan.Accessor accessor : getFieldPlan().getAccessors() ) {
+                String fieldName = accessor.getName();
+
+                set(values, fieldName, j.has(fieldName) ? j.get(fieldName) : null, accessor.getType());
             }
             return values;
         }
@@ -1436,6 +2574,87 @@ public abstract class PersistentCache<T extends CachedItem> {
         }
     }
     
+    /**
+     * Decodes an entity from a JSON document carrying its own <code>SCHEMA_VERSION</code>.
+     * @param json the JSON document
+     * @return the decoded entity
+     * @throws PersistenceException the document could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromJSON(@Nonnull String json) throws PersistenceException {
+        try {
+            return toTargetFromJSON(codec.newParser(new StringReader(json)));
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Decodes an entity directly from a stream of JSON without first reading the stream into a string.
+     * @param in the stream holding a single JSON document
+     * @return the decoded entity
+     * @throws PersistenceException the document could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromJSON(@Nonnull InputStream in) throws PersistenceException {
+        try {
+            return toTargetFromJSON(codec.newParser(in));
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Decodes the next object of a JSON stream into an entity.
+     * @param parser the parser positioned before the object
+     * @return the decoded entity
+     * @throws PersistenceException the object could not be read or mapped
+     */
+    protected @Nonnull T toTargetFromJSON(@Nonnull JSONCodec.Parser parser) throws PersistenceException {
+        Map<String,Object> fields;
+
+        try {
+            fields = parser.nextObject();
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+        Object version = fields.get("SCHEMA_VERSION");
+
+        return toTargetFromFields(version == null ? "0" : version.toString(), fields);
+    }
+
+    /**
+     * Builds an entity from the top-level fields of a decoded JSON document.
+     * @param sourceVersion the schema version the document was written with
+     * @param fields the fields of the document
+     * @return the new entity
+     * @throws PersistenceException the fields could not be mapped
+     */
+    protected @Nonnull T toTargetFromFields(@Nonnull String sourceVersion, @Nonnull Map<String,Object> fields) throws PersistenceException {
+        if( getSchemaMapperChain(sourceVersion).length > 0 ) {
+            return toTargetFromJSON(sourceVersion, new JSONObject(fields));
+        }
+        try {
+            T item = getTarget().newInstance();
+
+            for( FieldPlan.Accessor accessor : getFieldPlan().getAccessors() ) {
+                set(item, accessor, fields.get(accessor.getName()));
+            }
+            return item;
+        }
+        catch( InstantiationException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( RuntimeException e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e);
+        }
+    }
+
     protected @Nonnull T toTargetFromJSON(@Nonnull String schemaVersion, @Nonnull String json) throws PersistenceException {
         try {
             return toTargetFromJSON(schemaVersion, new JSONObject(json));
@@ -1447,30 +2666,17 @@ public abstract class PersistentCache<T extends CachedItem> {
     
     protected @Nonnull T toTargetFromJSON(@Nonnull String sourceVersion, @Nonnull JSONObject j) throws PersistenceException {
         try {
-            while( !sourceVersion.equals(schemaVersion) ) {
-                SchemaMapper mapper = getSchemaMapper(sourceVersion);
-
-                if( mapper == null ) {
-                    break;
-                }
+            for( SchemaMapper mapper : getSchemaMapperChain(sourceVersion) ) {
                 j = mapper.map(sourceVersion, j);
                 sourceVersion = mapper.getTargetVersion();
             }
             Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
             T item = targetClass.newInstance();
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        Object value = (j.has(field.getName()) ? j.get(field.getName()) : null);
+            for( FieldPlan.Accessor accessor : getFieldPlan().getAccessors() ) {
+                String name = accessor.getName();
 
-                        set(item, field, value);
-                    }
-                }
-                t = t.getSuperclass();
+                set(item, accessor, j.has(name) ? j.get(name) : null);
             }
             return item;
         }
@@ -1495,30 +2701,15 @@ public abstract class PersistentCache<T extends CachedItem> {
     
     protected @Nonnull T toTargetFromMap(@Nonnull String dataStoreVersion, @Nonnull Map<String,Object> dataStoreState) throws PersistenceException {
         try {
-            while( !dataStoreVersion.equals(schemaVersion) ) {
-                SchemaMapper mapper = getSchemaMapper(dataStoreVersion);
-
-                if( mapper == null ) {
-                    break;
-                }
+            for( SchemaMapper mapper : getSchemaMapperChain(dataStoreVersion) ) {
                 dataStoreState = mapper.map(dataStoreVersion, dataStoreState);
                 dataStoreVersion = mapper.getTargetVersion();
             }
             Class<T> targetClass = getTarget();
-            Class<? extends Object> t = targetClass;
             T item = targetClass.newInstance();
 
-            while( !t.getName().equals(Object.class.getName()) ) {
-                for( Field field : t.getDeclaredFields() ) {
-                    int modifiers = field.getModifiers();
-                    
-                    if( !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) ) {
-                        Object value = dataStoreState.get(field.getName());
-
-                        set(item, field, value);
-                    }
-                }
-                t = t.getSuperclass();
+            for( FieldPlan.Accessor accessor : getFieldPlan().getAccessors() ) {
+                set(item, accessor, dataStoreState.get(accessor.getName()));
             }
             return item;
         }
@@ -1538,6 +2729,137 @@ public abstract class PersistentCache<T extends CachedItem> {
         }
     }
     
+    /**
+     * The field accessors matching the columns of a row layout, resolved once for all rows of a query.
+     */
+    static private class RowBinding {
+        private final FieldPlan.Accessor[] accessors;
+        private final Row.Layout           layout;
+
+        private RowBinding(Row.Layout layout, FieldPlan plan) {
+            this.layout = layout;
+            accessors = new FieldPlan.Accessor[layout.size()];
+            for( int i=0; i<accessors.length; i++ ) {
+                accessors[i] = plan.getAccessor(layout.getColumn(i));
+            }
+        }
+    }
+
+    private final CacheLoader<T> rowLoader = new CacheLoader<T>() {
+        @SuppressWarnings("unchecked")
+        public T load(Object ... args) {
+            try {
+                return toTargetFromRow((Map<String,Object>)args[0]);
+            }
+            catch( PersistenceException e ) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * Builds an entity straight from a row loaded from the data store. Rows produced by the JDBC loader are
+     * read positionally against accessors resolved once per query; fields without a column keep their defaults.
+     * @param row the row to convert
+     * @return the new entity
+     * @throws PersistenceException the row could not be mapped onto the entity
+     */
+    protected @Nonnull T toTargetFromRow(@Nonnull Map<String,Object> row) throws PersistenceException {
+        try {
+            T item = getTarget().newInstance();
+
+            if( row instanceof Row ) {
+                Row r = (Row)row;
+                RowBinding binding = rowBinding;
+
+                if( binding == null || binding.layout != r.getLayout() ) {
+                    binding = new RowBinding(r.getLayout(), getFieldPlan());
+                    rowBinding = binding;
+                }
+                for( int i=0; i<binding.accessors.length; i++ ) {
+                    if( binding.accessors[i] != null && r.hasValue(i) ) {
+                        setLoaded(item, binding.accessors[i], r.getValue(i));
+                    }
+                }
+                if( r.size() == binding.accessors.length ) {
+                    return recordLoadedState(item);
+                }
+            }
+            FieldPlan plan = getFieldPlan();
+
+            for( Map.Entry<String,Object> entry : row.entrySet() ) {
+                if( row instanceof Row && ((Row)row).getLayout().indexOf(entry.getKey()) > -1 ) {
+                    continue;
+                }
+                FieldPlan.Accessor accessor = plan.getAccessor(entry.getKey());
+
+                if( accessor != null ) {
+                    setLoaded(item, accessor, entry.getValue());
+                }
+            }
+            return recordLoadedState(item);
+        }
+        catch( InstantiationException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( RuntimeException e ) {
+            logger.error(e.getMessage(), e);
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Sets a value read from the data store. The column readers already produce values of the field's type,
+     * which are set as is just as a map loader would; only values that do not fit the field go through
+     * {@link #mapValue(String, Object, Class, ParameterizedType)}.
+     * @param target the entity being loaded
+     * @param accessor the field to set
+     * @param value the value read from the data store
+     * @throws PersistenceException the value could not be mapped onto the field
+     */
+    private void setLoaded(@Nonnull T target, @Nonnull FieldPlan.Accessor accessor, @Nullable Object value) throws PersistenceException {
+        if( !accessor.accepts(value) ) {
+            set(target, accessor, value);
+            return;
+        }
+        try {
+            accessor.set(target, value);
+        }
+        catch( IllegalAccessException e ) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Resolves a loaded row to its cached instance, converting the row into a new entity only when the item
+     * is not already in memory.
+     * @param row the row loaded from the data store
+     * @return the cached instance for the row
+     * @throws PersistenceException an error occurred converting the row
+     */
+    protected @Nullable T findFromRow(@Nonnull Map<String,Object> row) throws PersistenceException {
+        Object key = row.get(getPrimaryKeyField());
+
+        if( key == null ) {
+            return getCache().find(row);
+        }
+        try {
+            return getCache().find(getPrimaryKeyField(), key, rowLoader, row);
+        }
+        catch( CacheManagementException e ) {
+            throw new PersistenceException(e);
+        }
+        catch( RuntimeException e ) {
+            if( e.getCause() instanceof PersistenceException ) {
+                throw (PersistenceException)e.getCause();
+            }
+            throw e;
+        }
+    }
+
     public void updateAll(Transaction xaction, Map<String,Object> state, SearchTerm ... terms) throws PersistenceException {
         for( T item : find(terms) ) {
             Map<String,Object> copy = new HashMap<String,Object>();
@@ -1552,6 +2874,9 @@ public abstract class PersistentCache<T extends CachedItem> {
      */
     public void releaseAll() {
     	getCache().releaseAll();
+    	if( offHeap != null ) {
+    	    offHeap.clear();
+    	}
     }
 
     static public void main(String ... args) throws Exception {
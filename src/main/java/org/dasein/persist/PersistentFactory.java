@@ -32,8 +32,10 @@ import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -230,6 +232,10 @@ public final class PersistentFactory<T> {
     private HashMap<String,Class<? extends Execution>> joins        = new HashMap<String,Class<? extends Execution>>();
     private HashMap<String,Class<? extends Execution>> joinCounters = new HashMap<String,Class<? extends Execution>>();
     private String                                     key          = null;
+    /**
+     * Whether find results hold their rows and build each object only as it is iterated.
+     */
+    private boolean                                    lazy         = false;
     /**
      * A mapping of single attribute searches to the query associated with them.
      */
@@ -1685,6 +1691,41 @@ public final class PersistentFactory<T> {
         return params;
     }
 
+    /**
+     * Resolves a single result row to its object, preferring any copy already cached under one of
+     * the singleton keys before building a new one.
+     * @param map the column values of the row
+     * @return the object for the row
+     * @throws PersistenceException an error occurred loading the object's dependencies
+     */
+    private T toItem(Map<String,Object> map) throws PersistenceException {
+        T item = null;
+
+        if( singletons.size() > 0 ) {
+            for( String key : singletons.keySet() ) {
+                Object ob = map.get(key);
+
+                if( ob instanceof java.math.BigDecimal ) {
+                    java.math.BigDecimal tmp = (java.math.BigDecimal)ob;
+
+                    ob = tmp.longValue();
+                    map.put(key, ob);
+                }
+                item = cache.find(key, ob);
+                if( item != null ) {
+                    break;
+                }
+            }
+        }
+        if( item == null ) {
+            if( dependency != null ) {
+                dependency.loadDependencies(map);
+            }
+            item = cache.find(map);
+        }
+        return item;
+    }
+
     private class PersistentFactoryTask implements Runnable {
         private final Jiterator<T> it;
         private final Map<String,Object> results;
@@ -1698,35 +1739,14 @@ public final class PersistentFactory<T> {
         public void run() {
             try {
                 for( Map<String,Object> map: (Collection<Map<String,Object>>)this.results.get(LISTING) ) {
-                    T item = null;
-
-                    if( singletons.size() > 0 ) {
-                        for( String key : singletons.keySet() ) {
-                            Object ob = map.get(key);
-
-                            if( ob instanceof java.math.BigDecimal ) {
-                                java.math.BigDecimal tmp = (java.math.BigDecimal)ob;
+                    T item;
 
-                                ob = tmp.longValue();
-                                map.put(key, ob);
-                            }
-                            item = cache.find(key, ob);
-                            if( item != null ) {
-                                break;
-                            }
-                        }
+                    try {
+                        item = toItem(map);
                     }
-                    if( item == null ) {
-                        if( dependency != null ) {
-                            try {
-                                dependency.loadDependencies(map);
-                            }
-                            catch( PersistenceException e ) {
-                                it.setLoadException(e);
-                                return;
-                            }
-                        }
-                        item = cache.find(map);
+                    catch( PersistenceException e ) {
+                        it.setLoadException(e);
+                        return;
                     }
                     this.it.push(item);
                 }
@@ -1755,6 +1775,16 @@ public final class PersistentFactory<T> {
                 
                 results = xaction.execute(cls, params);
                 xaction.commit();
+                if( lazy ) {
+                    Collection<Map<String,Object>> rows = (Collection<Map<String,Object>>)results.get(LISTING);
+
+                    return new LazyCollection<T>((rows instanceof List ? (List<Map<String,Object>>)rows : new ArrayList<Map<String,Object>>(rows)), new LazyCollection.Materializer<T>() {
+                        @Override
+                        public T materialize(Map<String,Object> row) throws PersistenceException {
+                            return toItem(row);
+                        }
+                    }, filter);
+                }
                 DaseinUtilTasks.submit(new PersistentFactoryTask(it, results));
                 return new JitCollection<T>(it, cache.getTarget().getName());
             }
@@ -1936,6 +1966,16 @@ public final class PersistentFactory<T> {
         importHook = hook;
     }
     
+    /**
+     * Turns on lazy materialization of find results. Rows stay in column form and each object is
+     * resolved through the cache only when an iterator reaches it. A filter that also implements
+     * {@link RowFilter} is consulted on the raw row first.
+     * @param lazy true to materialize find results lazily
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+    
     /**
      * Sets the class that manages the query that will remove objects in this factory
      * from the data store.
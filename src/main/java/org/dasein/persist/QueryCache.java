@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+
+/**
+ * Caches the primary key values matched by <code>find()</code> queries so that repeat queries can be answered
+ * from the primary cache. Queries are grouped by shape (their columns, operators and ordering). When a row is
+ * written, shapes whose queries compare every column for equality drop only the one result the row could belong
+ * to, while other shapes drop all of their results. Updates that do not change any column a shape touches leave
+ * that shape alone.
+ * <p>
+ * Writers should invalidate both when they write and again once their transaction commits, since a query run in
+ * between still sees the old rows. Each invalidation moves the shape to a new generation, and results are only
+ * cached if the shape is still at the generation their ticket was prepared in.
+ * </p>
+ */
+public class QueryCache {
+    /**
+     * Provides the column values of a row being written.
+     */
+    static public interface Row {
+        public @Nullable Object getValue(@Nonnull String column);
+    }
+
+    /**
+     * Identifies a cacheable query and remembers the state of the cache when the query was started so that
+     * results computed before a concurrent write are not cached.
+     */
+    static public class Ticket {
+        private final long   generation;
+        private final Shape  shape;
+        private final String values;
+
+        private Ticket(@Nonnull Shape shape, @Nonnull String values) {
+            this.shape = shape;
+            this.values = values;
+            this.generation = shape.generation.get();
+        }
+    }
+
+    static private class Shape {
+        private final String[]                       columns;
+        private final boolean                        exact;
+        private final AtomicLong                     generation = new AtomicLong(0L);
+        private final BoundedCache<String,Object[]>  results;
+        private final HashSet<String>                touched    = new HashSet<String>();
+
+        private Shape(@Nonnull SearchTerm[] sorted, @Nullable String[] orderFields, int maxEntries, long ttl) {
+            boolean eq = true;
+
+            columns = new String[sorted.length];
+            for( int i=0; i<sorted.length; i++ ) {
+                columns[i] = sorted[i].getColumn();
+                touched.add(columns[i]);
+                if( !Operator.EQUALS.equals(sorted[i].getOperator()) ) {
+                    eq = false;
+                }
+            }
+            if( orderFields != null ) {
+                touched.addAll(Arrays.asList(orderFields));
+            }
+            exact = eq;
+            results = new BoundedCache<String,Object[]>(maxEntries, ttl, 0L, null);
+        }
+
+        private boolean isTouched(@Nonnull Row before, @Nonnull Row after) {
+            for( String column : touched ) {
+                String a = toKeyValue(before.getValue(column));
+                String b = toKeyValue(after.getValue(column));
+
+                if( a == null ? b != null : !a.equals(b) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void invalidate(@Nonnull Row row) {
+            generation.incrementAndGet();
+            if( exact ) {
+                results.remove(toValues(row));
+            }
+            else {
+                results.clear();
+            }
+        }
+
+        private synchronized void invalidate() {
+            generation.incrementAndGet();
+            results.clear();
+        }
+
+        private synchronized void put(@Nonnull Ticket ticket, @Nonnull Object[] keys) {
+            if( generation.get() == ticket.generation ) {
+                results.put(ticket.values, keys);
+            }
+        }
+
+        private @Nonnull String toValues(@Nonnull Row row) {
+            StringBuilder str = new StringBuilder();
+
+            for( String column : columns ) {
+                str.append(toKeyValue(row.getValue(column))).append('\0');
+            }
+            return str.toString();
+        }
+    }
+
+    static private final Comparator<SearchTerm> byColumn = new Comparator<SearchTerm>() {
+        public int compare(SearchTerm a, SearchTerm b) {
+            int x = a.getColumn().compareTo(b.getColumn());
+
+            if( x == 0 ) {
+                x = a.getOperator().compareTo(b.getOperator());
+            }
+            return x;
+        }
+    };
+
+    static private @Nullable String toKeyValue(@Nullable Object value) {
+        if( value == null ) {
+            return null;
+        }
+        if( value instanceof Enum ) {
+            return ((Enum<?>)value).name();
+        }
+        return value.toString();
+    }
+
+    private final int                                maxEntries;
+    private final ConcurrentHashMap<String,Shape>    shapes = new ConcurrentHashMap<String,Shape>();
+    private final CacheStatistics                    statistics;
+    private final long                               ttl;
+
+    /**
+     * Constructs a query cache.
+     * @param maxEntries the maximum number of cached results per query shape
+     * @param ttl the number of milliseconds a cached result may be used, 0 for no limit
+     */
+    public QueryCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, null);
+    }
+
+    /**
+     * Constructs a query cache that adds the results of each query shape as a tier of the specified statistics.
+     * @param maxEntries the maximum number of cached results per query shape
+     * @param ttl the number of milliseconds a cached result may be used, 0 for no limit
+     * @param statistics the statistics of the cache owning this query cache
+     */
+    public QueryCache(int maxEntries, long ttl, @Nullable CacheStatistics statistics) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Provides the primary key values previously cached for the specified query.
+     * @param ticket the ticket identifying the query
+     * @return the cached primary key values in result order or <code>null</code> if none are cached
+     */
+    public @Nullable Object[] get(@Nonnull Ticket ticket) {
+        return ticket.shape.results.get(ticket.values);
+    }
+
+    /**
+     * Drops every cached result.
+     */
+    public void invalidate() {
+        for( Shape shape : shapes.values() ) {
+            shape.invalidate();
+        }
+    }
+
+    /**
+     * Drops any cached result that a row being created or removed could belong to.
+     * @param row the row being written
+     */
+    public void invalidate(@Nonnull Row row) {
+        for( Shape shape : shapes.values() ) {
+            shape.invalidate(row);
+        }
+    }
+
+    /**
+     * Drops any cached result that a row being updated could have belonged to or could now belong to.
+     * @param before the values of the row before the update
+     * @param after the values of the row after the update
+     */
+    public void invalidate(@Nonnull Row before, @Nonnull Row after) {
+        for( Shape shape : shapes.values() ) {
+            if( shape.isTouched(before, after) ) {
+                shape.invalidate(before);
+                shape.invalidate(after);
+            }
+        }
+    }
+
+    /**
+     * Identifies the specified query for lookups in and additions to this cache.
+     * @param terms the terms of the query
+     * @param orderDesc whether the results are in descending order
+     * @param orderFields the fields by which the results are ordered
+     * @return a ticket for the query or <code>null</code> if the query cannot be cached
+     */
+    public @Nullable Ticket prepare(@Nullable SearchTerm[] terms, @Nullable Boolean orderDesc, @Nullable String ... orderFields) {
+        SearchTerm[] sorted = (terms == null ? new SearchTerm[0] : Arrays.copyOf(terms, terms.length));
+
+        for( SearchTerm term : sorted ) {
+            Object value = term.getValue();
+
+            // joins read other tables and ranges/collections cannot be matched against a single row value
+            if( term.getJoinEntity() != null || value instanceof Range || value instanceof Collection || (value != null && value.getClass().isArray()) ) {
+                return null;
+            }
+        }
+        Arrays.sort(sorted, byColumn);
+
+        StringBuilder key = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for( SearchTerm term : sorted ) {
+            key.append(term.getColumn()).append(' ').append(term.getOperator().name()).append(',');
+            values.append(toKeyValue(term.getValue())).append('\0');
+        }
+        key.append('|');
+        if( orderFields != null ) {
+            for( String field : orderFields ) {
+                key.append(field).append(',');
+            }
+        }
+        key.append('|').append(orderDesc != null && orderDesc);
+
+        Shape shape = shapes.get(key.toString());
+
+        if( shape == null ) {
+            Shape s = new Shape(sorted, orderFields, maxEntries, ttl);
+
+            shape = shapes.putIfAbsent(key.toString(), s);
+            if( shape == null ) {
+                shape = s;
+                if( statistics != null ) {
+                    statistics.addTier("query " + key, s.results);
+                }
+            }
+        }
+        return new Ticket(shape, values.toString());
+    }
+
+    /**
+     * Caches the primary key values matched by a query unless a write affecting the query happened since the
+     * ticket was prepared.
+     * @param ticket the ticket identifying the query
+     * @param keys the matching primary key values in result order
+     */
+    public void put(@Nonnull Ticket ticket, @Nonnull Object[] keys) {
+        ticket.shape.put(ticket, keys);
+    }
+}
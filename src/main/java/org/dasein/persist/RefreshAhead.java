@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs background reloads of cache entries that are about to expire on a small, bounded pool of daemon threads
+ * shared by all caches. The pool size is set by <code>dsn.refresh.threads</code> (default 2) and the number of
+ * waiting reloads by <code>dsn.refresh.queue</code> (default 1000). Reloads beyond that are dropped, in which case
+ * the entry simply expires and is reloaded on demand as before.
+ */
+public final class RefreshAhead {
+    static private final Logger logger = Logger.getLogger(RefreshAhead.class);
+
+    static private ThreadPoolExecutor executor = null;
+
+    static private @Nonnull ThreadPoolExecutor getExecutor() {
+        synchronized( RefreshAhead.class ) {
+            if( executor == null ) {
+                int threads = 2, queue = 1000;
+
+                try {
+                    threads = Integer.parseInt(PersistentCache.getProperties().getProperty("dsn.refresh.threads", "2").trim());
+                    queue = Integer.parseInt(PersistentCache.getProperties().getProperty("dsn.refresh.queue", "1000").trim());
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Invalid refresh-ahead settings: " + e.getMessage());
+                }
+                executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadFactory() {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+
+                        t.setName("DASEIN CACHE REFRESH " + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Schedules a background reload.
+     * @param reload the reload to run
+     * @return true if the reload was scheduled, false if too many reloads are already waiting
+     */
+    static public boolean submit(@Nonnull final Runnable reload) {
+        try {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        reload.run();
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Problem refreshing cache entry: " + t.getMessage());
+                    }
+                }
+            });
+            return true;
+        }
+        catch( RejectedExecutionException e ) {
+            return false;
+        }
+    }
+
+    private RefreshAhead() { }
+}
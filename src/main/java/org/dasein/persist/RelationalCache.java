@@ -20,17 +20,23 @@ package org.dasein.persist;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
 import org.dasein.persist.jdbc.AutomatedSql.TranslationMethod;
+import org.dasein.persist.jdbc.BatchLoader;
 import org.dasein.persist.jdbc.Counter;
 import org.dasein.persist.jdbc.Creator;
 import org.dasein.persist.jdbc.Deleter;
 import org.dasein.persist.jdbc.Loader;
+import org.dasein.persist.jdbc.StatementPlan;
 import org.dasein.persist.jdbc.Updater;
 import org.dasein.util.CacheLoader;
 import org.dasein.util.CacheManagementException;
@@ -43,6 +49,11 @@ import org.dasein.util.JiteratorFilter;
 public final class RelationalCache<T extends CachedItem> extends PersistentCache<T> {
     static public final Logger logger = Logger.getLogger(RelationalCache.class);
 
+    /**
+     * The most primary key values loaded with a single query when resolving cached query results.
+     */
+    static private final int BATCH_SIZE = 500;
+
     static public class OrderedColumn {
         public String  column;
         public boolean descending = false;
@@ -52,7 +63,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     private TranslationMethod translationMethod = TranslationMethod.NONE;
     private String            writeDataSource   = null;
     
-    private ConcurrentHashMap<String,ConcurrentHashMap<String,T>> secondaryCache = null;
+    private ConcurrentHashMap<String,BoundedCache<String,T>> secondaryCache = null;
     
     public RelationalCache() { }
     
@@ -74,10 +85,93 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         
         if (keys != null && keys.length > 0) {
         	
-        	secondaryCache = new ConcurrentHashMap<String,ConcurrentHashMap<String,T>>(keys.length);
+        	int maxEntries = getCacheProperty("secondary.maxEntries", 10000);
+        	long expireAfterWrite = getCacheProperty("expireAfterWrite", 0L);
+        	long expireAfterAccess = getCacheProperty("expireAfterAccess", 0L);
+
+        	secondaryCache = new ConcurrentHashMap<String,BoundedCache<String,T>>(keys.length);
         	for (Key k : keys) {
-        		secondaryCache.put(k.toString(), new ConcurrentHashMap<String,T>(0));
+        		BoundedCache<String,T> c = new BoundedCache<String,T>(maxEntries, expireAfterWrite, expireAfterAccess, null);
+
+        		secondaryCache.put(k.toString(), c);
+        		getStatistics().addTier(k.toString(), c);
         	}
+        	long refreshWindow = getCacheProperty("refresh.window", 0L);
+
+        	if( refreshWindow > 0L ) {
+        	    for( final Key k : keys ) {
+        	        final BoundedCache<String,T> c = secondaryCache.get(k.toString());
+
+        	        c.setRefresher(refreshWindow, new BoundedCache.Refresher<String,T>() {
+        	            public void refresh(final String keyValue, final T item) {
+        	                RefreshAhead.submit(new Runnable() {
+        	                    public void run() {
+        	                        try {
+        	                            reload(k, c, keyValue, item);
+        	                        }
+        	                        catch( PersistenceException e ) {
+        	                            logger.warn("Unable to refresh " + k + "=" + keyValue + ": " + e.getMessage());
+        	                        }
+        	                    }
+        	                });
+        	            }
+        	        });
+        	    }
+        	}
+        	String versionField = getCacheProperty("revalidate.field");
+
+        	if( versionField != null && versionField.length() > 0 && expireAfterWrite > 0L ) {
+        	    if( !VersionRevalidator.hasField(cls, versionField) ) {
+        	        logger.warn("No " + versionField + " field in " + cls.getName() + " to revalidate against");
+        	    }
+        	    else {
+        	        int batchSize = getCacheProperty("revalidate.batchSize", 100);
+
+        	        for( Key k : keys ) {
+        	            final BoundedCache<String,T> c = secondaryCache.get(k.toString());
+
+        	            c.setRevalidator(new VersionRevalidator<String,T>(this, readDataSource, versionField, batchSize, new VersionRevalidator.Outcome<String,T>() {
+        	                public void current(String keyValue, T item) {
+        	                    restoreRevalidated(c, keyValue, item);
+        	                }
+
+        	                public void stale(String keyValue, T item) {
+        	                    // dropped, the next lookup reloads it
+        	                }
+
+        	                public void expired(String keyValue, T item) {
+        	                    // dropped as it would be without revalidation
+        	                }
+        	            }));
+        	        }
+        	    }
+        	}
+        }
+    }
+
+    /**
+     * Reloads the object matching a secondary key value that is about to expire and replaces the cached match,
+     * which keeps being served until then.
+     * @param key the secondary key
+     * @param cache the cache for the secondary key
+     * @param keyValue the value of the secondary key
+     * @param item the currently cached match
+     * @throws PersistenceException an error occurred talking to the data store
+     */
+    private void reload(Key key, BoundedCache<String,T> cache, String keyValue, T item) throws PersistenceException {
+        String[] fields = key.getFields();
+        SearchTerm[] terms = new SearchTerm[fields.length];
+
+        for( int i=0; i<fields.length; i++ ) {
+            terms[i] = new SearchTerm(fields[i], Operator.EQUALS, getValue(item, fields[i]));
+        }
+        Collection<T> list = load(getLoader(terms, null), null, toParams(terms), null);
+
+        if( list.isEmpty() ) {
+            cache.remove(keyValue);
+        }
+        else {
+            cache.put(keyValue, list.iterator().next());
         }
     }
     
@@ -88,9 +182,11 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     private Counter getCounter(SearchTerm[] whereTerms) {
         final SearchTerm[] terms = whereTerms;
         final RelationalCache<T> self = this;
+        final StatementPlan plan = getPlan("counter", terms, false);
         
         Counter counter = new Counter() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 if( terms != null && terms.length > 0 ) {
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>(terms.length);
@@ -132,9 +228,11 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     private Deleter getDeleter(SearchTerm ... terms) {
         final SearchTerm[] killTerms = terms;
         final RelationalCache<T> self = this;
+        final StatementPlan plan = getPlan("deleter", killTerms, false);
         
         Deleter deleter = new Deleter() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 if( killTerms != null && killTerms.length > 0 ) {
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>(killTerms.length);
@@ -162,13 +260,44 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         return deleter;
     }
     
+    private BatchLoader getBatchLoader(int count) {
+        final int size = count;
+        final RelationalCache<T> self = this;
+        final StatementPlan plan = getPlan("batch", null, false);
+
+        BatchLoader loader = new BatchLoader() {
+            public void init() {
+                setPlan(plan);
+                setTarget(self.getEntityClassName());
+                setBatch(self.getPrimaryKeyField(), size);
+                switch (translationMethod) {
+                case CUSTOM: setCustomTranslating(); break;
+                case STANDARD: setTranslating(true); break;
+                case NONE: setTranslating(false); break;
+                }
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        return loader;
+    }
+
     private Loader getLoader(SearchTerm[] whereTerms, OrderedColumn[] orderBy) {
         final SearchTerm[] terms = whereTerms;
         final OrderedColumn[] order = orderBy;
         final RelationalCache<T> self = this;
+        String[] orderColumns = new String[order == null ? 0 : order.length];
+
+        for( int i=0; i<orderColumns.length; i++ ) {
+            orderColumns[i] = order[i].column;
+        }
+        final StatementPlan plan = getPlan("loader", terms, orderColumns.length > 0 && order[0].descending, orderColumns);
         
         Loader loader = new Loader() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 setEntityJoins(getJoins());
                 if( terms != null && terms.length > 0 ) {
@@ -202,7 +331,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         return loader;
     }
     
-    private Updater getUpdater() {
+    private Updater getUpdater(Collection<String> changed) {
         final RelationalCache<T> self = this;
         
         Updater updater = new Updater() {
@@ -220,6 +349,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 return false;
             }
         };
+        updater.setChangedFields(changed);
         return updater;
     }
     
@@ -232,21 +362,25 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     public long count() throws PersistenceException {
         logger.debug("enter - count()");
         try {
-            Transaction xaction = Transaction.getInstance(true);
-            Counter counter = getCounter(null);            
+            return cachedCount(null, new Callable<Long>() {
+                public Long call() throws PersistenceException {
+                    Transaction xaction = Transaction.getInstance(true);
+                    Counter counter = getCounter(null);            
             
-            try {
-                Map<String,Object> results;
-                long count;
+                    try {
+                        Map<String,Object> results;
+                        long count;
     
-                results = xaction.execute(counter, new HashMap<String,Object>(0), readDataSource);
-                count = ((Number)results.get("count")).longValue();
-                xaction.commit();
-                return count;
-            }
-            finally {
-                xaction.rollback();
-            }
+                        results = xaction.execute(counter, new HashMap<String,Object>(0), readDataSource);
+                        count = ((Number)results.get("count")).longValue();
+                        xaction.commit();
+                        return count;
+                    }
+                    finally {
+                        xaction.rollback();
+                    }
+                }
+            });
         }
         finally {
             logger.debug("exit - count()");
@@ -254,25 +388,29 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     }
         
     @Override
-    public long count(SearchTerm ... terms) throws PersistenceException {
+    public long count(final SearchTerm ... terms) throws PersistenceException {
         logger.debug("enter - count(SearchTerm...)");
         try {
-            Transaction xaction = Transaction.getInstance(true);
-            Counter counter = getCounter(terms);            
+            return cachedCount(terms, new Callable<Long>() {
+                public Long call() throws PersistenceException {
+                    Transaction xaction = Transaction.getInstance(true);
+                    Counter counter = getCounter(terms);            
             
-            try {
-                Map<String,Object> params = toParams(terms);                
-                Map<String,Object> results;
-                long count;
+                    try {
+                        Map<String,Object> params = toParams(terms);                
+                        Map<String,Object> results;
+                        long count;
     
-                results = xaction.execute(counter, params, readDataSource);
-                count = ((Number)results.get("count")).longValue();
-                xaction.commit();
-                return count;
-            }
-            finally {
-                xaction.rollback();
-            }
+                        results = xaction.execute(counter, params, readDataSource);
+                        count = ((Number)results.get("count")).longValue();
+                        xaction.commit();
+                        return count;
+                    }
+                    finally {
+                        xaction.rollback();
+                    }
+                }
+            });
         }
         finally {
             logger.debug("exit - count(SearchTerm...)");
@@ -291,7 +429,21 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     public T create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
         state.put("--key--", getPrimaryKey().getFields()[0]);
         xaction.execute(getCreator(), state, writeDataSource);
-        return getCache().find(state);
+        clearMisses(xaction, state);
+        invalidateQueries(xaction, state);
+        adjustCounts(xaction, null, state);
+        publishInvalidation(xaction, getInvalidationKeys(state));
+
+        final T item = getCache().find(state);
+
+        if( item != null ) {
+            xaction.addRollbackHook(new Runnable() {
+                public void run() {
+                    getCache().release(item);
+                }
+            });
+        }
+        return item;
     }
     
     @Override
@@ -309,7 +461,7 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
 					logger.debug("Executing cache find...");
 				}
 				try {
-					ConcurrentHashMap<String,T> cache = secondaryCache.get(k.toString());
+					BoundedCache<String,T> cache = secondaryCache.get(k.toString());
 					
 					if (logger.isDebugEnabled()) {
 						logger.debug("Found cache...");
@@ -332,14 +484,41 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
 						if (logger.isDebugEnabled()) {
 							logger.debug("Loading from RelationalCache...");
 						}
-						Collection<T> list = find(terms);
-						
-						if (list != null && !list.isEmpty()) {
-							t = list.iterator().next();							
-							cache.put(itemKey, t);							
+						getStatistics().secondaryMiss();
+						if (isKnownMiss(k, itemKey)) {
+							return null;
 						}
+						final Key key = k;
+						final String keyValue = itemKey;
+						final SearchTerm[] lookup = terms;
+						final BoundedCache<String,T> target = cache;
+						T loaded = coalesce(k, itemKey, new Callable<T>() {
+							public T call() throws PersistenceException {
+								long start = System.nanoTime();
+								Collection<T> list = find(lookup);
+
+								getStatistics().secondaryLoad(System.nanoTime() - start);
+								if (list != null && !list.isEmpty()) {
+									T item = list.iterator().next();
+
+									if (isCacheEnabled()) {
+										target.put(keyValue, item);
+									}
+									return item;
+								}
+								recordMiss(key, keyValue);
+								return null;
+							}
+						});
+
+						if (loaded != null) {
+							t = loaded;
+						}
+					}
+					else {
+						getStatistics().secondaryHit();
 					}
-					return t;
+					return detach(track(t));
 					
 				} catch (RuntimeException e) {
 					Throwable t = e.getCause();
@@ -381,7 +560,21 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                     i++;
                 }
             }
-            return this.load(getLoader(terms, order), filter, toParams(terms));
+            QueryCache queryCache = (filter == null ? getQueryCache() : null);
+            QueryCache.Ticket ticket = (queryCache == null ? null : queryCache.prepare(terms, orderDesc, orderFields));
+
+            if( ticket != null ) {
+                Object[] keys = queryCache.get(ticket);
+
+                if( keys != null ) {
+                    Collection<T> cached = resolve(keys);
+
+                    if( cached != null ) {
+                        return cached;
+                    }
+                }
+            }
+            return this.load(getLoader(terms, order), filter, toParams(terms), ticket);
         }
         finally {
             logger.debug("exit - find(SearchTerm[], JiteratorFilter, Boolean, String...)");
@@ -404,30 +597,45 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                     SearchTerm[] terms = new SearchTerm[1];
                     Collection<T> list;
                     
+                    if( isKnownMiss(getPrimaryKey(), args[1]) ) {
+                        getStatistics().negativeHit();
+                        return null;
+                    }
+                    long start = System.nanoTime();
+
                     terms[0] = new SearchTerm((String)args[0], Operator.EQUALS, args[1]);
                     try {
-                        list = RelationalCache.this.load(getLoader(terms, null), null, toParams(terms));
+                        list = RelationalCache.this.load(getLoader(terms, null), null, toParams(terms), null);
                     }
                     catch( PersistenceException e ) {
                         try {
                             try { Thread.sleep(1000L); }
                             catch( InterruptedException ignore ) { }
-                            list = RelationalCache.this.load(getLoader(terms, null), null, toParams(terms));
+                            list = RelationalCache.this.load(getLoader(terms, null), null, toParams(terms), null);
                         }
                         catch( Throwable forgetIt ) {
                             logger.error(forgetIt.getMessage(), forgetIt);
                             throw new RuntimeException(e);
                         }
                     }
+                    getStatistics().primaryLoad(System.nanoTime() - start);
                     if( list.isEmpty() ) {
+                        recordMiss(getPrimaryKey(), args[1]);
                         return null;
                     }
                     return list.iterator().next();
                 }
             };
             logger.debug("Executing cache find...");
+            getStatistics().primaryRequest();
             try {
-                return getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue);
+                T item = getCache().find(getPrimaryKeyField(), primaryKeyValue);
+
+                if( item != null ) {
+                    getStatistics().primaryHit();
+                    return detach(track(item));
+                }
+                return detach(track(getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue)));
             }
             catch( CacheManagementException e ) {
                 throw new PersistenceException(e);
@@ -514,6 +722,71 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         }
     }
     
+    /**
+     * Resolves the primary key values of a cached query result through the primary cache. Values missing from
+     * the primary cache are loaded together with one query per {@link #BATCH_SIZE} values instead of one query each.
+     * @param keys the primary key values of the matching objects in result order
+     * @return the matching objects or <code>null</code> if any of them no longer exists
+     * @throws PersistenceException an error occurred loading one of the objects
+     */
+    private Collection<T> resolve(Object[] keys) throws PersistenceException {
+        ArrayList<Object> missing = new ArrayList<Object>();
+
+        for( Object key : keys ) {
+            if( getCache().find(getPrimaryKeyField(), key) == null ) {
+                missing.add(key);
+            }
+        }
+        if( !missing.isEmpty() && loadBatch(missing) < missing.size() ) {
+            return null;
+        }
+        ArrayList<T> items = new ArrayList<T>(keys.length);
+
+        for( Object key : keys ) {
+            T item = get(key);
+
+            if( item == null ) {
+                return null;
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Loads the objects with the specified primary key values into the primary cache.
+     * @param keys the primary key values to load
+     * @return the number of objects found
+     * @throws PersistenceException an error occurred loading the objects
+     */
+    @SuppressWarnings("unchecked")
+    private int loadBatch(List<Object> keys) throws PersistenceException {
+        int found = 0;
+
+        for( int i=0; i<keys.size(); i += BATCH_SIZE ) {
+            List<Object> batch = keys.subList(i, Math.min(keys.size(), i + BATCH_SIZE));
+            Map<String,Object> params = new HashMap<String,Object>();
+            Transaction xaction = Transaction.getInstance(true);
+
+            params.put(BatchLoader.KEYS, new ArrayList<Object>(batch));
+            params.put("--key--", getPrimaryKeyField());
+            try {
+                Map<String,Object> results = xaction.execute(getBatchLoader(batch.size()), params, readDataSource);
+
+                xaction.commit();
+                for( Map<String,Object> row : (Collection<Map<String,Object>>)results.get(Loader.LISTING) ) {
+                    if( findFromRow(row) != null ) {
+                        found++;
+                    }
+                }
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        return found;
+    }
+
     private Map<String,Object> toParams(SearchTerm ... searchTerms) {
         HashMap<String,Object> params = null;
 
@@ -528,27 +801,41 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
         return params;
     }
 
+    private void validateLookups(Map<String,Object> map) throws PersistenceException {
+        for( String fieldName : map.keySet() ) {
+            LookupDelegate delegate = getLookupDelegate(fieldName);
+
+            if( delegate != null && !delegate.validate((String)map.get(fieldName)) ) {
+                throw new PersistenceException("Unable to validate " + fieldName + " value of " + map.get(fieldName));
+            }
+        }
+    }
+
     private class RelationalCacheTask implements Runnable {
         private final Jiterator<T> it;
         private final Map<String,Object> results;
+        private final QueryCache.Ticket ticket;
 
-        private RelationalCacheTask(Jiterator<T> it, Map<String,Object> results) {
+        private RelationalCacheTask(Jiterator<T> it, Map<String,Object> results, QueryCache.Ticket ticket) {
             this.it = it;
             this.results = results;
+            this.ticket = ticket;
         }
 
         @Override
         public void run() {
             try {
-                for( Map<String,Object> map: (Collection<Map<String,Object>>)this.results.get(Loader.LISTING) ) {
-                    for( String fieldName : map.keySet() ) {
-                        LookupDelegate delegate = getLookupDelegate(fieldName);
+                ArrayList<Object> keys = (ticket == null ? null : new ArrayList<Object>());
 
-                        if( delegate != null && !delegate.validate((String)map.get(fieldName)) ) {
-                            throw new PersistenceException("Unable to validate " + fieldName + " value of " + map.get(fieldName));
-                        }
+                for( Map<String,Object> map: (Collection<Map<String,Object>>)this.results.get(Loader.LISTING) ) {
+                    validateLookups(map);
+                    if( keys != null ) {
+                        keys.add(map.get(getPrimaryKeyField()));
                     }
-                    this.it.push(getCache().find(map));
+                    this.it.push(detach(findFromRow(map)));
+                }
+                if( keys != null ) {
+                    getQueryCache().put(ticket, keys.toArray());
                 }
                 this.it.complete();
             }
@@ -562,7 +849,31 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     }
     
     @SuppressWarnings("unchecked")
-    private Collection<T> load(Loader loader, JiteratorFilter<T> filter, Map<String,Object> params) throws PersistenceException {
+    private Collection<T> lazyLoad(Collection<Map<String,Object>> rows, JiteratorFilter<T> filter, QueryCache.Ticket ticket) throws PersistenceException {
+        List<Map<String,Object>> list = (rows instanceof List ? (List<Map<String,Object>>)rows : new ArrayList<Map<String,Object>>(rows));
+
+        // validate every row before the keys are cached so an invalid result never answers a later query
+        for( Map<String,Object> row : list ) {
+            validateLookups(row);
+        }
+        if( ticket != null ) {
+            Object[] keys = new Object[list.size()];
+
+            for( int i=0; i<keys.length; i++ ) {
+                keys[i] = list.get(i).get(getPrimaryKeyField());
+            }
+            getQueryCache().put(ticket, keys);
+        }
+        return new LazyCollection<T>(list, new LazyCollection.Materializer<T>() {
+            @Override
+            public T materialize(Map<String,Object> row) throws PersistenceException {
+                return detach(findFromRow(row));
+            }
+        }, filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<T> load(Loader loader, JiteratorFilter<T> filter, Map<String,Object> params, final QueryCache.Ticket ticket) throws PersistenceException {
         logger.debug("enter - load(Class,SearchTerm...)");
         try {
             Transaction xaction = Transaction.getInstance(true);
@@ -575,7 +886,10 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
                 results = xaction.execute(loader, params, readDataSource);
                 xaction.commit();
 
-                DaseinUtilTasks.submit(new RelationalCacheTask(it, results));
+                if( isLazyFind() ) {
+                    return lazyLoad((Collection<Map<String,Object>>)results.get(Loader.LISTING), filter, ticket);
+                }
+                DaseinUtilTasks.submit(new RelationalCacheTask(it, results, ticket));
                 return new JitCollection<T>(it, getEntityClassName());
             }
             catch( PersistenceException e ) {
@@ -612,13 +926,28 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
     public void remove(Transaction xaction, T item) throws PersistenceException {
         xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
         getCache().release(item);
+        invalidateQueriesFor(xaction, item);
+        adjustCounts(xaction, item, null);
+        publishInvalidation(xaction, getInvalidationKeysFor(item));
     }
     
     @Override
     public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
         xaction.execute(getDeleter(terms), toParams(terms), writeDataSource);
+        invalidateAllQueries(xaction);
+        invalidateCounts(xaction);
+        publishInvalidation(xaction, Collections.singletonList("*"));
     }
     
+    @Override
+    protected void evictSecondary(String key, String keyValue) {
+        BoundedCache<String,T> cache = (secondaryCache == null ? null : secondaryCache.get(key));
+
+        if( cache != null ) {
+            cache.remove(keyValue);
+        }
+    }
+
     public String toString() {
         return getCache().toString();
     }
@@ -633,8 +962,78 @@ public final class RelationalCache<T extends CachedItem> extends PersistentCache
      * updates are not supported
      */
     @Override
-    public void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException {     
+    public void update(Transaction xaction, final T item, final Map<String,Object> state) throws PersistenceException {     
         state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getUpdater(), state, writeDataSource);
+        Set<String> changed = getChangedFields(item, state);
+
+        if( changed == null || !changed.isEmpty() ) {
+            xaction.execute(getUpdater(changed), state, writeDataSource);
+        }
+        clearMisses(xaction, state);
+        invalidateQueries(xaction, item, state);
+        adjustCounts(xaction, item, state);
+        Collection<String> keys = getInvalidationKeysFor(item);
+
+        keys.addAll(getInvalidationKeys(state));
+        publishInvalidation(xaction, keys);
+
+        final HashMap<String,String> before = new HashMap<String,String>();
+
+        for( Key k : getSecondaryKeys() ) {
+            try {
+                before.put(k.toString(), getKeyValue(item, k));
+            }
+            catch( PersistenceException ignore ) {
+                // no entry can exist for a key with missing values
+            }
+        }
+        xaction.addCommitHook(new Runnable() {
+            public void run() {
+                writeThrough(item, state, before);
+            }
+        });
+    }
+
+    /**
+     * Replaces the cached copy of an updated object with a fresh copy carrying the committed state and moves its
+     * secondary key entries to the fresh copy under their new key values. If no fresh copy can be built, the
+     * object is evicted so that the next lookup loads it.
+     * @param item the cached copy of the updated object
+     * @param state the committed state
+     * @param before the secondary key values of the object before the update
+     */
+    private void writeThrough(T item, Map<String,Object> state, Map<String,String> before) {
+        T fresh = copyWithState(item, state);
+
+        if( fresh == null ) {
+            getCache().release(item);
+            if( secondaryCache != null ) {
+                for( Map.Entry<String,String> entry : before.entrySet() ) {
+                    if( entry.getValue() != null ) {
+                        secondaryCache.get(entry.getKey()).remove(entry.getValue());
+                    }
+                }
+            }
+            return;
+        }
+        swap(item, fresh);
+        if( secondaryCache == null ) {
+            return;
+        }
+        for( Key k : getSecondaryKeys() ) {
+            BoundedCache<String,T> c = secondaryCache.get(k.toString());
+            String oldValue = before.get(k.toString());
+            String newValue;
+
+            try {
+                newValue = getKeyValue(fresh, k);
+            }
+            catch( PersistenceException e ) {
+                newValue = null;
+            }
+            if( oldValue != null && c.remove(oldValue) != null && newValue != null ) {
+                c.put(newValue, fresh);
+            }
+        }
     }    
 }
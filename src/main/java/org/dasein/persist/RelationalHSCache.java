@@ -32,7 +32,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.dasein.persist.jdbc.AutomatedSql.Operator;
@@ -41,6 +43,7 @@ import org.dasein.persist.jdbc.Counter;
 import org.dasein.persist.jdbc.Creator;
 import org.dasein.persist.jdbc.Deleter;
 import org.dasein.persist.jdbc.Loader;
+import org.dasein.persist.jdbc.StatementPlan;
 import org.dasein.persist.jdbc.Updater;
 import org.dasein.persist.l10n.LocalizationGroup;
 import org.dasein.util.CacheLoader;
@@ -164,9 +167,11 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     private Counter getCounter(SearchTerm[] whereTerms) {
         final SearchTerm[] terms = whereTerms;
         final RelationalHSCache<T> self = this;
+        final StatementPlan plan = getPlan("counter", terms, false);
         
         Counter counter = new Counter() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 if( terms != null && terms.length > 0 ) {
                     ArrayList<Criterion> criteria = new ArrayList<Criterion>();
@@ -207,9 +212,11 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     
     private Deleter getDeleter() {
         final RelationalHSCache<T> self = this;
+        final StatementPlan plan = getPlan("deleter", null, false);
         
         Deleter deleter = new Deleter() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 setCriteria(self.getPrimaryKey().getFields());
                 switch (translationMethod) {
@@ -230,9 +237,16 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
         final SearchTerm[] terms = whereTerms;
         final OrderedColumn[] order = orderBy;
         final RelationalHSCache<T> self = this;
+        String[] orderColumns = new String[order == null ? 0 : order.length];
+
+        for( int i=0; i<orderColumns.length; i++ ) {
+            orderColumns[i] = order[i].column;
+        }
+        final StatementPlan plan = getPlan("loader", terms, orderColumns.length > 0 && order[0].descending, orderColumns);
         
         Loader loader = new Loader() {
             public void init() {
+                setPlan(plan);
                 setTarget(self.getEntityClassName());
                 setEntityJoins(getJoins());
                 if( terms != null && terms.length > 0 ) {
@@ -266,7 +280,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
         return loader;
     }
     
-    private Updater getUpdater() {
+    private Updater getUpdater(Collection<String> changed) {
         final RelationalHSCache<T> self = this;
         
         Updater updater = new Updater() {
@@ -284,6 +298,7 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                 return false;
             }
         };
+        updater.setChangedFields(changed);
         return updater;
     }
     
@@ -296,21 +311,25 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     public long count() throws PersistenceException {
         logger.debug("enter - count()");
         try {
-            Transaction xaction = Transaction.getInstance(true);
-            Counter counter = getCounter(null);            
+            return cachedCount(null, new Callable<Long>() {
+                public Long call() throws PersistenceException {
+                    Transaction xaction = Transaction.getInstance(true);
+                    Counter counter = getCounter(null);            
             
-            try {
-                Map<String,Object> results;
-                long count;
+                    try {
+                        Map<String,Object> results;
+                        long count;
     
-                results = xaction.execute(counter, new HashMap<String,Object>(), readDataSource);
-                count = ((Number)results.get("count")).longValue();
-                xaction.commit();
-                return count;
-            }
-            finally {
-                xaction.rollback();
-            }
+                        results = xaction.execute(counter, new HashMap<String,Object>(), readDataSource);
+                        count = ((Number)results.get("count")).longValue();
+                        xaction.commit();
+                        return count;
+                    }
+                    finally {
+                        xaction.rollback();
+                    }
+                }
+            });
         }
         finally {
             logger.debug("exit - count()");
@@ -318,25 +337,29 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     }
         
     @Override
-    public long count(SearchTerm ... terms) throws PersistenceException {
+    public long count(final SearchTerm ... terms) throws PersistenceException {
         logger.debug("enter - count(SearchTerm...)");
         try {
-            Transaction xaction = Transaction.getInstance(true);
-            Counter counter = getCounter(terms);            
+            return cachedCount(terms, new Callable<Long>() {
+                public Long call() throws PersistenceException {
+                    Transaction xaction = Transaction.getInstance(true);
+                    Counter counter = getCounter(terms);            
             
-            try {
-                Map<String,Object> params = toParams(terms);                
-                Map<String,Object> results;
-                long count;
+                    try {
+                        Map<String,Object> params = toParams(terms);                
+                        Map<String,Object> results;
+                        long count;
     
-                results = xaction.execute(counter, params, readDataSource);
-                count = ((Number)results.get("count")).longValue();
-                xaction.commit();
-                return count;
-            }
-            finally {
-                xaction.rollback();
-            }
+                        results = xaction.execute(counter, params, readDataSource);
+                        count = ((Number)results.get("count")).longValue();
+                        xaction.commit();
+                        return count;
+                    }
+                    finally {
+                        xaction.rollback();
+                    }
+                }
+            });
         }
         finally {
             logger.debug("exit - count(SearchTerm...)");
@@ -355,6 +378,9 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     public T create(Transaction xaction, Map<String,Object> state) throws PersistenceException {
         state.put("--key--", getPrimaryKey().getFields()[0]);
         xaction.execute(getCreator(), state, writeDataSource);
+        clearMisses(xaction, state);
+        adjustCounts(xaction, null, state);
+        publishInvalidation(xaction, getInvalidationKeys(state));
         return getCache().find(state);
     }
     
@@ -403,6 +429,12 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                     SearchTerm[] terms = new SearchTerm[1];
                     Collection<T> list;
                     
+                    if( isKnownMiss(getPrimaryKey(), args[1]) ) {
+                        getStatistics().negativeHit();
+                        return null;
+                    }
+                    long start = System.nanoTime();
+
                     terms[0] = new SearchTerm((String)args[0], Operator.EQUALS, args[1]);
                     try {
                         list = RelationalHSCache.this.load(getLoader(terms, null), null, toParams(terms));
@@ -418,15 +450,24 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                             throw new RuntimeException(e);
                         }
                     }
+                    getStatistics().primaryLoad(System.nanoTime() - start);
                     if( list.isEmpty() ) {
+                        recordMiss(getPrimaryKey(), args[1]);
                         return null;
                     }
                     return list.iterator().next();
                 }
             };
             logger.debug("Executing cache find...");
+            getStatistics().primaryRequest();
             try {
-                return getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue);
+                T item = getCache().find(getPrimaryKeyField(), primaryKeyValue);
+
+                if( item != null ) {
+                    getStatistics().primaryHit();
+                    return track(item);
+                }
+                return track(getCache().find(getPrimaryKeyField(), primaryKeyValue, loader, getPrimaryKeyField(), primaryKeyValue));
             }
             catch( CacheManagementException e ) {
                 throw new PersistenceException(e);
@@ -492,11 +533,21 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
                 
                 results = xaction.execute(loader, params, readDataSource);
                 xaction.commit();
+                if( isLazyFind() ) {
+                    Collection<Map<String,Object>> rows = (Collection<Map<String,Object>>)results.get(Loader.LISTING);
+
+                    return new LazyCollection<T>((rows instanceof List ? (List<Map<String,Object>>)rows : new ArrayList<Map<String,Object>>(rows)), new LazyCollection.Materializer<T>() {
+                        @Override
+                        public T materialize(Map<String,Object> row) throws PersistenceException {
+                            return findFromRow(row);
+                        }
+                    }, filter);
+                }
                 Thread t = new Thread() {
                     public void run() {
                         try {
                             for( Map<String,Object> map: (Collection<Map<String,Object>>)results.get(Loader.LISTING) ) {
-                                it.push(getCache().find(map));
+                                it.push(findFromRow(map));
                             }
                             it.complete();
                         }
@@ -548,6 +599,8 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     public void remove(Transaction xaction, T item) throws PersistenceException {
         xaction.execute(getDeleter(), getCache().getKeys(item), writeDataSource);
         getCache().release(item);
+        adjustCounts(xaction, item, null);
+        publishInvalidation(xaction, getInvalidationKeysFor(item));
     }
     
     public void remove(Transaction xaction, SearchTerm ... terms) throws PersistenceException {
@@ -572,7 +625,17 @@ public final class RelationalHSCache<T extends CachedItem> extends PersistentCac
     @Override
     public void update(Transaction xaction, T item, Map<String,Object> state) throws PersistenceException {     
         state.put("--key--", getPrimaryKey().getFields()[0]);
-        xaction.execute(getUpdater(), state, writeDataSource);
+        Set<String> changed = getChangedFields(item, state);
+
+        if( changed == null || !changed.isEmpty() ) {
+            xaction.execute(getUpdater(changed), state, writeDataSource);
+        }
+        clearMisses(xaction, state);
+        adjustCounts(xaction, item, state);
+        Collection<String> keys = getInvalidationKeysFor(item);
+
+        keys.addAll(getInvalidationKeys(state));
+        publishInvalidation(xaction, keys);
     }   
     
     public Collection<T> hsFind(String index, String... indexValues) throws PersistenceException {
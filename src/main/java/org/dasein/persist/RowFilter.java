@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A filter over the raw column values of a query result. When a lazy find is handed a
+ * {@link org.dasein.util.JiteratorFilter} that also implements this interface, rows are
+ * checked here first and only the rows that pass are materialized and offered to the
+ * entity filter.
+ */
+public interface RowFilter {
+    /**
+     * @param row the column values of one matching row, keyed by field name
+     * @return true if the row should be materialized and returned
+     * @throws PersistenceException the row could not be evaluated
+     */
+    public boolean filter(@Nonnull Map<String,Object> row) throws PersistenceException;
+}
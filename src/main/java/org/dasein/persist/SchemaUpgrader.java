@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CachedItem;
+
+/**
+ * Walks every record of an entity in the background and rewrites those stored under an older schema version,
+ * so that reads stop paying for the {@link SchemaMapper} chain on each cache miss. Records are visited in key
+ * order at no more than <code>dsn.cache.upgrade.rate</code> records per second (default 10, 0 for no limit).
+ * Progress is checkpointed to <code>dsn.cache.upgrade.dir</code>, by default a <code>dasein-upgrades</code>
+ * directory under <code>java.io.tmpdir</code>, so a stopped or interrupted upgrade resumes after the last key
+ * it finished. A checkpoint written for a different target schema version is ignored.
+ * <p>
+ * Only stores that can enumerate their keys support upgrades; see {@link PersistentCache#listKeys()} and
+ * {@link PersistentCache#upgradeStoredRecord(String)}.
+ * </p>
+ */
+public class SchemaUpgrader<T extends CachedItem> implements Runnable {
+    static private final Logger logger = Logger.getLogger(SchemaUpgrader.class);
+
+    static private final int CHECKPOINT_INTERVAL = 100;
+
+    private final PersistentCache<T> cache;
+    private final File               checkpoint;
+    private volatile boolean         complete  = false;
+    private volatile long            failed    = 0L;
+    private final long               interval;
+    private volatile String          lastKey   = null;
+    private volatile boolean         running   = false;
+    private volatile long            scanned   = 0L;
+    private volatile boolean         stopped   = false;
+    private volatile long            total     = -1L;
+    private volatile long            upgraded  = 0L;
+
+    public SchemaUpgrader(@Nonnull PersistentCache<T> cache) {
+        this(cache, cache.getCacheProperty("upgrade.rate", 10), getFile(cache));
+    }
+
+    /**
+     * @param cache the cache whose records should be upgraded
+     * @param recordsPerSecond the maximum number of records to visit each second, 0 for no limit
+     * @param checkpoint the file recording progress
+     */
+    public SchemaUpgrader(@Nonnull PersistentCache<T> cache, int recordsPerSecond, @Nonnull File checkpoint) {
+        this.cache = cache;
+        this.checkpoint = checkpoint;
+        this.interval = (recordsPerSecond > 0 ? 1000000000L / recordsPerSecond : 0L);
+    }
+
+    static private @Nonnull File getFile(@Nonnull PersistentCache<? extends CachedItem> cache) {
+        String dir = cache.getCacheProperty("upgrade.dir");
+
+        if( dir == null ) {
+            dir = System.getProperty("java.io.tmpdir") + File.separator + "dasein-upgrades";
+        }
+        return new File(dir, cache.getEntityClassName() + ".upgrade");
+    }
+
+    /**
+     * @return the number of records that could not be upgraded
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the last key visited, <code>null</code> if none has been
+     */
+    public @Nullable String getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return the number of records visited so far, including those visited before a resume
+     */
+    public long getScanned() {
+        return scanned;
+    }
+
+    /**
+     * @return the number of records in the store, -1 until the keys have been listed
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of records rewritten in the current schema version
+     */
+    public long getUpgraded() {
+        return upgraded;
+    }
+
+    /**
+     * @return true once every record has been visited
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true while the upgrade is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts the upgrade on a daemon thread.
+     */
+    public synchronized void start() {
+        if( running ) {
+            return;
+        }
+        Thread t = new Thread(this);
+
+        running = true;
+        stopped = false;
+        t.setName("DASEIN SCHEMA UPGRADE " + cache.getEntityClassName());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Asks a running upgrade to stop after the current record. Progress is checkpointed so that a later
+     * start resumes from there.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public void run() {
+        running = true;
+        try {
+            load();
+            if( complete ) {
+                logger.info("Schema upgrade of " + cache.getEntityClassName() + " to " + cache.getSchemaVersion() + " is already complete");
+                return;
+            }
+            Collection<String> keys = cache.listKeys();
+
+            if( keys == null ) {
+                logger.warn("The store for " + cache.getEntityClassName() + " does not support schema upgrades");
+                return;
+            }
+            NavigableSet<String> sorted = new TreeSet<String>(keys);
+            long next = System.nanoTime();
+
+            total = sorted.size();
+            logger.info("Upgrading " + cache.getEntityClassName() + " to schema " + cache.getSchemaVersion() + ": " + total + " records" + (lastKey == null ? "" : ", resuming after " + lastKey));
+            for( String key : (lastKey == null ? sorted : sorted.tailSet(lastKey, false)) ) {
+                if( stopped ) {
+                    break;
+                }
+                if( interval > 0L ) {
+                    long now = System.nanoTime();
+
+                    if( next > now ) {
+                        try { Thread.sleep((next - now) / 1000000L, (int)((next - now) % 1000000L)); }
+                        catch( InterruptedException e ) {
+                            stopped = true;
+                            break;
+                        }
+                    }
+                    next = Math.max(next, now) + interval;
+                }
+                try {
+                    if( cache.upgradeStoredRecord(key) ) {
+                        upgraded++;
+                    }
+                }
+                catch( Throwable t ) {
+                    failed++;
+                    logger.warn("Unable to upgrade " + cache.getEntityClassName() + " " + key + ": " + t.getMessage());
+                }
+                scanned++;
+                lastKey = key;
+                if( scanned % CHECKPOINT_INTERVAL == 0 ) {
+                    save();
+                    logger.info(toString());
+                }
+            }
+            if( !stopped ) {
+                complete = true;
+            }
+            save();
+            logger.info(toString());
+        }
+        catch( Throwable t ) {
+            logger.error("Schema upgrade of " + cache.getEntityClassName() + " failed: " + t.getMessage(), t);
+        }
+        finally {
+            running = false;
+        }
+    }
+
+    private void load() {
+        if( !checkpoint.exists() ) {
+            return;
+        }
+        Properties props = new Properties();
+
+        try {
+            InputStream in = new FileInputStream(checkpoint);
+
+            try {
+                props.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read upgrade checkpoint " + checkpoint + ", starting over: " + e.getMessage());
+            return;
+        }
+        if( !cache.getSchemaVersion().equals(props.getProperty("version")) ) {
+            return;
+        }
+        lastKey = props.getProperty("lastKey");
+        scanned = Long.parseLong(props.getProperty("scanned", "0"));
+        upgraded = Long.parseLong(props.getProperty("upgraded", "0"));
+        failed = Long.parseLong(props.getProperty("failed", "0"));
+        complete = Boolean.parseBoolean(props.getProperty("complete", "false"));
+    }
+
+    private void save() {
+        Properties props = new Properties();
+
+        props.setProperty("version", cache.getSchemaVersion());
+        if( lastKey != null ) {
+            props.setProperty("lastKey", lastKey);
+        }
+        props.setProperty("scanned", String.valueOf(scanned));
+        props.setProperty("upgraded", String.valueOf(upgraded));
+        props.setProperty("failed", String.valueOf(failed));
+        props.setProperty("complete", String.valueOf(complete));
+        try {
+            File tmp = new File(checkpoint.getPath() + ".tmp");
+
+            if( !checkpoint.getParentFile().exists() && !checkpoint.getParentFile().mkdirs() ) {
+                throw new IOException("Unable to create " + checkpoint.getParent());
+            }
+            OutputStream out = new FileOutputStream(tmp);
+
+            try {
+                props.store(out, "Schema upgrade of " + cache.getEntityClassName());
+            }
+            finally {
+                out.close();
+            }
+            if( checkpoint.exists() && !checkpoint.delete() ) {
+                throw new IOException("Unable to replace " + checkpoint);
+            }
+            if( !tmp.renameTo(checkpoint) ) {
+                throw new IOException("Unable to rename " + tmp + " to " + checkpoint);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write upgrade checkpoint " + checkpoint + ": " + e.getMessage());
+        }
+    }
+
+    public String toString() {
+        return ("Schema upgrade of " + cache.getEntityClassName() + " to " + cache.getSchemaVersion() + ": " + scanned + (total > -1L ? "/" + total : "") + " scanned, " + upgraded + " upgraded, " + failed + " failed" + (complete ? ", complete" : ""));
+    }
+}
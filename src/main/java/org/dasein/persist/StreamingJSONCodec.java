@@ -0,0 +1,579 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The default {@link JSONCodec}. Writes UTF-8 JSON straight to the output stream as fields are supplied and
+ * parses input with a pull parser that reads through a fixed buffer, so neither direction holds the full
+ * document as a string. Numbers are formatted and parsed the same way as org.json to keep stored data
+ * compatible with documents written by earlier versions.
+ */
+public class StreamingJSONCodec implements JSONCodec {
+    public StreamingJSONCodec() { }
+
+    public @Nonnull ObjectWriter newWriter(@Nonnull OutputStream out) throws IOException {
+        return new StreamingWriter(new BufferedWriter(new OutputStreamWriter(out, "utf-8")));
+    }
+
+    public @Nonnull Parser newParser(@Nonnull InputStream in) throws IOException {
+        return new StreamingParser(new InputStreamReader(in, "utf-8"));
+    }
+
+    public @Nonnull Parser newParser(@Nonnull Reader in) throws IOException {
+        return new StreamingParser(in);
+    }
+
+    static private String numberToString(@Nonnull Number n) {
+        if( (n instanceof Double && (((Double)n).isInfinite() || ((Double)n).isNaN())) || (n instanceof Float && (((Float)n).isInfinite() || ((Float)n).isNaN())) ) {
+            return "null";
+        }
+        String s = n.toString();
+
+        if( s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0 ) {
+            int len = s.length();
+
+            while( s.charAt(len-1) == '0' ) {
+                len--;
+            }
+            if( s.charAt(len-1) == '.' ) {
+                len--;
+            }
+            s = s.substring(0, len);
+        }
+        return s;
+    }
+
+    static private void quote(@Nonnull Writer out, @Nonnull String str) throws IOException {
+        out.write('"');
+        for( int i=0; i<str.length(); i++ ) {
+            char c = str.charAt(i);
+
+            switch( c ) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\b': out.write("\\b"); break;
+                case '\f': out.write("\\f"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if( c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100) ) {
+                        String hex = Integer.toHexString(c);
+
+                        out.write("\\u");
+                        out.write("0000", 0, 4 - hex.length());
+                        out.write(hex);
+                    }
+                    else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    static private void writeValue(@Nonnull Writer out, @Nullable Object value) throws IOException {
+        if( value == null || JSONObject.NULL.equals(value) ) {
+            out.write("null");
+        }
+        else if( value instanceof String ) {
+            quote(out, (String)value);
+        }
+        else if( value instanceof Number ) {
+            out.write(numberToString((Number)value));
+        }
+        else if( value instanceof Boolean ) {
+            out.write(value.toString());
+        }
+        else if( value instanceof JSONString ) {
+            out.write(((JSONString)value).toJSONString());
+        }
+        else if( value instanceof JSONObject ) {
+            JSONObject ob = (JSONObject)value;
+            Iterator<?> keys = ob.keys();
+            boolean first = true;
+
+            out.write('{');
+            while( keys.hasNext() ) {
+                String key = keys.next().toString();
+
+                if( !first ) {
+                    out.write(',');
+                }
+                first = false;
+                quote(out, key);
+                out.write(':');
+                writeValue(out, ob.opt(key));
+            }
+            out.write('}');
+        }
+        else if( value instanceof JSONArray ) {
+            JSONArray arr = (JSONArray)value;
+
+            out.write('[');
+            for( int i=0; i<arr.length(); i++ ) {
+                if( i > 0 ) {
+                    out.write(',');
+                }
+                writeValue(out, arr.opt(i));
+            }
+            out.write(']');
+        }
+        else if( value instanceof Map ) {
+            boolean first = true;
+
+            out.write('{');
+            for( Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet() ) {
+                if( !first ) {
+                    out.write(',');
+                }
+                first = false;
+                quote(out, String.valueOf(entry.getKey()));
+                out.write(':');
+                writeValue(out, entry.getValue());
+            }
+            out.write('}');
+        }
+        else if( value instanceof Collection ) {
+            boolean first = true;
+
+            out.write('[');
+            for( Object item : (Collection<?>)value ) {
+                if( !first ) {
+                    out.write(',');
+                }
+                first = false;
+                writeValue(out, item);
+            }
+            out.write(']');
+        }
+        else if( value.getClass().isArray() ) {
+            int len = Array.getLength(value);
+
+            out.write('[');
+            for( int i=0; i<len; i++ ) {
+                if( i > 0 ) {
+                    out.write(',');
+                }
+                writeValue(out, Array.get(value, i));
+            }
+            out.write(']');
+        }
+        else {
+            quote(out, value.toString());
+        }
+    }
+
+    static private class StreamingWriter implements ObjectWriter {
+        private boolean open = false;
+        private Writer  out;
+
+        private StreamingWriter(Writer out) {
+            this.out = out;
+        }
+
+        public void field(@Nonnull String name, @Nullable Object value) throws IOException {
+            out.write(open ? ',' : '{');
+            open = true;
+            quote(out, name);
+            out.write(':');
+            writeValue(out, value);
+        }
+
+        public void close() throws IOException {
+            if( !open ) {
+                out.write('{');
+            }
+            out.write('}');
+            out.flush();
+        }
+    }
+
+    static private final int EMPTY_DOCUMENT    = 0;
+    static private final int NONEMPTY_DOCUMENT = 1;
+    static private final int EMPTY_ARRAY       = 2;
+    static private final int NONEMPTY_ARRAY    = 3;
+    static private final int EMPTY_OBJECT      = 4;
+    static private final int DANGLING_NAME     = 5;
+    static private final int NONEMPTY_OBJECT   = 6;
+
+    static private class StreamingParser implements Parser {
+        private final char[]  buffer = new char[8192];
+        private int           depth  = 1;
+        private Reader        in;
+        private int           limit  = 0;
+        private Token         peeked = null;
+        private String        pending;
+        private int           pos    = 0;
+        private int[]         stack  = new int[32];
+
+        private StreamingParser(Reader in) {
+            this.in = in;
+            stack[0] = EMPTY_DOCUMENT;
+        }
+
+        private int read() throws IOException {
+            if( pos >= limit ) {
+                limit = in.read(buffer, 0, buffer.length);
+                pos = 0;
+                if( limit < 1 ) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[pos++];
+        }
+
+        private int nextNonWhitespace() throws IOException {
+            int c = read();
+
+            while( c == ' ' || c == '\t' || c == '\n' || c == '\r' ) {
+                c = read();
+            }
+            return c;
+        }
+
+        private IOException syntaxError(String message) {
+            return new IOException("Malformed JSON: " + message);
+        }
+
+        private void push(int scope) {
+            if( depth == stack.length ) {
+                int[] tmp = new int[depth * 2];
+
+                System.arraycopy(stack, 0, tmp, 0, depth);
+                stack = tmp;
+            }
+            stack[depth++] = scope;
+        }
+
+        public @Nonnull Token peek() throws IOException {
+            if( peeked != null ) {
+                return peeked;
+            }
+            int c;
+
+            switch( stack[depth-1] ) {
+                case EMPTY_DOCUMENT:
+                    stack[depth-1] = NONEMPTY_DOCUMENT;
+                    c = nextNonWhitespace();
+                    if( c == -1 ) {
+                        throw syntaxError("empty document");
+                    }
+                    return (peeked = readValueToken(c));
+                case NONEMPTY_DOCUMENT:
+                    c = nextNonWhitespace();
+                    if( c != -1 ) {
+                        throw syntaxError("unexpected '" + (char)c + "' after the document");
+                    }
+                    return (peeked = Token.END_DOCUMENT);
+                case EMPTY_ARRAY:
+                    stack[depth-1] = NONEMPTY_ARRAY;
+                    c = nextNonWhitespace();
+                    if( c == ']' ) {
+                        return (peeked = Token.END_ARRAY);
+                    }
+                    return (peeked = readValueToken(c));
+                case NONEMPTY_ARRAY:
+                    c = nextNonWhitespace();
+                    if( c == ']' ) {
+                        return (peeked = Token.END_ARRAY);
+                    }
+                    if( c != ',' ) {
+                        throw syntaxError("expected ',' or ']' in array");
+                    }
+                    return (peeked = readValueToken(nextNonWhitespace()));
+                case EMPTY_OBJECT:
+                case NONEMPTY_OBJECT:
+                    c = nextNonWhitespace();
+                    if( c == '}' ) {
+                        return (peeked = Token.END_OBJECT);
+                    }
+                    if( stack[depth-1] == NONEMPTY_OBJECT ) {
+                        if( c != ',' ) {
+                            throw syntaxError("expected ',' or '}' in object");
+                        }
+                        c = nextNonWhitespace();
+                    }
+                    if( c != '"' ) {
+                        throw syntaxError("expected a field name");
+                    }
+                    pending = readString();
+                    stack[depth-1] = DANGLING_NAME;
+                    return (peeked = Token.NAME);
+                case DANGLING_NAME:
+                    if( nextNonWhitespace() != ':' ) {
+                        throw syntaxError("expected ':' after a field name");
+                    }
+                    stack[depth-1] = NONEMPTY_OBJECT;
+                    return (peeked = readValueToken(nextNonWhitespace()));
+                default:
+                    throw new IllegalStateException("Unknown parser state");
+            }
+        }
+
+        private Token readValueToken(int c) throws IOException {
+            switch( c ) {
+                case '{': return Token.BEGIN_OBJECT;
+                case '[': return Token.BEGIN_ARRAY;
+                case '"':
+                    pending = readString();
+                    return Token.STRING;
+                case 't':
+                    expect("rue");
+                    pending = "true";
+                    return Token.BOOLEAN;
+                case 'f':
+                    expect("alse");
+                    pending = "false";
+                    return Token.BOOLEAN;
+                case 'n':
+                    expect("ull");
+                    return Token.NULL;
+                case -1:
+                    throw syntaxError("unexpected end of input");
+                default:
+                    if( c == '-' || (c >= '0' && c <= '9') ) {
+                        StringBuilder str = new StringBuilder();
+
+                        while( c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9') ) {
+                            str.append((char)c);
+                            c = read();
+                        }
+                        if( c != -1 ) {
+                            pos--;
+                        }
+                        pending = str.toString();
+                        return Token.NUMBER;
+                    }
+                    throw syntaxError("unexpected '" + (char)c + "'");
+            }
+        }
+
+        private void expect(String rest) throws IOException {
+            for( int i=0; i<rest.length(); i++ ) {
+                if( read() != rest.charAt(i) ) {
+                    throw syntaxError("bad literal");
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            StringBuilder str = new StringBuilder();
+
+            while( true ) {
+                int c = read();
+
+                if( c == -1 ) {
+                    throw syntaxError("unterminated string");
+                }
+                if( c == '"' ) {
+                    return str.toString();
+                }
+                if( c == '\\' ) {
+                    c = read();
+                    switch( c ) {
+                        case 'b': str.append('\b'); break;
+                        case 'f': str.append('\f'); break;
+                        case 'n': str.append('\n'); break;
+                        case 'r': str.append('\r'); break;
+                        case 't': str.append('\t'); break;
+                        case 'u':
+                            char[] hex = new char[4];
+
+                            for( int i=0; i<4; i++ ) {
+                                int h = read();
+
+                                if( h == -1 ) {
+                                    throw syntaxError("unterminated escape");
+                                }
+                                hex[i] = (char)h;
+                            }
+                            try {
+                                str.append((char)Integer.parseInt(new String(hex), 16));
+                            }
+                            catch( NumberFormatException e ) {
+                                throw syntaxError("bad unicode escape");
+                            }
+                            break;
+                        case -1:
+                            throw syntaxError("unterminated escape");
+                        default:
+                            str.append((char)c);
+                    }
+                }
+                else {
+                    str.append((char)c);
+                }
+            }
+        }
+
+        private void consume(Token expected) throws IOException {
+            if( peek() != expected ) {
+                throw syntaxError("expected " + expected + " but found " + peeked);
+            }
+            peeked = null;
+        }
+
+        public void beginArray() throws IOException {
+            consume(Token.BEGIN_ARRAY);
+            push(EMPTY_ARRAY);
+        }
+
+        public void endArray() throws IOException {
+            consume(Token.END_ARRAY);
+            depth--;
+        }
+
+        public void beginObject() throws IOException {
+            consume(Token.BEGIN_OBJECT);
+            push(EMPTY_OBJECT);
+        }
+
+        public void endObject() throws IOException {
+            consume(Token.END_OBJECT);
+            depth--;
+        }
+
+        public boolean hasNext() throws IOException {
+            Token t = peek();
+
+            return (t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT);
+        }
+
+        public @Nonnull String nextName() throws IOException {
+            consume(Token.NAME);
+            return pending;
+        }
+
+        public @Nonnull Object nextValue() throws IOException {
+            switch( peek() ) {
+                case BEGIN_OBJECT:
+                    return new JSONObject(readFields(false));
+                case BEGIN_ARRAY:
+                    ArrayList<Object> list = new ArrayList<Object>();
+
+                    beginArray();
+                    while( hasNext() ) {
+                        list.add(nextValue());
+                    }
+                    endArray();
+                    return new JSONArray(list);
+                case STRING:
+                    peeked = null;
+                    return pending;
+                case BOOLEAN:
+                    peeked = null;
+                    return Boolean.valueOf(pending);
+                case NULL:
+                    peeked = null;
+                    return JSONObject.NULL;
+                case NUMBER:
+                    peeked = null;
+                    return toNumber(pending);
+                default:
+                    throw syntaxError("expected a value but found " + peeked);
+            }
+        }
+
+        private Number toNumber(String str) throws IOException {
+            try {
+                if( str.indexOf('.') > -1 || str.indexOf('e') > -1 || str.indexOf('E') > -1 ) {
+                    return Double.valueOf(str);
+                }
+                if( str.length() < 19 ) {
+                    long l = Long.parseLong(str);
+
+                    if( l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ) {
+                        return (int)l;
+                    }
+                    return l;
+                }
+                BigInteger big = new BigInteger(str);
+
+                if( big.bitLength() < 64 ) {
+                    return big.longValue();
+                }
+                return big;
+            }
+            catch( NumberFormatException e ) {
+                throw syntaxError("bad number " + str);
+            }
+        }
+
+        private HashMap<String,Object> readFields(boolean flatten) throws IOException {
+            HashMap<String,Object> fields = new HashMap<String,Object>();
+
+            beginObject();
+            while( hasNext() ) {
+                String name = nextName();
+                Object value = nextValue();
+
+                fields.put(name, (flatten && JSONObject.NULL.equals(value)) ? null : value);
+            }
+            endObject();
+            return fields;
+        }
+
+        public @Nonnull Map<String,Object> nextObject() throws IOException {
+            return readFields(true);
+        }
+
+        public void skipValue() throws IOException {
+            int level = 0;
+
+            do {
+                switch( peek() ) {
+                    case BEGIN_OBJECT: beginObject(); level++; break;
+                    case BEGIN_ARRAY: beginArray(); level++; break;
+                    case END_OBJECT: endObject(); level--; break;
+                    case END_ARRAY: endArray(); level--; break;
+                    case END_DOCUMENT: throw syntaxError("unexpected end of input");
+                    default: peeked = null;
+                }
+            } while( level > 0 );
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.lang.management.MemoryMXBean;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EmptyStackException;
 import java.util.HashMap;
@@ -138,6 +139,7 @@ public class Transaction {
                 final long diff = now - xaction.openTime;
                 if (diff > maxMs) {
                     logger.error("Transaction " + xaction.transactionId + " has been open for " + diff/1000L + " seconds, forcing a close: " + xaction.state);
+                    TransactionStatistics.getInstance().forceClosed();
                     try {
                         xaction.rollback(true);
                         xaction.close();
@@ -175,6 +177,20 @@ public class Transaction {
         return xaction;
     }
 
+    /**
+     * @return the number of connections currently held by transactions, 0 if the transaction maid is disabled
+     */
+    static int getOpenConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return the number of transactions currently holding connections, 0 if the transaction maid is disabled
+     */
+    static int getOpenTransactionCount() {
+        return transactions.size();
+    }
+
     static public void report() {
         MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
         StringBuilder sb = new StringBuilder();
@@ -192,6 +208,14 @@ public class Transaction {
         logger.info(sb.toString());
     }
     
+    /**
+     * Tasks to run once this transaction has been successfully committed.
+     */
+    private final ArrayList<Runnable> commitHooks = new ArrayList<Runnable>();
+    /**
+     * Tasks to run if this transaction is rolled back.
+     */
+    private final ArrayList<Runnable> rollbackHooks = new ArrayList<Runnable>();
     /**
      * A connection object for this transaction.
      */
@@ -237,6 +261,29 @@ public class Transaction {
         this.readOnly = readOnly;
     }
     
+    /**
+     * Registers a task to run after this transaction commits successfully. The task is discarded if the
+     * transaction is rolled back. Tasks run on the committing thread in the order they were added, after the
+     * transaction has released its connection, and problems running them are logged but do not affect the commit.
+     * @param hook the task to run after the commit
+     */
+    public void addCommitHook(Runnable hook) {
+        synchronized( commitHooks ) {
+            commitHooks.add(hook);
+        }
+    }
+
+    /**
+     * Registers a task to run after this transaction is rolled back, for example to undo changes made to caches
+     * in anticipation of a commit. The task is discarded if the transaction commits.
+     * @param hook the task to run after the rollback
+     */
+    public void addRollbackHook(Runnable hook) {
+        synchronized( commitHooks ) {
+            rollbackHooks.add(hook);
+        }
+    }
+
     /**
      * Closes the transaction. If the transaction has not been committed,
      * it is rolled back.
@@ -293,11 +340,17 @@ public class Transaction {
                 if( dirty ) {
                     throw new PersistenceException("Attempt to commit a committed or aborted transaction.");
                 }       
+                runHooks(true);
                 return;
             }
+            Runnable[] hooks = null;
+
             state = "COMMITTING";
             try {
                 connection.commit();
+                TransactionStatistics.getInstance().committed();
+                // hooks may need connections of their own, so they run only once this one is back in the pool
+                hooks = takeHooks(true);
                 state = "CLOSING CONNECTIONS";
                 connection.close();
                 connection = null;
@@ -318,6 +371,9 @@ public class Transaction {
                     rollback();
                 }
                 dirty = true;
+                if( hooks != null ) {
+                    runHooks(hooks, true);
+                }
             }
         }
         finally {
@@ -570,7 +626,10 @@ public class Transaction {
                 if (ds == null) {
                     throw new PersistenceException("Could not find data source: " + dsn);
                 }
+                long start = System.nanoTime();
+
                 conn = ds.getConnection();
+                TransactionStatistics.getInstance().opened(System.nanoTime() - start);
                 openTime = System.currentTimeMillis();
                 if( logger.isDebugEnabled() ) {
                     logger.debug("DPTRANSID-" + transactionId + " connection.get - dsn='" + dsn + '\'');
@@ -679,6 +738,7 @@ public class Transaction {
             state = "ROLLING BACK";
             try {
                 connection.rollback();
+                TransactionStatistics.getInstance().rolledBack();
             }
             catch( SQLException e ) {
                 logger.error("Problem with rollback: " + e.getMessage(), e);
@@ -701,6 +761,38 @@ public class Transaction {
             dirty = true;
         }
         finally {
+            runHooks(false);
+        }
+    }
+
+    private void runHooks(boolean committed) {
+        runHooks(takeHooks(committed), committed);
+    }
+
+    private Runnable[] takeHooks(boolean committed) {
+        Runnable[] hooks;
+
+        synchronized( commitHooks ) {
+            if( committed ) {
+                hooks = commitHooks.toArray(new Runnable[commitHooks.size()]);
+            }
+            else {
+                hooks = rollbackHooks.toArray(new Runnable[rollbackHooks.size()]);
+            }
+            commitHooks.clear();
+            rollbackHooks.clear();
+        }
+        return hooks;
+    }
+
+    private void runHooks(Runnable[] hooks, boolean committed) {
+        for( Runnable hook : hooks ) {
+            try {
+                hook.run();
+            }
+            catch( Throwable t ) {
+                logger.error("Problem running " + (committed ? "commit" : "rollback") + " hook for transaction " + transactionId + ": " + t.getMessage(), t);
+            }
         }
     }
 
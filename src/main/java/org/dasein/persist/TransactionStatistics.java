@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Transaction and connection statistics for the persistence layer, exposed over JMX as
+ * <code>org.dasein.persist:type=Transaction</code>.
+ */
+public class TransactionStatistics implements TransactionStatisticsMBean {
+    static private final Logger logger = Logger.getLogger(TransactionStatistics.class);
+
+    static private final TransactionStatistics instance = new TransactionStatistics();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.dasein.persist:type=Transaction");
+
+            if( !server.isRegistered(name) ) {
+                server.registerMBean(instance, name);
+            }
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register transaction statistics: " + e.getMessage());
+        }
+    }
+
+    static public @Nonnull TransactionStatistics getInstance() {
+        return instance;
+    }
+
+    private final AtomicLong          commits      = new AtomicLong(0L);
+    private final AtomicLong          forcedCloses = new AtomicLong(0L);
+    private final AtomicLong          opened       = new AtomicLong(0L);
+    private final AtomicLong          rollbacks    = new AtomicLong(0L);
+    private volatile LatencyHistogram acquisition  = new LatencyHistogram();
+
+    private TransactionStatistics() { }
+
+    /**
+     * Records the opening of a connection for a transaction.
+     * @param nanos the time it took to acquire the connection from its data source in nanoseconds
+     */
+    public void opened(long nanos) {
+        opened.incrementAndGet();
+        acquisition.record(nanos);
+    }
+
+    public void committed() {
+        commits.incrementAndGet();
+    }
+
+    public void rolledBack() {
+        rollbacks.incrementAndGet();
+    }
+
+    /**
+     * Records a transaction that the transaction maid closed because it was open too long.
+     */
+    public void forceClosed() {
+        forcedCloses.incrementAndGet();
+    }
+
+    public int getOpenConnections() {
+        return Transaction.getOpenConnectionCount();
+    }
+
+    public int getOpenTransactions() {
+        return Transaction.getOpenTransactionCount();
+    }
+
+    public long getTransactionsOpened() {
+        return opened.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getRollbacks() {
+        return rollbacks.get();
+    }
+
+    public long getForcedCloses() {
+        return forcedCloses.get();
+    }
+
+    public double getConnectionAcquireLatencyMeanMillis() {
+        return acquisition.getMeanMillis();
+    }
+
+    public double getConnectionAcquireLatency95thPercentileMillis() {
+        return acquisition.getPercentileMillis(95.0);
+    }
+
+    public double getConnectionAcquireLatency99thPercentileMillis() {
+        return acquisition.getPercentileMillis(99.0);
+    }
+
+    public double getConnectionAcquireLatencyMaxMillis() {
+        return acquisition.getMaxMillis();
+    }
+
+    public long[] getConnectionAcquireLatencyHistogram() {
+        return acquisition.getBuckets();
+    }
+
+    public void resetCounters() {
+        commits.set(0L);
+        forcedCloses.set(0L);
+        opened.set(0L);
+        rollbacks.set(0L);
+        acquisition = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+/**
+ * Management interface for the transaction and connection statistics of the persistence layer. Latencies
+ * are in milliseconds.
+ */
+public interface TransactionStatisticsMBean {
+    public int getOpenConnections();
+
+    public int getOpenTransactions();
+
+    public long getTransactionsOpened();
+
+    public long getCommits();
+
+    public long getRollbacks();
+
+    public long getForcedCloses();
+
+    public double getConnectionAcquireLatencyMeanMillis();
+
+    public double getConnectionAcquireLatency95thPercentileMillis();
+
+    public double getConnectionAcquireLatency99thPercentileMillis();
+
+    public double getConnectionAcquireLatencyMaxMillis();
+
+    public long[] getConnectionAcquireLatencyHistogram();
+
+    public void resetCounters();
+}
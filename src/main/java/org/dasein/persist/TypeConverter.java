@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.ParameterizedType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Converts values read from a data store into the type of the field they are loaded into. Custom converters
+ * are registered for a field type with {@link ConverterRegistry#register(Class, TypeConverter)}.
+ */
+public interface TypeConverter {
+    /**
+     * @param fieldName the name of the field being loaded
+     * @param value the value from the data store, may be <code>null</code>
+     * @param toType the type of the field
+     * @param ptype the generic type of the field, if any
+     * @return the converted value
+     * @throws PersistenceException the value cannot be converted
+     */
+    public @Nullable Object convert(@Nonnull String fieldName, @Nullable Object value, @Nonnull Class<?> toType, @Nullable ParameterizedType ptype) throws PersistenceException;
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.jdbc.Loader;
+import org.dasein.persist.jdbc.VersionLoader;
+import org.dasein.util.CachedItem;
+
+/**
+ * Checks cache entries that expired after being written against a version or last modification column instead
+ * of reloading them. Expired entries are queued and checked in the background in batches with a single
+ * {@link VersionLoader} query per batch. Entries whose version is unchanged go back into the cache and only the
+ * others are dropped, to be fully reloaded on their next use.
+ * @param <K> the key type of the cache tier being revalidated
+ * @param <T> the type of the cached objects
+ */
+public class VersionRevalidator<K,T extends CachedItem> implements BoundedCache.Revalidator<K,T>, Runnable {
+    static private final Logger logger = Logger.getLogger(VersionRevalidator.class);
+
+    /**
+     * Decides what happens to a revalidated entry.
+     * @param <K> the key type of the cache tier being revalidated
+     * @param <T> the type of the cached objects
+     */
+    static public interface Outcome<K,T> {
+        /**
+         * The row has not changed since the object was loaded.
+         */
+        public void current(@Nonnull K key, @Nonnull T item);
+
+        /**
+         * The row changed or no longer exists.
+         */
+        public void stale(@Nonnull K key, @Nonnull T item);
+
+        /**
+         * The row could not be checked, the entry should expire as it would without revalidation.
+         */
+        public void expired(@Nonnull K key, @Nonnull T item);
+    }
+
+    /**
+     * @param cls the class of the cached objects
+     * @param field the name of a field
+     * @return true if the class or one of its superclasses declares the field
+     */
+    static public boolean hasField(@Nonnull Class<?> cls, @Nonnull String field) {
+        while( cls != null && !cls.equals(Object.class) ) {
+            for( Field f : cls.getDeclaredFields() ) {
+                if( f.getName().equals(field) ) {
+                    return true;
+                }
+            }
+            cls = cls.getSuperclass();
+        }
+        return false;
+    }
+
+    static private boolean isSameVersion(@Nullable Object cached, @Nullable Object current) {
+        if( cached == null || current == null ) {
+            return (cached == current);
+        }
+        if( cached instanceof Date && current instanceof Date ) {
+            return (((Date)cached).getTime() == ((Date)current).getTime());
+        }
+        if( cached instanceof Number && current instanceof Number ) {
+            return (((Number)cached).doubleValue() == ((Number)current).doubleValue());
+        }
+        return (cached.equals(current) || cached.toString().equals(current.toString()));
+    }
+
+    static private @Nonnull String toKey(@Nonnull Object keyValue) {
+        return (keyValue instanceof Enum ? ((Enum<?>)keyValue).name() : keyValue.toString());
+    }
+
+    private class Pending {
+        private final K key;
+        private final T item;
+
+        private Pending(K key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+
+    private final int                           batchSize;
+    private final PersistentCache<T>            cache;
+    private final String                        dataSource;
+    private final Outcome<K,T>                  outcome;
+    private final ConcurrentLinkedQueue<Pending> pending   = new ConcurrentLinkedQueue<Pending>();
+    private final AtomicBoolean                 scheduled = new AtomicBoolean(false);
+    private final String                        versionField;
+
+    /**
+     * Constructs a revalidator for one cache tier.
+     * @param cache the cache owning the tier
+     * @param dataSource the data source to check versions against
+     * @param versionField the field holding the row version or last modification time
+     * @param batchSize the maximum number of rows checked with one query
+     * @param outcome what to do with revalidated entries
+     */
+    public VersionRevalidator(@Nonnull PersistentCache<T> cache, @Nullable String dataSource, @Nonnull String versionField, int batchSize, @Nonnull Outcome<K,T> outcome) {
+        this.cache = cache;
+        this.dataSource = dataSource;
+        this.versionField = versionField;
+        this.batchSize = Math.max(1, batchSize);
+        this.outcome = outcome;
+    }
+
+    public void revalidate(@Nonnull K key, @Nonnull T item) {
+        pending.add(new Pending(key, item));
+        schedule();
+    }
+
+    private void schedule() {
+        if( scheduled.compareAndSet(false, true) && !RefreshAhead.submit(this) ) {
+            Pending p;
+
+            scheduled.set(false);
+            // the background pool is saturated, let the backlog expire as usual
+            while( (p = pending.poll()) != null ) {
+                outcome.expired(p.key, p.item);
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            ArrayList<Pending> batch = new ArrayList<Pending>(batchSize);
+
+            while( true ) {
+                Pending p;
+
+                batch.clear();
+                while( batch.size() < batchSize && (p = pending.poll()) != null ) {
+                    batch.add(p);
+                }
+                if( batch.isEmpty() ) {
+                    break;
+                }
+                check(batch);
+            }
+        }
+        finally {
+            scheduled.set(false);
+            if( !pending.isEmpty() ) {
+                schedule();
+            }
+        }
+    }
+
+    private void check(@Nonnull Collection<Pending> batch) {
+        String keyField = cache.getPrimaryKeyField();
+        ArrayList<Object> keys = new ArrayList<Object>(batch.size());
+        Map<String,Object> versions;
+
+        for( Pending p : batch ) {
+            Object key = cache.getValue(p.item, keyField);
+
+            if( key != null ) {
+                keys.add(key);
+            }
+        }
+        try {
+            versions = (keys.isEmpty() ? new HashMap<String,Object>() : loadVersions(keyField, keys));
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to revalidate " + keys.size() + " " + cache.getEntityClassName() + " rows: " + t.getMessage());
+            for( Pending p : batch ) {
+                outcome.expired(p.key, p.item);
+            }
+            return;
+        }
+        for( Pending p : batch ) {
+            Object key = cache.getValue(p.item, keyField);
+
+            if( key == null ) {
+                outcome.expired(p.key, p.item);
+            }
+            else {
+                String id = toKey(key);
+
+                if( versions.containsKey(id) && isSameVersion(cache.getValue(p.item, versionField), versions.get(id)) ) {
+                    outcome.current(p.key, p.item);
+                }
+                else {
+                    outcome.stale(p.key, p.item);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nonnull Map<String,Object> loadVersions(@Nonnull final String keyField, @Nonnull ArrayList<Object> keys) throws PersistenceException {
+        final String className = cache.getEntityClassName();
+        final String field = versionField;
+        final int count = keys.size();
+        VersionLoader loader = new VersionLoader() {
+            public void init() {
+                setTarget(className);
+                setVersionCheck(keyField, field, count);
+            }
+
+            public boolean isReadOnly() {
+                return true;
+            }
+        };
+        HashMap<String,Object> params = new HashMap<String,Object>();
+        HashMap<String,Object> versions = new HashMap<String,Object>();
+        Transaction xaction = Transaction.getInstance(true);
+        Collection<Map<String,Object>> rows;
+
+        params.put(VersionLoader.KEYS, keys);
+        try {
+            Map<String,Object> results = xaction.execute(loader, params, dataSource);
+
+            xaction.commit();
+            rows = (Collection<Map<String,Object>>)results.get(Loader.LISTING);
+        }
+        finally {
+            xaction.rollback();
+        }
+        if( rows != null ) {
+            for( Map<String,Object> row : rows ) {
+                Object key = row.get(keyField);
+
+                if( key != null ) {
+                    versions.put(toKey(key), row.get(versionField));
+                }
+            }
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tunes the caching of an entity. Each value stands in for the matching <code>dsn.cache.NAME</code> property
+ * and is overridden by a <code>dsn.cache.NAME.CLASS</code> or <code>dsn.cache.NAME.PACKAGE</code> property.
+ * Negative values leave the setting to the properties and the cache implementation.
+ */
+@Documented
+@Inherited
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CachePolicy {
+    /**
+     * @return <code>false</code> to load the entity from the data store on every request (<code>enabled</code>)
+     */
+    public boolean cached() default true;
+
+    /**
+     * @return the maximum number of entries in each secondary key cache (<code>secondary.maxEntries</code>)
+     */
+    public int maxEntries() default -1;
+
+    /**
+     * @return the number of bytes of serialized entries kept off heap (<code>offheap.maxBytes</code>)
+     */
+    public long maxBytes() default -1L;
+
+    /**
+     * @return the milliseconds an entry may be used after it was loaded (<code>expireAfterWrite</code>)
+     */
+    public long ttl() default -1L;
+
+    /**
+     * @return the milliseconds an entry may go unused before it is dropped (<code>expireAfterAccess</code>)
+     */
+    public long idleTimeout() default -1L;
+
+    /**
+     * @return the milliseconds a lookup that found nothing is remembered (<code>negative.ttl</code>)
+     */
+    public long negativeTtl() default -1L;
+
+    /**
+     * @return the milliseconds before expiry at which an entry still in use is reloaded (<code>refresh.window</code>)
+     */
+    public long refreshWindow() default -1L;
+
+    /**
+     * @return the field holding the row version or last modification time that expired entries are checked against
+     * before being reloaded (<code>revalidate.field</code>)
+     */
+    public String versionField() default "";
+}
@@ -100,6 +100,7 @@ public class AutomatedSql extends Execution {
     private ArrayList<Criterion>     criteria          = new ArrayList<Criterion>();
     private Map<Class<? extends CachedItem>,EntityJoin> entityJoins = null;
     private Join                     join              = Join.AND;
+    private StatementPlan            plan              = null;
     private String                   table             = null;
     private Class<?>                 target            = null;
     private TranslationMethod        translationMethod = TranslationMethod.NONE;
@@ -157,6 +158,13 @@ public class AutomatedSql extends Execution {
         return ptypes;
     }
     
+    /**
+     * @return the shared plan for statements of this shape or <code>null</code> if this execution has none
+     */
+    protected StatementPlan getPlan() {
+        return plan;
+    }
+
     protected String getSqlNameForClassName(String cname) {
         String[] parts = cname.split("\\.");
         int i;
@@ -528,7 +536,22 @@ public class AutomatedSql extends Execution {
         translationMethod = TranslationMethod.CUSTOM;
     }
 
+    /**
+     * Builds this execution against a plan shared by every execution of the same shape. Must be called
+     * before the target is set so the target's fields are parsed only once for the plan.
+     * @param plan the plan for this execution's shape
+     */
+    protected void setPlan(StatementPlan plan) {
+        this.plan = plan;
+    }
+
     protected void setTarget(String cname) {
+        StatementPlan.Target t = (plan == null ? null : plan.getTarget());
+
+        if( t != null && t.cls.getName().equals(cname) ) {
+            setTarget(t.cls);
+            return;
+        }
         try {
             setTarget(Class.forName(cname));
         }
@@ -538,8 +561,23 @@ public class AutomatedSql extends Execution {
     }
 
     protected void setTarget(Class<?> cls) {
+        StatementPlan.Target t = (plan == null ? null : plan.getTarget());
+
+        if( t != null && t.cls.equals(cls) ) {
+            target = cls;
+            table = t.table;
+            columns.addAll(t.columns);
+            types.putAll(t.types);
+            ptypes.putAll(t.ptypes);
+            translators.addAll(t.translators);
+            setDsn(t.dsn);
+            return;
+        }
         setTarget(getSqlName(cls), cls);
         setDsn(getDataSourceName(cls.getName()));
+        if( plan != null ) {
+            plan.setTarget(new StatementPlan.Target(cls, table, dsn, columns, types, ptypes, translators));
+        }
     }
 
     protected void setTarget(String tname, Class<?> cls) {
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.jdbc;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+
+/**
+ * Loads a batch of complete rows by primary key with a single
+ * <code>SELECT ... FROM table WHERE key IN (...)</code>. The key values are passed in the {@link #KEYS}
+ * parameter as a list and the matching rows come back under {@link Loader#LISTING} in no particular order.
+ */
+public class BatchLoader extends KeyListLoader {
+    private String                   sql          = null;
+
+    public BatchLoader() {
+        super();
+    }
+
+    public synchronized String getStatement() throws SQLException {
+        if( sql == null ) {
+            StringBuilder str = new StringBuilder();
+            Iterator<String> it = getColumns().iterator();
+
+            str.append("SELECT ");
+            while( it.hasNext() ) {
+                str.append(getIdentifier(getTableName(), getSqlName(it.next())));
+                if( it.hasNext() ) {
+                    str.append(", ");
+                }
+            }
+            str.append(" FROM ");
+            str.append(getIdentifier(getTableName()));
+            appendKeyCondition(str);
+            sql = str.toString();
+            getReaders();
+        }
+        return sql;
+    }
+
+    /**
+     * Sets up the load of a batch of rows.
+     * @param keyField the primary key field
+     * @param count the number of key values in the batch
+     */
+    protected void setBatch(String keyField, int count) {
+        setKeys(keyField, count);
+    }
+}
@@ -38,32 +38,45 @@ public class Counter extends AutomatedSql {
     
     public synchronized String getStatement() throws SQLException {
         if( sql == null ) {
-            StringBuilder str = new StringBuilder();
+            StatementPlan plan = getPlan();
+            String dialect = (plan == null ? null : StatementPlan.getDialect(this));
 
-            str.append("SELECT COUNT( * ) FROM ");
-            str.append(getIdentifier(getTableName()));
-            if( !getCriteria().isEmpty() ) {
-                Iterator<Criterion> criteria;
+            sql = (dialect == null ? null : plan.getStatement(dialect));
+            if( sql == null ) {
+                sql = buildStatement();
+                if( dialect != null ) {
+                    plan.setStatement(dialect, sql);
+                }
+            }
+        }
+        return sql;
+    }
+
+    private String buildStatement() throws SQLException {
+        StringBuilder str = new StringBuilder();
+
+        str.append("SELECT COUNT( * ) FROM ");
+        str.append(getIdentifier(getTableName()));
+        if( !getCriteria().isEmpty() ) {
+            Iterator<Criterion> criteria;
+            
+            str.append(" WHERE ");
+            criteria = getCriteria().iterator();
+            while( criteria.hasNext() ) {
+                Criterion criterion = criteria.next();
                 
-                str.append(" WHERE ");
-                criteria = getCriteria().iterator();
-                while( criteria.hasNext() ) {
-                    Criterion criterion = criteria.next();
-                    
-                    str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
+                str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
+                str.append(" ");
+                str.append(criterion.operator.toString());
+                str.append(" ?");
+                if( criteria.hasNext() ) {
+                    str.append(" ");
+                    str.append(getJoin().toString());
                     str.append(" ");
-                    str.append(criterion.operator.toString());
-                    str.append(" ?");
-                    if( criteria.hasNext() ) {
-                        str.append(" ");
-                        str.append(getJoin().toString());
-                        str.append(" ");
-                    }
                 }
             }
-            sql = str.toString();
         }
-        return sql;
+        return str.toString();
     }
     
     public void prepare(Map<String,Object> params) throws SQLException {
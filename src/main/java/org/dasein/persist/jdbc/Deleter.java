@@ -36,38 +36,51 @@ public class Deleter extends AutomatedSql {
     
     public synchronized String getStatement() throws SQLException {
         if( sql == null ) {
-            StringBuilder str = new StringBuilder();
+            StatementPlan plan = getPlan();
+            String dialect = (plan == null ? null : StatementPlan.getDialect(this));
+
+            sql = (dialect == null ? null : plan.getStatement(dialect));
+            if( sql == null ) {
+                sql = buildStatement();
+                if( dialect != null ) {
+                    plan.setStatement(dialect, sql);
+                }
+            }
+        }
+        return sql;
+    }
+
+    private String buildStatement() throws SQLException {
+        StringBuilder str = new StringBuilder();
+        
+        str.append("DELETE FROM ");
+        str.append(getIdentifier(getTableName()));
+        if( !getCriteria().isEmpty() ) {
+            Iterator<Criterion> criteria;
             
-            str.append("DELETE FROM ");
-            str.append(getIdentifier(getTableName()));
-            if( !getCriteria().isEmpty() ) {
-                Iterator<Criterion> criteria;
-                
-                str.append(" WHERE ");
-                criteria = getCriteria().iterator();
-                while( criteria.hasNext() ) {
-                    Criterion criterion = criteria.next();
-                    String col = criterion.column;
-             
-                    if( col.equals("timestamp") ) {
-                        str.append(getIdentifier("last_modified"));
-                    }
-                    else {
-                        str.append(getIdentifier(getSqlName(col)));
-                    }
+            str.append(" WHERE ");
+            criteria = getCriteria().iterator();
+            while( criteria.hasNext() ) {
+                Criterion criterion = criteria.next();
+                String col = criterion.column;
+         
+                if( col.equals("timestamp") ) {
+                    str.append(getIdentifier("last_modified"));
+                }
+                else {
+                    str.append(getIdentifier(getSqlName(col)));
+                }
+                str.append(" ");
+                str.append(criterion.operator.toString());
+                str.append(" ?");
+                if( criteria.hasNext() ) {
+                    str.append(" ");
+                    str.append(getJoin().toString());
                     str.append(" ");
-                    str.append(criterion.operator.toString());
-                    str.append(" ?");
-                    if( criteria.hasNext() ) {
-                        str.append(" ");
-                        str.append(getJoin().toString());
-                        str.append(" ");
-                    }
                 }
             }
-            sql = str.toString();
         }
-        return sql;
+        return str.toString();
     }
     
     public void prepare(Map<String,Object> params) throws SQLException {
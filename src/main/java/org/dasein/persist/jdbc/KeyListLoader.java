@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist.jdbc;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base for loaders that select a batch of rows by primary key with a single
+ * <code>WHERE key IN (...)</code> condition. The key values are passed in the {@link #KEYS} parameter as a list.
+ */
+public abstract class KeyListLoader extends Loader {
+    static public final String KEYS = "--keys--";
+
+    private int                      count        = 0;
+    private String                   keyField     = null;
+
+    public KeyListLoader() {
+        super();
+    }
+
+    /**
+     * Appends the <code>WHERE key IN (?, ...)</code> condition with one placeholder per key value.
+     * @param str the statement being built
+     */
+    protected void appendKeyCondition(StringBuilder str) throws SQLException {
+        str.append(" WHERE ");
+        str.append(getIdentifier(getTableName(), getSqlName(keyField)));
+        str.append(" IN (");
+        for( int i=0; i<count; i++ ) {
+            if( i > 0 ) {
+                str.append(", ");
+            }
+            str.append("?");
+        }
+        str.append(")");
+    }
+
+    protected String getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * Sets up the key condition for a batch of rows.
+     * @param keyField the primary key field
+     * @param count the number of key values in the batch
+     */
+    protected void setKeys(String keyField, int count) {
+        this.keyField = keyField;
+        this.count = count;
+    }
+
+    public void prepare(Map<String,Object> params) throws SQLException {
+        List<?> keys = (List<?>)params.get(KEYS);
+        int i = 1;
+
+        for( Object key : keys ) {
+            prepare(keyField, i++, key);
+        }
+    }
+}
@@ -28,9 +28,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.dasein.persist.PersistenceException;
@@ -45,9 +47,15 @@ public class Loader extends AutomatedSql {
     static public final Logger logger = Logger.getLogger(Loader.class);
     
     static public final String LISTING = "listing";
+
+    static private final ConcurrentHashMap<Class<?>,Constructor<?>> measuredConstructors = new ConcurrentHashMap<Class<?>,Constructor<?>>();
+    static private final ConcurrentHashMap<Class<?>,Boolean>        customValues         = new ConcurrentHashMap<Class<?>,Boolean>();
     
+    private HashMap<String,ColumnReader>                columnReaders;
     private boolean                                     descending;
+    private Row.Layout                                  layout;
     private ArrayList<String>                           order;
+    private ColumnReader[]                              readers;
     private String                                      sql;
     
     public Loader() {
@@ -58,98 +66,112 @@ public class Loader extends AutomatedSql {
         logger.debug("enter - getStatement()");
         try {
             if( sql == null ) {
-                StringBuilder str = new StringBuilder();
-                Iterator<String> it = getColumns().iterator();
-    
-                str.append("SELECT ");
-                while( it.hasNext() ) {
-                    String col = it.next();
-                    
-                    str.append(getIdentifier(getTableName(), getSqlName(col)));
-                    if( it.hasNext() ) {
-                        str.append(", ");
+                StatementPlan plan = getPlan();
+                String dialect = (plan == null ? null : StatementPlan.getDialect(this));
+
+                sql = (dialect == null ? null : plan.getStatement(dialect));
+                if( sql == null ) {
+                    sql = buildStatement();
+                    if( dialect != null ) {
+                        plan.setStatement(dialect, sql);
                     }
                 }
-                str.append(" FROM ");
-                str.append(getIdentifier(getTableName()));
-                if( !getCriteria().isEmpty() ) {
-                    ArrayList<Class<? extends CachedItem>> joins = new ArrayList<Class<? extends CachedItem>>(4);
-                    Iterator<Criterion> criteria;
-
-                    criteria = getCriteria().iterator();
-                    while( criteria.hasNext() ) {
-                        Criterion c = criteria.next();
+                getReaders();
+            }
+            return sql;
+        }
+        finally {
+            logger.debug("exit - getStatement()");
+        }
+    }
+
+    private String buildStatement() throws SQLException {
+        StringBuilder str = new StringBuilder();
+        Iterator<String> it = getColumns().iterator();
+    
+        str.append("SELECT ");
+        while( it.hasNext() ) {
+            String col = it.next();
+            
+            str.append(getIdentifier(getTableName(), getSqlName(col)));
+            if( it.hasNext() ) {
+                str.append(", ");
+            }
+        }
+        str.append(" FROM ");
+        str.append(getIdentifier(getTableName()));
+        if( !getCriteria().isEmpty() ) {
+            ArrayList<Class<? extends CachedItem>> joins = new ArrayList<Class<? extends CachedItem>>(4);
+            Iterator<Criterion> criteria;
+
+            criteria = getCriteria().iterator();
+            while( criteria.hasNext() ) {
+                Criterion c = criteria.next();
+                
+                if( c.entity != null && !joins.contains(c.entity) ) {
+                    EntityJoin j = getEntityJoin(c.entity);
                         
-                        if( c.entity != null && !joins.contains(c.entity) ) {
-                            EntityJoin j = getEntityJoin(c.entity);
-                                
-                            if( j != null ) { 
-                                joins.add(c.entity);
-                            }
-                        }
-                    }
-                    if( joins.size() > 0 ) {
-                        for( Class<? extends CachedItem> c : joins ) {
-                            str.append(",");
-                            str.append(getIdentifier(getSqlName(c)));
-                        }
-                        str.append(" WHERE ");
-                        for( Class<? extends CachedItem> c : joins ) {
-                            EntityJoin j = getEntityJoin(c);
-                            
-                            if( j != null ) {
-                                str.append(getIdentifier(getTableName(), getSqlName(j.localField)));
-                                str.append("=");
-                                str.append(getIdentifier(getSqlName(j.joinEntity), getSqlName(j.joinField)));
-                                str.append(" AND ");
-                            }
-                        }
-                    }
-                    else {
-                        str.append(" WHERE ");
-                    }
-                    criteria = getCriteria().iterator();
-                    while( criteria.hasNext() ) {
-                        Criterion criterion = criteria.next();
-
-                        if( criterion.entity == null ) {
-                            str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
-                        }
-                        else {
-                            str.append(getIdentifier(getSqlName(criterion.entity), getSqlName(criterion.column)));
-                        }
-                        str.append(" ");
-                        str.append(criterion.operator.toString());
-                        str.append(" ?");
-                        if( criteria.hasNext() ) {
-                            str.append(" ");
-                            str.append(getJoin().toString());
-                            str.append(" ");
-                        }
+                    if( j != null ) { 
+                        joins.add(c.entity);
                     }
                 }
-                if( order != null && order.size() > 0 ) {
-                    str.append(" ORDER BY ");
-                    it = order.iterator();
-                    while( it.hasNext() ) {
-                        String col = it.next();
-                        
-                        str.append(getIdentifier(getTableName(), getSqlName(col)));
-                        if( it.hasNext() ) {
-                            str.append(", ");
-                        }
-                    }
-                    if( descending ) {
-                        str.append(" DESC ");
+            }
+            if( joins.size() > 0 ) {
+                for( Class<? extends CachedItem> c : joins ) {
+                    str.append(",");
+                    str.append(getIdentifier(getSqlName(c)));
+                }
+                str.append(" WHERE ");
+                for( Class<? extends CachedItem> c : joins ) {
+                    EntityJoin j = getEntityJoin(c);
+                    
+                    if( j != null ) {
+                        str.append(getIdentifier(getTableName(), getSqlName(j.localField)));
+                        str.append("=");
+                        str.append(getIdentifier(getSqlName(j.joinEntity), getSqlName(j.joinField)));
+                        str.append(" AND ");
                     }
                 }
-                sql = str.toString();
             }
-            return sql;
+            else {
+                str.append(" WHERE ");
+            }
+            criteria = getCriteria().iterator();
+            while( criteria.hasNext() ) {
+                Criterion criterion = criteria.next();
+
+                if( criterion.entity == null ) {
+                    str.append(getIdentifier(getTableName(), getSqlName(criterion.column)));
+                }
+                else {
+                    str.append(getIdentifier(getSqlName(criterion.entity), getSqlName(criterion.column)));
+                }
+                str.append(" ");
+                str.append(criterion.operator.toString());
+                str.append(" ?");
+                if( criteria.hasNext() ) {
+                    str.append(" ");
+                    str.append(getJoin().toString());
+                    str.append(" ");
+                }
+            }
         }
-        finally {
-            logger.debug("exit - getStatement()");
+        if( order != null && order.size() > 0 ) {
+            str.append(" ORDER BY ");
+            it = order.iterator();
+            while( it.hasNext() ) {
+                String col = it.next();
+                
+                str.append(getIdentifier(getTableName(), getSqlName(col)));
+                if( it.hasNext() ) {
+                    str.append(", ");
+                }
+            }
+            if( descending ) {
+                str.append(" DESC ");
+            }
         }
+        return str.toString();
     }
     
     protected void setOrder(boolean desc, String... cols) {
@@ -175,7 +197,9 @@ public class Loader extends AutomatedSql {
     public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
         ArrayList<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
         HashMap<String,Object> map = new HashMap<String,Object>(1);
-        int count = getColumns().size();
+        ColumnReader[] readers = getReaders();
+        Row.Layout layout = getLayout();
+        boolean custom = hasCustomValues();
         long startTimestamp = System.currentTimeMillis();
         
         map.put(LISTING, list);
@@ -185,12 +209,10 @@ public class Loader extends AutomatedSql {
 
         try {
             while( results.next() ) {
-                HashMap<String,Object> state = new HashMap<String,Object>();
+                Row state = new Row(layout);
                 
-                for( int i=1; i<=count; i++) {
-                    Object ob = getValue(getColumns().get(i-1), i, results);
-                    
-                    state.put(getColumns().get(i-1), ob);
+                for( int i=0; i<readers.length; i++) {
+                    state.setValue(i, custom ? getValue(layout.getColumn(i), i+1, results) : readers[i].read(results, i+1));
                 }
                 list.add(state);
             }
@@ -221,93 +243,338 @@ public class Loader extends AutomatedSql {
         }
         return map;
     }
-    
-    @SuppressWarnings({ "unchecked", "rawtypes" })
+
+    /**
+     * @return the layout shared by the rows this loader returns
+     */
+    protected synchronized Row.Layout getLayout() {
+        if( layout == null ) {
+            StatementPlan plan = getPlan();
+
+            layout = (plan == null ? null : plan.getLayout());
+            if( layout == null ) {
+                layout = new Row.Layout(getColumns());
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * @return a reader for each selected column, in the order of the columns in the statement
+     * @throws SQLException a column has a type that cannot be read
+     */
+    protected synchronized ColumnReader[] getReaders() throws SQLException {
+        if( readers == null ) {
+            StatementPlan plan = getPlan();
+
+            if( plan != null && plan.getReaders() != null ) {
+                readers = plan.getReaders();
+                layout = plan.getLayout();
+            }
+            else {
+                List<String> cols = getColumns();
+                ColumnReader[] list = new ColumnReader[cols.size()];
+
+                for( int i=0; i<list.length; i++ ) {
+                    list[i] = getReader(cols.get(i));
+                }
+                readers = list;
+                if( plan != null ) {
+                    plan.setReaders(list, getLayout());
+                }
+            }
+        }
+        return readers;
+    }
+
+    private synchronized ColumnReader getReader(String col) throws SQLException {
+        ColumnReader reader = (columnReaders == null ? null : columnReaders.get(col));
+
+        if( reader == null ) {
+            reader = newReader(getTypes().get(col), getParameterizedTypes().get(col));
+            if( columnReaders == null ) {
+                columnReaders = new HashMap<String,ColumnReader>();
+            }
+            columnReaders.put(col, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @return true if this loader overrides {@link #getValue(String, int, ResultSet)}, in which case every column
+     * is read through it instead of straight through the column readers
+     */
+    private boolean hasCustomValues() {
+        Boolean custom = customValues.get(getClass());
+
+        if( custom == null ) {
+            try {
+                custom = !getClass().getMethod("getValue", String.class, int.class, ResultSet.class).getDeclaringClass().equals(Loader.class);
+            }
+            catch( NoSuchMethodException e ) {
+                custom = false;
+            }
+            customValues.putIfAbsent(getClass(), custom);
+        }
+        return custom;
+    }
+
+    /**
+     * Reads the value of a column from the current row of a result set. Subclasses may override this to change
+     * how values are read; by default the value comes from the column reader for the column's type.
+     * @param col the name of the column
+     * @param i the position of the column in the result set, starting at 1
+     * @param rs the result set
+     * @return the value of the column
+     * @throws SQLException the column could not be read
+     */
     public Object getValue(String col, int i, ResultSet rs) throws SQLException {
-        Class<?> type = getTypes().get(col);
-        Object ob;
+        return getReader(col).read(rs, i);
+    }
+
+    /**
+     * Reads the value of a single column from the current row of a result set.
+     */
+    static public interface ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException;
+    }
 
+    /**
+     * Creates the reader for a column of the specified type. Readers are shared through the statement plan
+     * by every loader running the same statement, so none of them holds on to the loader that created it.
+     * @param type the type of the field the column maps to
+     * @param pt the parameterized type of the field, if any
+     * @return the reader for the column
+     */
+    static private ColumnReader newReader(Class<?> type, ParameterizedType pt) {
         if( type.equals(String.class) ) {
+            return STRING_READER;
+        }
+        else if( type.equals(Boolean.class) || type.equals(boolean.class)) {
+            return BOOLEAN_READER;
+        }
+        else if( type.equals(Locale.class) ) {
+            return LOCALE_READER;
+        }
+        else if( type.equals(LocalizationGroup.class) ) {
+            return LOCALIZATION_GROUP_READER;
+        }
+        else if( Measured.class.isAssignableFrom(type) ) {
+            return new MeasuredReader(type, pt);
+        }
+        else if( Number.class.isAssignableFrom(type) || type.equals(long.class) || type.equals(int.class) || type.equals(short.class) || type.equals(float.class) || type.equals(double.class) ) {
+            return new NumberReader(type);
+        }
+        else if( Enum.class.isAssignableFrom(type) ) {
+            return new EnumReader(type);
+        }
+        else if( type.equals(UUID.class) ) {
+            return UUID_READER;
+        }
+        else if( type.getName().startsWith("java.") ){
+            return OBJECT_READER;
+        }
+        else {
+            Method m;
+
+            try {
+                m = type.getDeclaredMethod("valueOf", String.class);
+            }
+            catch( Exception e ) {
+                m = null;
+            }
+            return new ValueOfReader(type, m);
+        }
+    }
+
+    static private final ColumnReader STRING_READER = new StringReader();
+
+    static private class StringReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
             String str = rs.getString(i);
-            
+
             if( rs.wasNull() || str == null ) {
-                ob = null;
-            }
-            else {
-                ob = str.trim();
+                return null;
             }
+            return str.trim();
         }
-        else if( type.equals(Boolean.class) || type.equals(boolean.class)) {
+    }
+
+    static private final ColumnReader BOOLEAN_READER = new BooleanReader();
+
+    static private class BooleanReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
             String str = rs.getString(i);
-            
-            ob = (!rs.wasNull() && str != null && str.equalsIgnoreCase("Y"));
+
+            return (!rs.wasNull() && str != null && str.equalsIgnoreCase("Y"));
         }
-        else if( type.equals(Locale.class) ) {
+    }
+
+    static private final ColumnReader LOCALE_READER = new LocaleReader();
+
+    static private class LocaleReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
             String str = rs.getString(i);
-            
+
             if( rs.wasNull() || str == null ) {
-                ob = null;
+                return null;
             }
-            else {
-                String[] parts = str.split("_");
-                
-                if( parts != null && parts.length > 1 ) {
-                    ob = new Locale(parts[0], parts[1]);
-                }
-                else {
-                    ob = new Locale(parts[0]);
-                }
+            String[] parts = str.split("_");
+
+            if( parts != null && parts.length > 1 ) {
+                return new Locale(parts[0], parts[1]);
             }
+            return new Locale(parts[0]);
         }
-        else if( type.equals(LocalizationGroup.class) ) {
+    }
+
+    static private final ColumnReader LOCALIZATION_GROUP_READER = new LocalizationGroupReader();
+
+    static private class LocalizationGroupReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
             String str = rs.getString(i);
-            
+
             if( rs.wasNull() || str == null ) {
-                ob = null;
+                return null;
             }
-            else {
-                ob = LocalizationGroup.valueOf(str);
+            return LocalizationGroup.valueOf(str);
+        }
+    }
+
+    static private class NumberReader implements ColumnReader {
+        private final Class<?> type;
+
+        private NumberReader(Class<?> type) {
+            this.type = type;
+        }
+
+        public Object read(ResultSet rs, int i) throws SQLException {
+            return loadNumber(type, rs, i);
+        }
+    }
+
+    static private class EnumReader implements ColumnReader {
+        private final Class<?> type;
+
+        private EnumReader(Class<?> type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Object read(ResultSet rs, int i) throws SQLException {
+            String str = rs.getString(i);
+
+            if( str == null || rs.wasNull() ) {
+                return null;
             }
+            return Enum.valueOf((Class<? extends Enum>)type, str);
         }
-        else if( Measured.class.isAssignableFrom(type) ) {
-            ParameterizedType pt = getParameterizedTypes().get(col);
-            Number num;
-            
+    }
+
+    static private final ColumnReader UUID_READER = new UUIDReader();
+
+    static private class UUIDReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
+            String str = rs.getString(i);
+
+            if( rs.wasNull() || str == null ) {
+                return null;
+            }
+            return UUID.fromString(str);
+        }
+    }
+
+    static private final ColumnReader OBJECT_READER = new ObjectReader();
+
+    static private class ObjectReader implements ColumnReader {
+        public Object read(ResultSet rs, int i) throws SQLException {
+            Object ob = rs.getObject(i);
+
+            if( rs.wasNull() ) {
+                return null;
+            }
+            return ob;
+        }
+    }
+
+    static private class ValueOfReader implements ColumnReader {
+        private final Class<?> type;
+        private final Method   valueOf;
+
+        private ValueOfReader(Class<?> type, Method valueOf) {
+            this.type = type;
+            this.valueOf = valueOf;
+        }
+
+        public Object read(ResultSet rs, int i) throws SQLException {
+            String str = rs.getString(i);
+
+            if( str == null || rs.wasNull() ) {
+                return null;
+            }
             try {
-                num = loadNumber(double.class, rs, i);
+                if( valueOf == null ) {
+                    throw new NoSuchMethodException("valueOf");
+                }
+                return valueOf.invoke(null, str);
+            }
+            catch( Exception e ) {
+                throw new SQLException("I have no idea how to map to " + type.getName());
+            }
+        }
+    }
+
+    static private Constructor<?> getMeasuredConstructor(Class<?> type) {
+        Constructor<?> constructor = measuredConstructors.get(type);
+
+        if( constructor == null ) {
+            for( Constructor<?> c : type.getDeclaredConstructors() ) {
+                Class<?>[] args = c.getParameterTypes();
+
+                if( args != null && args.length == 2 && Number.class.isAssignableFrom(args[0]) && UnitOfMeasure.class.isAssignableFrom(args[1]) ) {
+                    constructor = c;
+                    break;
+                }
+            }
+            if( constructor != null ) {
+                measuredConstructors.putIfAbsent(type, constructor);
+            }
+        }
+        return constructor;
+    }
+
+    static private class MeasuredReader implements ColumnReader {
+        private final ParameterizedType pt;
+        private final Class<?>          type;
+
+        private MeasuredReader(Class<?> type, ParameterizedType pt) {
+            this.type = type;
+            this.pt = pt;
+        }
+
+        public Object read(ResultSet rs, int i) throws SQLException {
+            try {
+                Number num = loadNumber(double.class, rs, i);
+
                 if( num == null ) {
-                    ob = null;
+                    return null;
                 }
-                else {
-                    Constructor<? extends Measured> constructor = null;
-                    
-                    for( Constructor<?> c : type.getDeclaredConstructors() ) {
-                        Class[] args = c.getParameterTypes();
-                        
-                        if( args != null && args.length == 2 && Number.class.isAssignableFrom(args[0]) && UnitOfMeasure.class.isAssignableFrom(args[1]) ) {
-                            constructor = (Constructor<? extends Measured>)c;
-                            break;
-                        }
-                    }
-                    if( constructor == null ) {
-                        throw new SQLException("Unable to map with no proper constructor");
-                    }
-                    else {
-                        ob = constructor.newInstance(num, ((Class<?>)pt.getActualTypeArguments()[0]).newInstance());
-                    }
+                Constructor<?> constructor = getMeasuredConstructor(type);
+
+                if( constructor == null ) {
+                    throw new SQLException("Unable to map with no proper constructor");
                 }
+                return constructor.newInstance(num, ((Class<?>)pt.getActualTypeArguments()[0]).newInstance());
             }
             catch( SQLException e ) {
                 try {
                     Method m = type.getDeclaredMethod("valueOf", String.class);
                     String str = rs.getString(i);
-                    
+
                     if( rs.wasNull() ) {
-                        ob = null;
-                    }
-                    else {
-                        ob = m.invoke(null, str);
+                        return null;
                     }
+                    return m.invoke(null, str);
                 }
                 catch( Exception more ) {
                     String err = "I have no idea how to map to " + type.getName() + " / " + pt + ": " + e.getMessage();
@@ -321,56 +588,9 @@ public class Loader extends AutomatedSql {
                 throw new SQLException(err);
             }
         }
-        else if( Number.class.isAssignableFrom(type) || type.equals(long.class) || type.equals(int.class) || type.equals(short.class) || type.equals(float.class) || type.equals(double.class) ) {
-            ob = loadNumber(type, rs, i);
-        }
-        else if( Enum.class.isAssignableFrom(type) ) {
-            String str = rs.getString(i);
-            
-            if( str == null || rs.wasNull() ) {
-                ob = null;
-            }
-            else {
-                ob = Enum.valueOf((Class<? extends Enum>)type, str);
-            }
-        }
-        else if( type.equals(UUID.class) ) {
-            String str = rs.getString(i);
-            
-            if( rs.wasNull() || str == null ) {
-                ob = null;
-            }
-            else {
-                ob = UUID.fromString(str);
-            }
-        }
-        else if( type.getName().startsWith("java.") ){
-            ob = rs.getObject(i);
-            if( rs.wasNull() ) {
-                ob = null;
-            }
-        }
-        else {
-            String str = rs.getString(i);
-
-            if( str == null || rs.wasNull() ) {
-                ob = null;
-            }
-            else {
-                try {
-                    Method m = type.getDeclaredMethod("valueOf", String.class);
-                    
-                    ob = m.invoke(null, str);
-                }
-                catch( Exception e ) {
-                    throw new SQLException("I have no idea how to map to " + type.getName());
-                }
-            }
-        }
-        return ob;
     }
     
-    private Number loadNumber(Class<?> type, ResultSet rs, int i) throws SQLException {
+    static private Number loadNumber(Class<?> type, ResultSet rs, int i) throws SQLException {
         if( type.getName().equals(Long.class.getName()) || type.equals(long.class) ) {
             long l = rs.getLong(i);
             
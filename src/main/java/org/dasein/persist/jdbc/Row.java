@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist.jdbc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A single result row held positionally against a column layout shared by every row of the same query.
+ * Rows behave as ordinary maps so existing consumers keep working, but the column names and their positions
+ * are stored once per query instead of once per row. Values stored under names outside the layout, such as
+ * translations, go into a small overflow map.
+ */
+public class Row extends AbstractMap<String,Object> {
+    static private final Object ABSENT = new Object();
+
+    /**
+     * The column names of a query and their positions within each row.
+     */
+    static public class Layout {
+        private final String[]               columns;
+        private final HashMap<String,Integer> positions;
+
+        public Layout(List<String> columns) {
+            this.columns = columns.toArray(new String[columns.size()]);
+            positions = new HashMap<String,Integer>(this.columns.length * 2);
+            for( int i=0; i<this.columns.length; i++ ) {
+                positions.put(this.columns[i], i);
+            }
+        }
+
+        public String getColumn(int i) {
+            return columns[i];
+        }
+
+        public int indexOf(Object column) {
+            Integer i = positions.get(column);
+
+            return (i == null ? -1 : i);
+        }
+
+        public int size() {
+            return columns.length;
+        }
+    }
+
+    private HashMap<String,Object> extra = null;
+    private final Layout           layout;
+    private final Object[]         values;
+
+    public Row(Layout layout) {
+        this.layout = layout;
+        values = new Object[layout.size()];
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @param i the position of the column in the layout
+     * @return the value at that position, <code>null</code> if it has been removed
+     */
+    public Object getValue(int i) {
+        Object ob = values[i];
+
+        return (ob == ABSENT ? null : ob);
+    }
+
+    /**
+     * @param i the position of the column in the layout
+     * @return true if the row holds a value, possibly <code>null</code>, at that position
+     */
+    public boolean hasValue(int i) {
+        return (values[i] != ABSENT);
+    }
+
+    public void setValue(int i, Object value) {
+        values[i] = value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int i = layout.indexOf(key);
+
+        if( i > -1 ) {
+            return (values[i] != ABSENT);
+        }
+        return (extra != null && extra.containsKey(key));
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = layout.indexOf(key);
+
+        if( i > -1 ) {
+            return getValue(i);
+        }
+        return (extra == null ? null : extra.get(key));
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int i = layout.indexOf(key);
+
+        if( i > -1 ) {
+            Object old = getValue(i);
+
+            values[i] = value;
+            return old;
+        }
+        if( extra == null ) {
+            extra = new HashMap<String,Object>();
+        }
+        return extra.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int i = layout.indexOf(key);
+
+        if( i > -1 ) {
+            Object old = getValue(i);
+
+            values[i] = ABSENT;
+            return old;
+        }
+        return (extra == null ? null : extra.remove(key));
+    }
+
+    @Override
+    public int size() {
+        int count = (extra == null ? 0 : extra.size());
+
+        for( Object ob : values ) {
+            if( ob != ABSENT ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String,Object>>() {
+            public Iterator<Map.Entry<String,Object>> iterator() {
+                return new RowIterator();
+            }
+
+            public int size() {
+                return Row.this.size();
+            }
+        };
+    }
+
+    private class RowEntry implements Map.Entry<String,Object> {
+        private final int index;
+
+        private RowEntry(int index) {
+            this.index = index;
+        }
+
+        public String getKey() {
+            return layout.getColumn(index);
+        }
+
+        public Object getValue() {
+            return Row.this.getValue(index);
+        }
+
+        public Object setValue(Object value) {
+            Object old = Row.this.getValue(index);
+
+            values[index] = value;
+            return old;
+        }
+
+        public boolean equals(Object ob) {
+            if( !(ob instanceof Map.Entry) ) {
+                return false;
+            }
+            Map.Entry<?,?> other = (Map.Entry<?,?>)ob;
+            Object value = getValue();
+
+            return getKey().equals(other.getKey()) && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        public int hashCode() {
+            Object value = getValue();
+
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+    }
+
+    private class RowIterator implements Iterator<Map.Entry<String,Object>> {
+        private Iterator<Map.Entry<String,Object>> overflow = null;
+        private int                                 next     = -1;
+        private int                                 last     = -1;
+
+        private RowIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next++;
+            while( next < values.length && values[next] == ABSENT ) {
+                next++;
+            }
+            if( next >= values.length && overflow == null && extra != null ) {
+                overflow = extra.entrySet().iterator();
+            }
+        }
+
+        public boolean hasNext() {
+            return (next < values.length || (overflow != null && overflow.hasNext()));
+        }
+
+        public Map.Entry<String,Object> next() {
+            if( next < values.length ) {
+                final int i = next;
+
+                last = i;
+                advance();
+                return new RowEntry(i);
+            }
+            if( overflow == null ) {
+                throw new NoSuchElementException();
+            }
+            last = -1;
+            return overflow.next();
+        }
+
+        public void remove() {
+            if( last > -1 ) {
+                values[last] = ABSENT;
+                last = -1;
+            }
+            else if( overflow != null ) {
+                overflow.remove();
+            }
+            else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist.jdbc;
+
+import java.lang.reflect.ParameterizedType;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parts of an automated statement that depend only on its shape: the parsed target fields, the
+ * SQL for each database dialect and, for loaders, the column readers and row layout. Executions are
+ * stateful and cannot be shared between threads, so each call still gets its own execution, but
+ * executions built against the same plan parse the target and build their SQL only once.
+ */
+public class StatementPlan {
+    private volatile Target                             target;
+    private volatile Loader.ColumnReader[]              readers;
+    private volatile Row.Layout                         layout;
+    private final ConcurrentHashMap<String,String>      statements = new ConcurrentHashMap<String,String>();
+
+    static class Target {
+        final Class<?>                          cls;
+        final String                            table;
+        final String                            dsn;
+        final List<String>                      columns;
+        final Map<String,Class<?>>              types;
+        final Map<String,ParameterizedType>     ptypes;
+        final Collection<String>                translators;
+
+        Target(Class<?> cls, String table, String dsn, List<String> columns, Map<String,Class<?>> types, Map<String,ParameterizedType> ptypes, Collection<String> translators) {
+            this.cls = cls;
+            this.table = table;
+            this.dsn = dsn;
+            this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+            this.types = Collections.unmodifiableMap(new HashMap<String,Class<?>>(types));
+            this.ptypes = Collections.unmodifiableMap(new HashMap<String,ParameterizedType>(ptypes));
+            this.translators = Collections.unmodifiableList(new ArrayList<String>(translators));
+        }
+    }
+
+    public StatementPlan() { }
+
+    Target getTarget() {
+        return target;
+    }
+
+    void setTarget(Target target) {
+        this.target = target;
+    }
+
+    Loader.ColumnReader[] getReaders() {
+        return readers;
+    }
+
+    Row.Layout getLayout() {
+        return layout;
+    }
+
+    void setReaders(Loader.ColumnReader[] readers, Row.Layout layout) {
+        this.layout = layout;
+        this.readers = readers;
+    }
+
+    String getStatement(String dialect) {
+        return statements.get(dialect);
+    }
+
+    void setStatement(String dialect, String sql) {
+        statements.putIfAbsent(dialect, sql);
+    }
+
+    /**
+     * Identifies the database dialect of an execution for statement lookups, since quoting and
+     * identifier case are part of the generated SQL. Both are cached per connection by the execution, so
+     * this does not read the connection metadata again for every statement.
+     * @param exec the execution whose connection determines the dialect
+     * @return a key for the dialect
+     * @throws SQLException the connection metadata could not be read
+     */
+    static String getDialect(AutomatedSql exec) throws SQLException {
+        return exec.getQuotes() + (exec.connection != null && exec.isUpperCase() ? "U" : "");
+    }
+}
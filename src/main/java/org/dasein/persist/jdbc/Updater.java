@@ -21,71 +21,148 @@
 package org.dasein.persist.jdbc;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.dasein.persist.BoundedCache;
 import org.dasein.persist.PersistenceException;
 import org.dasein.persist.Transaction;
 import org.dasein.util.Translator;
 
 public class Updater extends AutomatedSql {
-    private String  sql        = null;
+    // partial updates produce a statement per combination of changed columns, so only the most used are kept
+    static private final BoundedCache<String,String> statements = new BoundedCache<String,String>(1000);
+
+    private Collection<String> changed    = null;
+    private List<String>       columns    = null;
+    private String             sql        = null;
     
     public Updater() {
         super();
     }
     
     public synchronized String getStatement() throws SQLException {
+        if( getUpdateColumns().isEmpty() ) {
+            // only translations changed, there is no row to update
+            return null;
+        }
         if( sql == null ) {
-            StringBuilder str = new StringBuilder();
-            Iterator<String> it = getColumns().iterator();
+            StringBuilder key = new StringBuilder();
+
+            key.append(getQuotes()).append(isUpperCase() ? "U " : " ").append(getTableName()).append(':');
+            for( String col : getUpdateColumns() ) {
+                key.append(col).append(',');
+            }
+            key.append(':');
+            for( Criterion criterion : getCriteria() ) {
+                key.append(criterion.column).append(' ').append(criterion.operator.name()).append(',');
+            }
+            key.append(getJoin().name());
+            sql = statements.get(key.toString());
+            if( sql == null ) {
+                sql = buildStatement();
+                statements.put(key.toString(), sql);
+            }
+        }
+        return sql;
+    }
+
+    private String buildStatement() throws SQLException {
+        StringBuilder str = new StringBuilder();
+        Iterator<String> it = getUpdateColumns().iterator();
+        
+        str.append("UPDATE ");
+        str.append(getIdentifier(getTableName()));
+        str.append(" SET ");
+        while( it.hasNext() ) {
+            String col = it.next();
             
-            str.append("UPDATE ");
-            str.append(getIdentifier(getTableName()));
-            str.append(" SET ");
-            while( it.hasNext() ) {
-                String col = it.next();
-                
-                str.append(getIdentifier(getSqlName(col)));
-                str.append(" = ?");
-                if( it.hasNext() ) {
-                    str.append(", ");
-                }
+            str.append(getIdentifier(getSqlName(col)));
+            str.append(" = ?");
+            if( it.hasNext() ) {
+                str.append(", ");
             }
-            if( !getCriteria().isEmpty() ) {
-                Iterator<Criterion> criteria;
-                
-                str.append(" WHERE ");
-                criteria = getCriteria().iterator();
-                while( criteria.hasNext() ) {
-                    Criterion criterion = criteria.next();
-                    String col = criterion.column;
-             
-                    if( col.equals("timestamp") ) {
-                        str.append(getIdentifier("last_modified"));
-                    }
-                    else {
-                        str.append(getIdentifier(getSqlName(col)));
-                    }
+        }
+        if( !getCriteria().isEmpty() ) {
+            Iterator<Criterion> criteria;
+            
+            str.append(" WHERE ");
+            criteria = getCriteria().iterator();
+            while( criteria.hasNext() ) {
+                Criterion criterion = criteria.next();
+                String col = criterion.column;
+         
+                if( col.equals("timestamp") ) {
+                    str.append(getIdentifier("last_modified"));
+                }
+                else {
+                    str.append(getIdentifier(getSqlName(col)));
+                }
+                str.append(" ");
+                str.append(criterion.operator.toString());
+                str.append(" ?");
+                if( criteria.hasNext() ) {
+                    str.append(" ");
+                    str.append(getJoin().toString());
                     str.append(" ");
-                    str.append(criterion.operator.toString());
-                    str.append(" ?");
-                    if( criteria.hasNext() ) {
-                        str.append(" ");
-                        str.append(getJoin().toString());
-                        str.append(" ");
+                }
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Limits the update to the specified fields. Columns not listed keep their current values and translations
+     * are rewritten only if one of the listed fields is a translator.
+     * @param fields the names of the fields that changed, <code>null</code> to update every column
+     */
+    public void setChangedFields(Collection<String> fields) {
+        changed = fields;
+        columns = null;
+        sql = null;
+    }
+
+    /**
+     * @return the columns written by this update
+     */
+    protected synchronized List<String> getUpdateColumns() {
+        if( columns == null ) {
+            if( changed == null ) {
+                columns = getColumns();
+            }
+            else {
+                ArrayList<String> list = new ArrayList<String>();
+
+                for( String col : getColumns() ) {
+                    if( changed.contains(col) ) {
+                        list.add(col);
                     }
                 }
+                columns = list;
             }
-            sql = str.toString();
         }
-        return sql;
+        return columns;
+    }
+
+    private boolean isTranslationChanged() {
+        if( changed == null ) {
+            return true;
+        }
+        for( String field : getTranslators() ) {
+            if( changed.contains(field) ) {
+                return true;
+            }
+        }
+        return false;
     }
     
     public void prepare(Map<String,Object> params) throws SQLException {
         int i = 1;
         
-        for( String col : getColumns() ) {
+        for( String col : getUpdateColumns() ) {
             prepare(col, i++, params.get(col));
         }
         for( Criterion criterion : getCriteria() ) {
@@ -103,9 +180,11 @@ public class Updater extends AutomatedSql {
     @Override
     @SuppressWarnings("unchecked")
     public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
-        prepare(params);
-        statement.executeUpdate();
-        if( isTranslating() ) {
+        if( !getUpdateColumns().isEmpty() ) {
+            prepare(params);
+            statement.executeUpdate();
+        }
+        if( isTranslating() && isTranslationChanged() ) {
             Object key = params.get((String)params.get("--key--"));
             
             this.removeStringTranslations(xaction, getTarget(), key.toString());
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.Transaction;
+
+/**
+ * Loads only the primary key and version column of a batch of rows with a single
+ * <code>SELECT key, version FROM table WHERE key IN (...)</code> so that cached copies can be checked for
+ * changes without reloading them. The key values are passed in the {@link #KEYS} parameter as a list and the
+ * matching rows come back under {@link Loader#LISTING}.
+ */
+public class VersionLoader extends KeyListLoader {
+    private String                   sql          = null;
+    private String                   versionField = null;
+
+    public VersionLoader() {
+        super();
+    }
+
+    public synchronized String getStatement() throws SQLException {
+        if( sql == null ) {
+            StringBuilder str = new StringBuilder();
+
+            str.append("SELECT ");
+            str.append(getIdentifier(getTableName(), getSqlName(getKeyField())));
+            str.append(", ");
+            str.append(getIdentifier(getTableName(), getSqlName(versionField)));
+            str.append(" FROM ");
+            str.append(getIdentifier(getTableName()));
+            appendKeyCondition(str);
+            sql = str.toString();
+        }
+        return sql;
+    }
+
+    /**
+     * Sets up the check for a batch of rows.
+     * @param keyField the primary key field
+     * @param versionField the field holding the row version or last modification time
+     * @param count the number of key values in the batch
+     */
+    protected void setVersionCheck(String keyField, String versionField, int count) {
+        setKeys(keyField, count);
+        this.versionField = versionField;
+    }
+
+    public Map<String,Object> run(Transaction xaction, Map<String,Object> params) throws SQLException, PersistenceException {
+        ArrayList<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+        String keyField = getKeyField();
+        HashMap<String,Object> map = new HashMap<String,Object>(1);
+
+        map.put(LISTING, list);
+        prepare(params);
+        ResultSet results = statement.executeQuery();
+
+        try {
+            while( results.next() ) {
+                HashMap<String,Object> row = new HashMap<String,Object>(2);
+
+                row.put(keyField, getValue(keyField, 1, results));
+                row.put(versionField, getValue(versionField, 2, results));
+                list.add(row);
+            }
+        }
+        finally {
+            try { results.close(); }
+            catch( SQLException e ) { }
+        }
+        return map;
+    }
+}
@@ -20,6 +20,7 @@ package org.dasein.persist.riak;
                                
 import java.io.IOException;
 import java.io.InputStream;                                                
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -34,18 +35,22 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.log4j.Logger;
 import org.dasein.persist.DaseinSequencer;
+import org.dasein.persist.JSONCodec;
 import org.dasein.persist.Key;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
@@ -304,6 +309,26 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
     
     @Override 
     public long count() throws PersistenceException {
+        return cachedCount(null, new Callable<Long>() {
+            public Long call() throws PersistenceException {
+                return countKeys();
+            }
+        });
+    }
+
+    @Override
+    public long count(final SearchTerm ... terms) throws PersistenceException {
+        if( terms == null || terms.length < 1 ) {
+            return count();
+        }
+        return cachedCount(terms, new Callable<Long>() {
+            public Long call() throws PersistenceException {
+                return countMatches(terms);
+            }
+        });
+    }
+
+    private long countKeys() throws PersistenceException {
         JSONObject ob = findKeysInBucketAsJSON();
         
         if( ob.has("keys") ) {
@@ -317,11 +342,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         return 0;
     }
     
-    @Override
-    public long count(SearchTerm ... terms) throws PersistenceException {
-        if( terms == null || terms.length < 1 ) {
-            return count();
-        }
+    private long countMatches(SearchTerm ... terms) throws PersistenceException {
         if( wire.isDebugEnabled() ) {
             startCall("count");
         }
@@ -573,7 +594,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 int code;
 
                 try {
-                    String json = toDataStoreJSONFromCurrentState(state);
+                    byte[] json = toDataStoreJSONBytes(state);
                     
                     for( Key secondaryKey : getSecondaryKeys() ) {
                         if( secondaryKey.getFields().length > 1 ) {
@@ -666,7 +687,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             }
                         }
                     }
-                    post.setRequestEntity(new StringRequestEntity(json, "application/json", "utf-8"));
+                    post.setRequestEntity(new ByteArrayRequestEntity(json, "application/json; charset=utf-8"));
                     if( wire.isDebugEnabled() ) {
                         try {
                             wire.debug(post.getName() + " " + url.toString());
@@ -677,7 +698,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             wire.debug("Content-length: " + post.getRequestEntity().getContentLength());
                             wire.debug("Content-type: " + post.getRequestEntity().getContentType());
                             wire.debug("");
-                            wire.debug(((StringRequestEntity)post.getRequestEntity()).getContent());
+                            wire.debug(new String(json, "utf-8"));
                             wire.debug("");
                         }
                         catch( Throwable ignore ) {
@@ -716,6 +737,9 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         std.warn("Failed attempt to create Riak object (" + code + "): " + body);
                         throw new PersistenceException(code + ": " + body);
                     }
+                    clearMisses(null, state);
+                    adjustCounts(null, null, state);
+                    publishInvalidation(null, getInvalidationKeys(state));
                     return get(keyValue);
                 }
                 catch( IOException e ) {
@@ -861,7 +885,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 String json = (new JSONObject(request)).toString();
 
                 HttpClient client = getClient();
-                PostMethod post = new PostMethod(getEndpoint() + "mapred");
+                final PostMethod post = new PostMethod(getEndpoint() + "mapred");
                 int code;
                 
                 try {
@@ -892,7 +916,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                     throw new PersistenceException("IOException during POST: " + e.getMessage());
                 }
                 try {
-                    String body = post.getResponseBodyAsString();
+                    String body = ((wire.isDebugEnabled() || code != HttpStatus.SC_OK) ? post.getResponseBodyAsString() : null);
 
                     try {
                         if( wire.isDebugEnabled() ) {
@@ -915,36 +939,18 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         }
                         throw new PersistenceException(code + ": " + body);
                     }
-                    final JSONArray results = ((orderFields != null && orderFields.length > 0) ? (new JSONArray(body)).getJSONArray(0) : new JSONArray(body));
-                    final int len = results.length();
+                    final boolean sorted = (orderFields != null && orderFields.length > 0);
+                    final JSONCodec.Parser results = openResults(body, post, "[]");
 
                     if( cursor ) {
                         CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".find", null) {
                             @Override
                             public void populate(ForwardCursor<T> cursor) {
                                 try {
-                                    for( int i=0; i<len; i++ ) {
-                                        JSONObject ob = results.getJSONObject(i);
-
-                                        if( std.isDebugEnabled() ) {
-                                            std.debug("find - checking cache for " + ob.get(getPrimaryKeyField()));
-                                        }
-                                        T item = getCache().find(getPrimaryKeyField(), ob.get(getPrimaryKeyField()));
+                                    beginResults(results, sorted);
+                                    while( results.hasNext() ) {
+                                        T item = toCachedTarget(results.nextObject());
 
-                                        if( item == null ) {
-                                            if( std.isDebugEnabled() ) {
-                                                std.debug("find - cache miss, loading " + ob.get(getPrimaryKeyField()));
-                                            }
-                                            String version = "0";
-
-                                            if( ob.has("SCHEMA_VERSION") ) {
-                                                version = ob.getString("SCHEMA_VERSION");
-                                            }
-                                            item = toTargetFromJSON(version, ob);
-                                            if( item != null ) {
-                                                getCache().cache(item);
-                                            }
-                                        }
                                         if( item != null ) {
                                             try {
                                                 if( filter == null || filter.filter(item) ) {
@@ -960,62 +966,47 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                                 catch( Throwable t ) {
                                     throw new JiteratorLoadException(t);
                                 }
+                                finally {
+                                    closeResults(results, post);
+                                }
                             }
                         };
 
                         populator.populate();
-                        if( filter == null ) {
-                            populator.setSize(len);
-                        }
                         return populator.getCursor();
                     }
                     else {
                         PopulatorThread<T> populator = new PopulatorThread<T>(new JiteratorPopulator<T>() {
                             @Override
                             public void populate(@Nonnull Jiterator<T> iterator) throws Exception {
-                                for( int i=0; i<len; i++ ) {
-                                    JSONObject ob = results.getJSONObject(i);
-
-                                    if( std.isDebugEnabled() ) {
-                                        std.debug("find - checking cache for " + ob.get(getPrimaryKeyField()));
-                                    }
-                                    T item = getCache().find(getPrimaryKeyField(), ob.get(getPrimaryKeyField()));
-
-                                    if( item == null ) {
-                                        if( std.isDebugEnabled() ) {
-                                            std.debug("find - cache miss, loading " + ob.get(getPrimaryKeyField()));
-                                        }
-                                        String version = "0";
+                                try {
+                                    beginResults(results, sorted);
+                                    while( results.hasNext() ) {
+                                        T item = toCachedTarget(results.nextObject());
 
-                                        if( ob.has("SCHEMA_VERSION") ) {
-                                            version = ob.getString("SCHEMA_VERSION");
-                                        }
-                                        item = toTargetFromJSON(version, ob);
                                         if( item != null ) {
-                                            getCache().cache(item);
-                                        }
-                                    }
-                                    if( item != null ) {
-                                        try {
-                                            if( filter == null || filter.filter(item) ) {
-                                                iterator.push(item);
+                                            try {
+                                                if( filter == null || filter.filter(item) ) {
+                                                    iterator.push(item);
+                                                }
+                                            }
+                                            catch( Throwable t ) {
+                                                throw new RuntimeException(t);
                                             }
-                                        }
-                                        catch( Throwable t ) {
-                                            throw new RuntimeException(t);
                                         }
                                     }
                                 }
+                                finally {
+                                    closeResults(results, post);
+                                }
                             }
                         });
                         populator.populate();
-                        if( filter == null ) {
-                            populator.setSize(len);
-                        }
                         return populator.getResult();
                     }
                 }
                 catch( Exception e ) {
+                    post.releaseConnection();
                     std.error(e.getMessage(), e);
                     throw new PersistenceException(e);
                 }
@@ -1215,9 +1206,14 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                 public T load(Object ... args ) {
                     startCall("loadObject");
                     try {
+                        if( isKnownMiss(getPrimaryKey(), primaryKey) ) {
+                            getStatistics().negativeHit();
+                            return null;
+                        }
                         if( std.isDebugEnabled() ) {
                             std.debug("get - cache miss, loading " + primaryKey);
                         }
+                        long start = System.nanoTime();
                         StringBuilder url = new StringBuilder();
                         
                         url.append(getEndpoint());
@@ -1253,8 +1249,9 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             throw new RuntimeException("IOException during GET: " + e.getMessage());
                         }
                         try {
-                            final String body = get.getResponseBodyAsString();
+                            final String body = ((wire.isDebugEnabled() || code != HttpStatus.SC_OK) ? get.getResponseBodyAsString() : null);
                             
+                            getStatistics().primaryLoad(System.nanoTime() - start);
                             if( wire.isDebugEnabled() ) {
                                 try {
                                     wire.debug("----------------------------------------");
@@ -1272,17 +1269,15 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                             }
                             if( code != HttpStatus.SC_OK ) {
                                 if( code == HttpStatus.SC_NOT_FOUND ) {
+                                    recordMiss(getPrimaryKey(), primaryKey);
                                     return null;
                                 }
                                 throw new RuntimeException(code + ": " + body);
                             }
-                            JSONObject ob = new JSONObject(body);
-                            String version = "0";
-
-                            if( ob.has("SCHEMA_VERSION") ) {
-                                version = ob.getString("SCHEMA_VERSION");
+                            if( body != null ) {
+                                return toTargetFromJSON(body);
                             }
-                            return toTargetFromJSON(version, ob);
+                            return toTargetFromJSON(get.getResponseBodyAsStream());
                         }
                         catch( IOException e ) {
                             throw new RuntimeException(e);
@@ -1290,9 +1285,6 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         catch( PersistenceException e ) {
                             throw new RuntimeException(e);
                         }
-                        catch( JSONException e ) {
-                            throw new RuntimeException(e);
-                        }
                     }
                     finally {
                         endCall("loadObject");
@@ -1302,7 +1294,14 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             if( std.isDebugEnabled() ) {
                 std.debug("get - looking in cache for " + keyValue);
             }
-            return getCache().find(getPrimaryKeyField(), keyValue, loader, getPrimaryKeyField(), keyValue);
+            getStatistics().primaryRequest();
+            T item = getCache().find(getPrimaryKeyField(), keyValue);
+
+            if( item != null ) {
+                getStatistics().primaryHit();
+                return track(item);
+            }
+            return track(getCache().find(getPrimaryKeyField(), keyValue, loader, getPrimaryKeyField(), keyValue));
         }
         catch( CacheManagementException e ) {
             throw new PersistenceException(e);
@@ -1472,7 +1471,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
             startCall("list");
             try {
                 HttpClient client = getClient();
-                GetMethod get = new GetMethod(listEndpoint);
+                final GetMethod get = new GetMethod(listEndpoint);
                 int code;
                 
                 if( wire.isDebugEnabled() ) {
@@ -1498,7 +1497,7 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                     throw new PersistenceException("IOException during GET: " + e.getMessage());
                 }
                 try {
-                    final String body = get.getResponseBodyAsString();
+                    final String body = ((wire.isDebugEnabled() || code != HttpStatus.SC_OK) ? get.getResponseBodyAsString() : null);
                     
                     try {
                         if( wire.isDebugEnabled() ) {
@@ -1521,21 +1520,16 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                         }
                         throw new PersistenceException(code + ": " + body);
                     }
-                    JSONObject ob = new JSONObject(body);
-
-                    if( ob.has("keys") ) {
-                        final JSONArray keys = ob.getJSONArray("keys");
-                        final int len = keys.length();
-
-                        if( asCursor ) {
-                            CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".list", null) {
-                                @Override
-                                public void populate(ForwardCursor<T> cursor) {
-                                    try {
-                                        for( int i=0; i<len; i++ ) {
-                                            String key = keys.getString(i);
+                    final JSONCodec.Parser keys = openResults(body, get, "{}");
 
-                                            T item = get(key);
+                    if( asCursor ) {
+                        CursorPopulator<T> populator = new CursorPopulator<T>(getTarget().getName() + ".list", null) {
+                            @Override
+                            public void populate(ForwardCursor<T> cursor) {
+                                try {
+                                    if( beginKeys(keys) ) {
+                                        while( keys.hasNext() ) {
+                                            T item = get(keys.nextValue().toString());
 
                                             if( item != null ) {
                                                 try {
@@ -1549,57 +1543,56 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                                             }
                                         }
                                     }
-                                    catch( JSONException e ) {
-                                        throw new JiteratorLoadException(e);
-                                    }
-                                    catch( PersistenceException e ) {
-                                        throw new JiteratorLoadException(e);
-                                    }
                                 }
-                            };
-
-                            populator.populate();
-                            if( filter == null ) {
-                                populator.setSize(len);
+                                catch( IOException e ) {
+                                    throw new JiteratorLoadException(e);
+                                }
+                                catch( PersistenceException e ) {
+                                    throw new JiteratorLoadException(e);
+                                }
+                                finally {
+                                    closeResults(keys, get);
+                                }
                             }
-                            return populator.getCursor();
-                        }
-                        else {
-                            PopulatorThread<T> populator;
+                        };
 
-                            populator = new PopulatorThread<T>(new JiteratorPopulator<T>() {
-                                public void populate(@Nonnull Jiterator<T> iterator) throws Exception {
-                                    for( int i=0; i<len; i++ ) {
-                                        String key = keys.getString(i);
+                        populator.populate();
+                        return populator.getCursor();
+                    }
+                    else {
+                        PopulatorThread<T> populator;
 
-                                        T item = get(key);
+                        populator = new PopulatorThread<T>(new JiteratorPopulator<T>() {
+                            public void populate(@Nonnull Jiterator<T> iterator) throws Exception {
+                                try {
+                                    if( beginKeys(keys) ) {
+                                        while( keys.hasNext() ) {
+                                            T item = get(keys.nextValue().toString());
 
-                                        if( item != null ) {
-                                            try {
-                                                if( filter == null || filter.filter(item) ) {
-                                                    iterator.push(item);
+                                            if( item != null ) {
+                                                try {
+                                                    if( filter == null || filter.filter(item) ) {
+                                                        iterator.push(item);
+                                                    }
+                                                }
+                                                catch( Throwable t ) {
+                                                    throw new RuntimeException(t);
                                                 }
-                                            }
-                                            catch( Throwable t ) {
-                                                throw new RuntimeException(t);
                                             }
                                         }
                                     }
                                 }
-                            });
-                            populator.populate();
-                            if( filter == null ) {
-                                populator.setSize(len);
+                                finally {
+                                    closeResults(keys, get);
+                                }
                             }
-                            return populator.getResult();
-                        }
+                        });
+                        populator.populate();
+                        return populator.getResult();
                     }
-                    return Collections.emptyList();
                 }
                 catch( IOException e ) {
-                    throw new PersistenceException(e);
-                }
-                catch( JSONException e ) {
+                    get.releaseConnection();
                     throw new PersistenceException(e);
                 }
             }
@@ -1614,6 +1607,97 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
     }
 
+    /**
+     * Opens a response body for incremental parsing so that results can be handed out as they arrive.
+     * The body is only held in memory when it has already been read for wire logging.
+     * @param body the body text if it has already been read, otherwise <code>null</code>
+     * @param method the method holding the response
+     * @param empty the document to parse when the response has no body
+     * @return a parser positioned at the start of the response
+     * @throws IOException an error occurred opening the response stream
+     */
+    private @Nonnull JSONCodec.Parser openResults(@Nullable String body, @Nonnull HttpMethod method, @Nonnull String empty) throws IOException {
+        if( body == null ) {
+            InputStream in = method.getResponseBodyAsStream();
+
+            if( in != null ) {
+                return getJSONCodec().newParser(in);
+            }
+            body = empty;
+        }
+        return getJSONCodec().newParser(new StringReader(body));
+    }
+
+    private void closeResults(@Nonnull JSONCodec.Parser parser, @Nonnull HttpMethod method) {
+        try {
+            parser.close();
+        }
+        catch( IOException ignore ) {
+            // ignore
+        }
+        method.releaseConnection();
+    }
+
+    /**
+     * Moves the parser into the array of map/reduce results. Sorted results come wrapped in an outer array
+     * from the reduce phase.
+     * @param parser the parser positioned at the start of the response
+     * @param sorted true if the results went through a sorting reduce phase
+     * @throws IOException the response is not a valid result array
+     */
+    private void beginResults(@Nonnull JSONCodec.Parser parser, boolean sorted) throws IOException {
+        parser.beginArray();
+        if( sorted && parser.hasNext() ) {
+            parser.beginArray();
+        }
+    }
+
+    /**
+     * Moves the parser into the <code>keys</code> array of a key listing, skipping any other fields.
+     * @param parser the parser positioned at the start of the response
+     * @return true if the response has a <code>keys</code> array
+     * @throws IOException the response is not a valid key listing
+     */
+    private boolean beginKeys(@Nonnull JSONCodec.Parser parser) throws IOException {
+        parser.beginObject();
+        while( parser.hasNext() ) {
+            if( parser.nextName().equals("keys") && parser.peek() == JSONCodec.Token.BEGIN_ARRAY ) {
+                parser.beginArray();
+                return true;
+            }
+            parser.skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Resolves a decoded map/reduce result to its cached instance, building the object only on a cache miss.
+     * @param ob the fields of the result
+     * @return the cached instance
+     * @throws PersistenceException the result could not be mapped
+     */
+    private @Nullable T toCachedTarget(@Nonnull Map<String,Object> ob) throws PersistenceException {
+        Object key = ob.get(getPrimaryKeyField());
+
+        if( std.isDebugEnabled() ) {
+            std.debug("find - checking cache for " + key);
+        }
+        T item = getCache().find(getPrimaryKeyField(), key);
+
+        if( item == null ) {
+            if( std.isDebugEnabled() ) {
+                std.debug("find - cache miss, loading " + key);
+            }
+            Object version = ob.get("SCHEMA_VERSION");
+
+            item = toTargetFromFields(version == null ? "0" : version.toString(), ob);
+            if( item != null ) {
+                getCache().cache(item);
+            }
+        }
+        return item;
+    }
+
     private @Nullable SearchTerm[] matchKeys(@Nonnull Map<String,Object> input, @Nullable SearchTerm[] terms) throws PersistenceException {
         if( terms == null ) {
             return null;
@@ -1805,6 +1889,8 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
                     throw new PersistenceException(code + ": " + body);
                 }
                 getCache().release(item);
+                adjustCounts(null, item, null);
+                publishInvalidation(null, getInvalidationKeysFor(item));
             }
             catch( IOException e ) {
                 throw new PersistenceException(e);
@@ -1822,23 +1908,39 @@ public class RiakCache<T extends CachedItem> extends PersistentCache<T> {
         }
     }
 
-    /*
-todo: remap
-    public void remap() {
+    @Override
+    public @Nullable Collection<String> listKeys() throws PersistenceException {
+        JSONObject ob = findKeysInBucketAsJSON();
+        ArrayList<String> keys = new ArrayList<String>();
 
+        if( ob.has("keys") ) {
+            try {
+                JSONArray arr = ob.getJSONArray("keys");
+
+                for( int i=0; i<arr.length(); i++ ) {
+                    keys.add(arr.getString(i));
+                }
+            }
+            catch( JSONException e ) {
+                throw new PersistenceException(e);
+            }
+        }
+        return keys;
     }
 
-    private void remap(@Nonnull Object keyValue) throws PersistenceException {
+    @Override
+    public boolean upgradeStoredRecord(@Nonnull String keyValue) throws PersistenceException {
         StringBuilder url = new StringBuilder();
 
         url.append(getEndpoint());
         url.append("buckets/");
         url.append(getBucket());
         url.append("/keys/");
-        url.append(keyValue.toString());
+        url.append(keyValue);
 
         HttpClient client = getClient();
         GetMethod get = new GetMethod(url.toString());
+        String version;
         int code;
 
         try {
@@ -1858,13 +1960,13 @@ todo: remap
             code = client.executeMethod(get);
         }
         catch( HttpException e ) {
-            throw new RuntimeException("HttpException during GET: " + e.getMessage());
+            throw new PersistenceException("HttpException during GET: " + e.getMessage());
         }
         catch( IOException e ) {
-            throw new RuntimeException("IOException during GET: " + e.getMessage());
+            throw new PersistenceException("IOException during GET: " + e.getMessage());
         }
         try {
-            final String body = get.getResponseBodyAsString();
+            final String body = ((wire.isDebugEnabled() || code != HttpStatus.SC_OK) ? get.getResponseBodyAsString() : null);
 
             if( wire.isDebugEnabled() ) {
                 try {
@@ -1883,31 +1985,43 @@ todo: remap
             }
             if( code != HttpStatus.SC_OK ) {
                 if( code == HttpStatus.SC_NOT_FOUND ) {
-                    return;
+                    return false;
                 }
-                std.warn("Unable to remap: " + code + " - " + body);
-                return;
+                throw new PersistenceException(code + ": " + body);
             }
-            T item = toTargetFromJSON(body);
-            Memento<T> memento = new Memento<T>(item);
+            Object v = openResults(body, get, "{}").nextObject().get("SCHEMA_VERSION");
+
+            version = (v == null ? "0" : v.toString());
+        }
+        catch( IOException e ) {
+            throw new PersistenceException(e);
+        }
+        finally {
+            get.releaseConnection();
+        }
+        if( version.equals(getSchemaVersion()) ) {
+            return false;
+        }
+        T item = get(keyValue);
 
-            memento.save(new HashMap<String, Object>());
+        if( item == null ) {
+            return false;
+        }
+        Memento<T> memento = new Memento<T>(item);
 
-            Transaction xaction = Transaction.getInstance();
+        memento.save(new HashMap<String, Object>());
 
-            try {
-                update(xaction, item, memento.getState());
-                xaction.commit();
-            }
-            finally {
-                xaction.rollback();
-            }
+        Transaction xaction = Transaction.getInstance();
+
+        try {
+            update(xaction, item, memento.getState());
+            xaction.commit();
         }
-        catch( IOException e ) {
-            std.warn("Unable to remap: " + e.getMessage(), e);
+        finally {
+            xaction.rollback();
         }
+        return true;
     }
-    */
 
     @Override
     public void update(Transaction xaction, T item, Map<String, Object> state) throws PersistenceException {
@@ -1918,6 +2032,8 @@ todo: remap
             if( newKey == null ) {
                 state.put(getPrimaryKeyField(), getValue(item, getPrimaryKeyField()));                
             }
+            // the create below overwrites the same object and counts it again
+            adjustCounts(null, item, null);
             create(xaction, state);
         }
         else {
@@ -1925,6 +2041,7 @@ todo: remap
             create(xaction, state);
         }
         getCache().release(item);
+        publishInvalidation(null, getInvalidationKeysFor(item));
     }
     
     private void endCall(String f) {
@@ -35,3 +35,12 @@ CREATE TABLE `dsn_translation` (
   `translation` text,
   UNIQUE KEY `xlat_idx` (`owner_class`,`owner_id`,`attribute`,`language`,`country`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE `dsn_invalidation` (
+  `id` bigint(20) unsigned NOT NULL auto_increment,
+  `node` varchar(36) NOT NULL,
+  `message` text NOT NULL,
+  `created` bigint(20) unsigned NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `created_idx` (`created`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
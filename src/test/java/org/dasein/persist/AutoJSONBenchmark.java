@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.annotations.AutoJSON;
+import org.dasein.persist.test.MockPersistentCache;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Measures round trips of {@link AutoJSON} object graphs through the cache's JSON mapping, once for a deep
+ * chain of nested objects and once for a single object holding a wide array of children. Not part of the
+ * default test run; run it with <code>mvn test -Dtest=AutoJSONBenchmark</code>.
+ */
+public class AutoJSONBenchmark extends TestCase {
+    static private final Logger logger = Logger.getLogger("org.dasein.persist.test.AutoJSONBenchmark");
+
+    static private final int WARMUP     = 50;
+    static private final int ITERATIONS = 500;
+
+    @AutoJSON
+    static public class Node {
+        private long       id;
+        private String     name;
+        private JSONMapped detail;
+        private Node[]     children;
+
+        public Node() { }
+
+        public Node(long id, int childCount) {
+            this.id = id;
+            this.name = "node-" + id;
+            this.detail = JSONMapped.getInstance(id, name);
+            this.children = new Node[childCount];
+        }
+
+        public int count() {
+            int c = 1;
+
+            if( children != null ) {
+                for( Node child : children ) {
+                    c += child.count();
+                }
+            }
+            return c;
+        }
+    }
+
+    private MockPersistentCache<PersistentObject> cache = new MockPersistentCache<PersistentObject>();
+
+    private Node deep(int depth) {
+        Node root = new Node(0, depth > 1 ? 1 : 0);
+        Node current = root;
+
+        for( int i=1; i<depth; i++ ) {
+            Node next = new Node(i, i < depth-1 ? 1 : 0);
+
+            current.children[0] = next;
+            current = next;
+        }
+        return root;
+    }
+
+    private Node wide(int width) {
+        Node root = new Node(0, width);
+
+        for( int i=0; i<width; i++ ) {
+            root.children[i] = new Node(i+1, 0);
+        }
+        return root;
+    }
+
+    private Node roundTrip(Node node) throws Exception {
+        JSONCodec codec = new StreamingJSONCodec();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONCodec.ObjectWriter writer = codec.newWriter(out);
+
+        writer.field("root", cache.toJSONValue(node));
+        writer.close();
+
+        Object json = codec.newParser(new ByteArrayInputStream(out.toByteArray())).nextObject().get("root");
+
+        return (Node)cache.mapValue("root", (JSONObject)json, Node.class, null);
+    }
+
+    private void run(String label, Node graph) throws Exception {
+        int expected = graph.count();
+
+        for( int i=0; i<WARMUP; i++ ) {
+            assertEquals(expected, roundTrip(graph).count());
+        }
+        long start = System.nanoTime();
+
+        for( int i=0; i<ITERATIONS; i++ ) {
+            roundTrip(graph);
+        }
+        long nanos = System.nanoTime() - start;
+
+        logger.info(label + ": " + expected + " objects, " + (nanos/ITERATIONS/1000L) + " us per round trip, " + (nanos/ITERATIONS/expected) + " ns per object");
+    }
+
+    @Test
+    public void testDeepGraph() throws Exception {
+        run("deep", deep(200));
+    }
+
+    @Test
+    public void testWideGraph() throws Exception {
+        run("wide", wide(2000));
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class BoundedCacheTest extends TestCase {
+    static private class Recorder implements BoundedCache.RemovalListener<String,String> {
+        private final List<String> evicted = new ArrayList<String>();
+        private final List<String> expired = new ArrayList<String>();
+
+        public synchronized void removed(String key, String value, boolean wasExpired) {
+            if( wasExpired ) {
+                expired.add(key);
+            }
+            else {
+                evicted.add(key);
+            }
+        }
+    }
+
+    @Test
+    public void testUnboundedKeepsEverything() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(0);
+
+        for( int i=0; i<5000; i++ ) {
+            cache.put("k" + i, "v" + i);
+        }
+        assertEquals(5000, cache.size());
+        assertEquals(-1, cache.getMaximumSize());
+        assertEquals("v1234", cache.get("k1234"));
+        assertEquals(0L, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testNeverExceedsMaximum() {
+        Recorder recorder = new Recorder();
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(100, 0L, 0L, recorder);
+
+        for( int i=0; i<1000; i++ ) {
+            cache.put("k" + i, "v" + i);
+            assertTrue("Cache grew to " + cache.size(), cache.size() <= 100);
+        }
+        assertEquals(100, cache.getMaximumSize());
+        assertEquals(100, cache.size());
+        assertEquals(900L, cache.getEvictionCount());
+        assertEquals(900, recorder.evicted.size());
+        assertTrue(recorder.expired.isEmpty());
+    }
+
+    @Test
+    public void testFrequentKeysSurviveOneHitWonders() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(100);
+
+        for( int i=0; i<99; i++ ) {
+            cache.put("hot" + i, "v" + i);
+        }
+        for( int n=0; n<5; n++ ) {
+            for( int i=0; i<99; i++ ) {
+                assertNotNull(cache.get("hot" + i));
+            }
+        }
+        for( int i=0; i<1000; i++ ) {
+            cache.put("cold" + i, "v" + i);
+        }
+        int survivors = 0;
+
+        for( int i=0; i<99; i++ ) {
+            if( cache.get("hot" + i) != null ) {
+                survivors++;
+            }
+        }
+        assertTrue("Only " + survivors + " hot keys survived the scan", survivors >= 95);
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void testReplaceDoesNotGrow() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10);
+
+        for( int i=0; i<100; i++ ) {
+            cache.put("same", "v" + i);
+        }
+        assertEquals(1, cache.size());
+        assertEquals("v99", cache.get("same"));
+        assertEquals(0L, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testShrinkingEvictsRightAway() {
+        Recorder recorder = new Recorder();
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(200, 0L, 0L, recorder);
+
+        for( int i=0; i<200; i++ ) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.setMaximumSize(50);
+        assertEquals(50, cache.getMaximumSize());
+        assertEquals(50, cache.size());
+        assertEquals(150, recorder.evicted.size());
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10, 1000L, 0L, recorder);
+
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(1500L);
+        assertTrue(cache.values().isEmpty());
+        assertNull(cache.get("a"));
+        assertEquals(1L, cache.getExpirationCount());
+        assertEquals(1, recorder.expired.size());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws InterruptedException {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10, 0L, 1000L, null);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        for( int i=0; i<6; i++ ) {
+            Thread.sleep(250L);
+            assertEquals("1", cache.get("a"));
+        }
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        Recorder recorder = new Recorder();
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10, 0L, 0L, recorder);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertNull(cache.get("a"));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("b"));
+        assertTrue(recorder.evicted.isEmpty());
+        assertTrue(recorder.expired.isEmpty());
+    }
+
+    @Test
+    public void testConditionalRemove() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10);
+        String one = new String("1");
+
+        cache.put("a", one);
+        assertFalse(cache.remove("a", new String("1")));
+        assertEquals(1, cache.size());
+        assertTrue(cache.remove("a", one));
+        assertEquals(0, cache.size());
+        assertFalse(cache.remove("a", one));
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10);
+
+        assertTrue(cache.putIfAbsent("a", "1"));
+        assertFalse(cache.putIfAbsent("a", "2"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testReplaceKeepsWriteDeadline() throws InterruptedException {
+        BoundedCache<String,String> cache = new BoundedCache<String,String>(10, 3000L, 0L, null);
+
+        assertNull(cache.replace("a", "0"));
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        Thread.sleep(1000L);
+        assertEquals("1", cache.replace("a", "2"));
+        assertEquals("2", cache.get("a"));
+        // past the original deadline but well before the one a reset would have set
+        Thread.sleep(2500L);
+        assertNull(cache.get("a"));
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.Locale;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ConverterRegistryTest extends TestCase {
+    static private enum Color { RED, GREEN }
+
+    static private class Point {
+        private final int x;
+
+        private Point(int x) {
+            this.x = x;
+        }
+    }
+
+    static private Object convert(Object value, Class<?> toType) throws PersistenceException {
+        TypeConverter converter = ConverterRegistry.getConverter(toType, value == null ? null : value.getClass());
+
+        assertNotNull("No converter from " + (value == null ? null : value.getClass()) + " to " + toType, converter);
+        return converter.convert("field", value, toType, null);
+    }
+
+    @Test
+    public void testIdentityAndStrings() throws PersistenceException {
+        Object value = new Object();
+
+        assertSame(value, convert(value, Object.class));
+        assertEquals("12", convert(12L, String.class));
+        assertEquals("RED", convert("RED", String.class));
+    }
+
+    @Test
+    public void testNumbers() throws PersistenceException {
+        assertEquals(Integer.valueOf(12), convert(12L, int.class));
+        assertEquals(Long.valueOf(12L), convert(12, Long.class));
+        assertEquals(Long.valueOf(12L), convert("12", long.class));
+        assertEquals(Double.valueOf(1.5), convert(new java.math.BigDecimal("1.5"), double.class));
+        assertEquals(Float.valueOf(1.5f), convert("1.5", Float.class));
+        assertEquals(Short.valueOf((short)3), convert(3, short.class));
+        assertEquals(Byte.valueOf((byte)1), convert(Boolean.TRUE, byte.class));
+        assertEquals(Integer.valueOf(0), convert(Boolean.FALSE, Integer.class));
+    }
+
+    @Test
+    public void testBadNumber() {
+        try {
+            convert("twelve", int.class);
+            fail("Mapped a bad number");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBooleans() throws PersistenceException {
+        assertEquals(Boolean.TRUE, convert(1, boolean.class));
+        assertEquals(Boolean.FALSE, convert(0L, Boolean.class));
+        assertEquals(Boolean.TRUE, convert("Y", boolean.class));
+        assertEquals(Boolean.TRUE, convert(" true ", boolean.class));
+        assertEquals(Boolean.FALSE, convert("N", boolean.class));
+        assertEquals(Boolean.TRUE, convert(Boolean.TRUE, boolean.class));
+    }
+
+    @Test
+    public void testStringConversions() throws PersistenceException {
+        UUID id = UUID.randomUUID();
+
+        assertEquals(Color.GREEN, convert("GREEN", Color.class));
+        assertEquals(id, convert(id.toString(), UUID.class));
+        assertEquals(Locale.US, convert("en_US", Locale.class));
+        assertEquals(new Locale("fr"), convert("fr", Locale.class));
+        try {
+            convert("BLUE", Color.class);
+            fail("Mapped an unknown enum constant");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingValues() throws PersistenceException {
+        assertEquals(Integer.valueOf(0), convert(null, int.class));
+        assertEquals(Long.valueOf(0L), convert(null, long.class));
+        assertEquals(Double.valueOf(0.0), convert(null, double.class));
+        assertEquals(Boolean.FALSE, convert(null, boolean.class));
+        assertEquals(Boolean.FALSE, convert(null, Boolean.class));
+        assertNull(convert(null, Integer.class));
+        assertNull(convert(null, String.class));
+        // arrays and anything else without a built-in conversion are left to mapValue()
+        assertNull(ConverterRegistry.getConverter(String[].class, null));
+        assertNull(ConverterRegistry.getConverter(Point.class, String.class));
+        assertNull(ConverterRegistry.getConverter(UUID.class, Long.class));
+    }
+
+    @Test
+    public void testConvertersAreResolvedOnce() {
+        assertSame(ConverterRegistry.getConverter(long.class, Integer.class), ConverterRegistry.getConverter(long.class, Integer.class));
+    }
+
+    @Test
+    public void testCustomConverterTakesPrecedence() throws PersistenceException {
+        TypeConverter points = new TypeConverter() {
+            public Object convert(String fieldName, Object value, Class<?> toType, ParameterizedType ptype) {
+                if( value instanceof Point ) {
+                    return new Point(((Point)value).x);
+                }
+                return new Point(value == null ? -1 : Integer.parseInt(value.toString()));
+            }
+        };
+
+        assertNull(ConverterRegistry.getConverter(Point.class, String.class));
+        ConverterRegistry.register(Point.class, points);
+        try {
+            assertEquals(7, ((Point)convert("7", Point.class)).x);
+            assertEquals(-1, ((Point)convert(null, Point.class)).x);
+            Point p = new Point(3);
+
+            // registered converters see values that are already of the field type too
+            assertNotSame(p, convert(p, Point.class));
+        }
+        finally {
+            ConverterRegistry.unregister(Point.class);
+        }
+        assertNull(ConverterRegistry.getConverter(Point.class, String.class));
+    }
+}
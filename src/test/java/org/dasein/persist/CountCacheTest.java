@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.junit.Test;
+
+public class CountCacheTest extends TestCase {
+    static private QueryCache.Row row(Object ... pairs) {
+        final Map<String,Object> values = new HashMap<String,Object>();
+
+        for( int i=0; i<pairs.length; i += 2 ) {
+            values.put((String)pairs[i], pairs[i+1]);
+        }
+        return new QueryCache.Row() {
+            public Object getValue(String column) {
+                return values.get(column);
+            }
+        };
+    }
+
+    static private SearchTerm[] byOwner(String owner) {
+        return new SearchTerm[] { new SearchTerm("owner", owner) };
+    }
+
+    static private SearchTerm[] olderThan(int age) {
+        return new SearchTerm[] { new SearchTerm("age", Operator.GREATER_THAN, age) };
+    }
+
+    @Test
+    public void testCachesCountForTicket() {
+        CountCache cache = new CountCache(100, 0L, false);
+
+        cache.put(cache.prepare(byOwner("bob")), 3L);
+        assertEquals(Long.valueOf(3L), cache.get(cache.prepare(byOwner("bob"))));
+        assertNull(cache.get(cache.prepare(byOwner("alice"))));
+    }
+
+    @Test
+    public void testUncacheableCounts() {
+        CountCache cache = new CountCache(100, 0L, false);
+
+        assertNull(cache.prepare(new SearchTerm[] { new SearchTerm("owner", new String[] { "a", "b" }) }));
+        assertNotNull(cache.prepare(null));
+    }
+
+    @Test
+    public void testCreateAndRemoveAdjustExactCounts() {
+        CountCache cache = new CountCache(100, 0L, false);
+
+        cache.put(cache.prepare(byOwner("bob")), 3L);
+        cache.put(cache.prepare(byOwner("alice")), 5L);
+        cache.prepareWrite(null, row("owner", "bob")).run();
+        assertEquals(Long.valueOf(4L), cache.get(cache.prepare(byOwner("bob"))));
+        cache.prepareWrite(row("owner", "alice"), null).run();
+        assertEquals(Long.valueOf(4L), cache.get(cache.prepare(byOwner("alice"))));
+    }
+
+    @Test
+    public void testUpdateMovesBetweenExactCounts() {
+        CountCache cache = new CountCache(100, 0L, false);
+
+        cache.put(cache.prepare(byOwner("bob")), 3L);
+        cache.put(cache.prepare(byOwner("alice")), 5L);
+        cache.prepareWrite(row("owner", "bob"), row("owner", "alice")).run();
+        assertEquals(Long.valueOf(2L), cache.get(cache.prepare(byOwner("bob"))));
+        assertEquals(Long.valueOf(6L), cache.get(cache.prepare(byOwner("alice"))));
+        // an update that leaves the column alone changes nothing
+        cache.prepareWrite(row("owner", "bob", "age", 1), row("owner", "bob", "age", 2)).run();
+        assertEquals(Long.valueOf(2L), cache.get(cache.prepare(byOwner("bob"))));
+    }
+
+    @Test
+    public void testCountsNeverGoNegative() {
+        CountCache cache = new CountCache(100, 0L, false);
+
+        cache.put(cache.prepare(byOwner("bob")), 0L);
+        cache.prepareWrite(row("owner", "bob"), null).run();
+        assertEquals(Long.valueOf(0L), cache.get(cache.prepare(byOwner("bob"))));
+    }
+
+    @Test
+    public void testRangeCountsAreDroppedUnlessApproximate() {
+        CountCache exact = new CountCache(100, 0L, false);
+        CountCache approximate = new CountCache(100, 0L, true);
+
+        exact.put(exact.prepare(olderThan(30)), 10L);
+        approximate.put(approximate.prepare(olderThan(30)), 10L);
+        exact.prepareWrite(null, row("age", 40)).run();
+        approximate.prepareWrite(null, row("age", 40)).run();
+        assertNull(exact.get(exact.prepare(olderThan(30))));
+        assertEquals(Long.valueOf(10L), approximate.get(approximate.prepare(olderThan(30))));
+        approximate.invalidateExact();
+        assertNotNull(approximate.get(approximate.prepare(olderThan(30))));
+        approximate.invalidate();
+        assertNull(approximate.get(approximate.prepare(olderThan(30))));
+    }
+
+    @Test
+    public void testCountStartedBeforeWriteIsNotCached() {
+        CountCache cache = new CountCache(100, 0L, false);
+        CountCache.Ticket ticket = cache.prepare(byOwner("bob"));
+        Runnable write = cache.prepareWrite(null, row("owner", "bob"));
+
+        write.run();
+        cache.put(ticket, 3L);
+        assertNull(cache.get(cache.prepare(byOwner("bob"))));
+        ticket = cache.prepare(byOwner("bob"));
+        cache.put(ticket, 4L);
+        assertEquals(Long.valueOf(4L), cache.get(ticket));
+    }
+
+    @Test
+    public void testAdjustmentKeepsOriginalExpiry() throws InterruptedException {
+        CountCache cache = new CountCache(100, 3000L, false);
+
+        cache.put(cache.prepare(byOwner("bob")), 3L);
+        Thread.sleep(1000L);
+        cache.prepareWrite(null, row("owner", "bob")).run();
+        assertEquals(Long.valueOf(4L), cache.get(cache.prepare(byOwner("bob"))));
+        // writes keep coming, but the count is recomputed once the original query is too old
+        Thread.sleep(2500L);
+        cache.prepareWrite(null, row("owner", "bob")).run();
+        assertNull(cache.get(cache.prepare(byOwner("bob"))));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ExpiryWheelTest extends TestCase {
+    static private boolean collected(WeakReference<?> ref) throws InterruptedException {
+        for( int i=0; i<50 && ref.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        return (ref.get() == null);
+    }
+
+    @Test
+    public void testTaskRunsAfterDeadline() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long deadline = System.currentTimeMillis() + 200L;
+        final long[] ran = new long[1];
+
+        ExpiryWheel.getInstance().schedule(new Runnable() {
+            public void run() {
+                ran[0] = System.currentTimeMillis();
+                latch.countDown();
+            }
+        }, deadline);
+        assertTrue("Task never ran", latch.await(3L, TimeUnit.SECONDS));
+        assertTrue("Task ran early", ran[0] >= deadline);
+    }
+
+    @Test
+    public void testCancelledTaskNeverRuns() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger(0);
+        ExpiryWheel.Timeout timeout = ExpiryWheel.getInstance().schedule(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, System.currentTimeMillis() + 100L);
+
+        assertFalse(timeout.isCancelled());
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        Thread.sleep(2500L);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testCancelReleasesTask() throws InterruptedException {
+        Runnable task = new Runnable() {
+            public void run() { }
+        };
+        WeakReference<Runnable> ref = new WeakReference<Runnable>(task);
+        ExpiryWheel.Timeout timeout = ExpiryWheel.getInstance().schedule(task, System.currentTimeMillis() + 3600000L);
+
+        task = null;
+        timeout.cancel();
+        assertTrue("Cancelled task is still reachable from the wheel", collected(ref));
+    }
+
+    @Test
+    public void testRemovedEntryIsNotPinned() throws InterruptedException {
+        BoundedCache<String,Object> cache = new BoundedCache<String,Object>(100, 3600000L, 0L, null);
+        Object value = new Object();
+        WeakReference<Object> ref = new WeakReference<Object>(value);
+
+        cache.put("a", value);
+        value = null;
+        cache.remove("a");
+        assertTrue("Removed value is still reachable", collected(ref));
+    }
+
+    @Test
+    public void testReplacedEntryIsNotPinned() throws InterruptedException {
+        BoundedCache<String,Object> cache = new BoundedCache<String,Object>(100, 3600000L, 0L, null);
+        Object value = new Object();
+        WeakReference<Object> ref = new WeakReference<Object>(value);
+
+        cache.put("a", value);
+        value = null;
+        cache.put("a", new Object());
+        assertTrue("Replaced value is still reachable", collected(ref));
+    }
+
+    @Test
+    public void testClearedEntriesAreNotPinned() throws InterruptedException {
+        BoundedCache<String,Object> cache = new BoundedCache<String,Object>(100, 0L, 3600000L, null);
+        Object value = new Object();
+        WeakReference<Object> ref = new WeakReference<Object>(value);
+
+        cache.put("a", value);
+        value = null;
+        cache.clear();
+        assertTrue("Cleared value is still reachable", collected(ref));
+    }
+
+    @Test
+    public void testEvictedEntryIsNotPinned() throws InterruptedException {
+        BoundedCache<String,Object> cache = new BoundedCache<String,Object>(10, 3600000L, 0L, null);
+        Object value = new Object();
+        WeakReference<Object> ref = new WeakReference<Object>(value);
+
+        cache.put("victim", value);
+        value = null;
+        cache.setMaximumSize(1);
+        for( int i=0; i<100; i++ ) {
+            cache.put("k" + i, new Object());
+        }
+        assertNull(cache.get("victim"));
+        assertTrue("Evicted value is still reachable", collected(ref));
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest extends TestCase {
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0.0, histogram.getMeanMillis());
+        assertEquals(0.0, histogram.getMaxMillis());
+        assertEquals(0.0, histogram.getPercentileMillis(99.0));
+        assertEquals(LatencyHistogram.BUCKETS, histogram.getBuckets().length);
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(500L);         // under a microsecond
+        histogram.record(1000L);        // 1us
+        histogram.record(3000L);        // 3us
+        histogram.record(4000L);        // 4us
+        histogram.record(1000000L);     // 1000us
+        histogram.record(-5L);          // clock went backwards
+
+        long[] buckets = histogram.getBuckets();
+
+        assertEquals(2L, buckets[0]);
+        assertEquals(1L, buckets[1]);
+        assertEquals(1L, buckets[2]);
+        assertEquals(1L, buckets[3]);
+        assertEquals(1L, buckets[10]);
+        assertEquals(6L, histogram.getCount());
+    }
+
+    @Test
+    public void testLongLatenciesLandInLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1L, histogram.getBuckets()[LatencyHistogram.BUCKETS-1]);
+    }
+
+    @Test
+    public void testMeanAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(2000000L);
+        histogram.record(4000000L);
+        histogram.record(6000000L);
+        assertEquals(4.0, histogram.getMeanMillis(), 0.0001);
+        assertEquals(6.0, histogram.getMaxMillis(), 0.0001);
+    }
+
+    @Test
+    public void testPercentileIsUpperBoundOfBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for( int i=0; i<99; i++ ) {
+            histogram.record(100000L);  // 100us, bucket bound 128us
+        }
+        histogram.record(50000000L);    // 50ms
+        assertEquals(0.128, histogram.getPercentileMillis(50.0), 0.0001);
+        assertEquals(0.128, histogram.getPercentileMillis(99.0), 0.0001);
+        // the top bucket is capped by the largest latency actually seen
+        assertEquals(50.0, histogram.getPercentileMillis(100.0), 0.0001);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+
+        for( int i=0; i<threads.length; i++ ) {
+            final long nanos = (i + 1) * 1000000L;
+
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( int j=0; j<10000; j++ ) {
+                        histogram.record(nanos);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for( Thread t : threads ) {
+            t.join();
+        }
+        long total = 0L;
+
+        for( long b : histogram.getBuckets() ) {
+            total += b;
+        }
+        assertEquals(80000L, histogram.getCount());
+        assertEquals(80000L, total);
+        assertEquals(8.0, histogram.getMaxMillis(), 0.0001);
+        assertEquals(4.5, histogram.getMeanMillis(), 0.0001);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LoadCoalescerTest extends TestCase {
+    static private final int THREADS = 8;
+
+    @Test
+    public void testConcurrentLoadsShareOneLoad() throws Exception {
+        final LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+        final AtomicInteger loads = new AtomicInteger(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] results = new String[THREADS];
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<THREADS; i++ ) {
+            final int idx = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        results[idx] = coalescer.load("key", new Callable<String>() {
+                            public String call() throws Exception {
+                                loads.incrementAndGet();
+                                started.countDown();
+                                release.await(5L, TimeUnit.SECONDS);
+                                return "value";
+                            }
+                        });
+                    }
+                    catch( PersistenceException e ) {
+                        results[idx] = e.getMessage();
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+            if( i == 0 ) {
+                assertTrue(started.await(5L, TimeUnit.SECONDS));
+            }
+        }
+        // give the waiting threads time to find the load in flight
+        Thread.sleep(200L);
+        release.countDown();
+        for( Thread t : threads ) {
+            t.join(5000L);
+        }
+        assertEquals(1, loads.get());
+        assertEquals(THREADS - 1, coalescer.getCoalescedCount());
+        for( String result : results ) {
+            assertEquals("value", result);
+        }
+    }
+
+    @Test
+    public void testSequentialLoadsAreNotShared() throws Exception {
+        LoadCoalescer<Integer> coalescer = new LoadCoalescer<Integer>();
+        final AtomicInteger loads = new AtomicInteger(0);
+        Callable<Integer> loader = new Callable<Integer>() {
+            public Integer call() {
+                return loads.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), coalescer.load("key", loader));
+        assertEquals(Integer.valueOf(2), coalescer.load("key", loader));
+        assertEquals(0L, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testDifferentKeysLoadSeparately() throws Exception {
+        LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+
+        assertEquals("a", coalescer.load("a", new Callable<String>() {
+            public String call() { return "a"; }
+        }));
+        assertEquals("b", coalescer.load("b", new Callable<String>() {
+            public String call() { return "b"; }
+        }));
+    }
+
+    @Test
+    public void testFailureReachesEveryWaiter() throws Exception {
+        final LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[THREADS];
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<THREADS; i++ ) {
+            final int idx = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        coalescer.load("key", new Callable<String>() {
+                            public String call() throws Exception {
+                                started.countDown();
+                                release.await(5L, TimeUnit.SECONDS);
+                                throw new PersistenceException("boom");
+                            }
+                        });
+                    }
+                    catch( Throwable e ) {
+                        errors[idx] = e;
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+            if( i == 0 ) {
+                assertTrue(started.await(5L, TimeUnit.SECONDS));
+            }
+        }
+        Thread.sleep(200L);
+        release.countDown();
+        for( Thread t : threads ) {
+            t.join(5000L);
+        }
+        for( Throwable t : errors ) {
+            assertTrue("Expected a PersistenceException, got " + t, t instanceof PersistenceException);
+            assertEquals("boom", t.getMessage());
+        }
+    }
+
+    @Test
+    public void testRuntimeExceptionIsRethrownAsIs() throws Exception {
+        LoadCoalescer<String> coalescer = new LoadCoalescer<String>();
+
+        try {
+            coalescer.load("key", new Callable<String>() {
+                public String call() {
+                    throw new IllegalStateException("bad");
+                }
+            });
+            fail("Expected the load to fail");
+        }
+        catch( IllegalStateException e ) {
+            assertEquals("bad", e.getMessage());
+        }
+        assertEquals("ok", coalescer.load("key", new Callable<String>() {
+            public String call() { return "ok"; }
+        }));
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest extends TestCase {
+    static private byte[] bytes(int length, int value) {
+        byte[] data = new byte[length];
+
+        Arrays.fill(data, (byte)value);
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        OffHeapStore store = new OffHeapStore(1024L, 256, 0L);
+        byte[] data = "{\"name\":\"value\"}".getBytes();
+
+        assertEquals(0L, store.getAllocatedBytes());
+        assertTrue(store.put("a", data));
+        assertTrue(Arrays.equals(data, store.get("a")));
+        assertEquals(256L, store.getAllocatedBytes());
+        assertEquals(1, store.size());
+        assertNull(store.get("b"));
+    }
+
+    @Test
+    public void testGetReturnsCopy() {
+        OffHeapStore store = new OffHeapStore(1024L, 256, 0L);
+
+        store.put("a", bytes(8, 1));
+        store.get("a")[0] = 9;
+        assertTrue(Arrays.equals(bytes(8, 1), store.get("a")));
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        OffHeapStore store = new OffHeapStore(1024L, 256, 0L);
+
+        store.put("a", bytes(8, 1));
+        store.put("a", bytes(4, 2));
+        assertTrue(Arrays.equals(bytes(4, 2), store.get("a")));
+        assertEquals(1, store.size());
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testOversizedValueIsNotStored() {
+        OffHeapStore store = new OffHeapStore(1024L, 16, 0L);
+
+        store.put("a", bytes(8, 1));
+        assertFalse(store.put("a", bytes(17, 2)));
+        // the previous value is stale once a write was attempted
+        assertNull(store.get("a"));
+    }
+
+    @Test
+    public void testOldestSlabIsRecycled() {
+        OffHeapStore store = new OffHeapStore(20L, 10, 0L);
+
+        store.put("a", bytes(6, 1));
+        store.put("b", bytes(6, 2));
+        assertEquals(20L, store.getAllocatedBytes());
+        store.put("c", bytes(6, 3));
+        assertNull(store.get("a"));
+        assertTrue(Arrays.equals(bytes(6, 2), store.get("b")));
+        assertTrue(Arrays.equals(bytes(6, 3), store.get("c")));
+        assertEquals(1L, store.getEvictionCount());
+        assertEquals(20L, store.getAllocatedBytes());
+    }
+
+    @Test
+    public void testRecyclingKeepsValuesRewrittenElsewhere() {
+        OffHeapStore store = new OffHeapStore(20L, 10, 0L);
+
+        store.put("a", bytes(6, 1));
+        store.put("b", bytes(6, 2));
+        store.put("a", bytes(3, 4));   // rewritten into the second slab
+        store.put("c", bytes(6, 3));   // recycles the first slab
+        assertTrue(Arrays.equals(bytes(3, 4), store.get("a")));
+        assertEquals(0L, store.getEvictionCount());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        OffHeapStore store = new OffHeapStore(1024L, 256, 500L);
+
+        store.put("a", bytes(8, 1));
+        assertNotNull(store.get("a"));
+        Thread.sleep(700L);
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testClear() {
+        OffHeapStore store = new OffHeapStore(20L, 10, 0L);
+
+        store.put("a", bytes(6, 1));
+        store.put("b", bytes(6, 2));
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get("a"));
+        store.put("c", bytes(10, 3));
+        assertTrue(Arrays.equals(bytes(10, 3), store.get("c")));
+    }
+}
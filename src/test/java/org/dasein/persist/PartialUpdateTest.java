@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.dasein.util.CachedItem;
+import org.junit.Test;
+
+public class PartialUpdateTest extends TestCase {
+    static public class Tracked implements CachedItem {
+        private long         trackedId;
+        private String       name;
+        private List<String> tags;
+        private Date         updated;
+
+        public Tracked() { }
+
+        public boolean isValidForCache() {
+            return true;
+        }
+    }
+
+    private RelationalCache<Tracked> cache;
+
+    @Override
+    public void setUp() {
+        PersistentCache.getProperties().setProperty("dsn.cache.update.partial." + Tracked.class.getName(), "true");
+        cache = new RelationalCache<Tracked>();
+        cache.initBase(Tracked.class, null, "2013-01", null, new Key("trackedId"));
+    }
+
+    @Override
+    public void tearDown() {
+        PersistentCache.getProperties().remove("dsn.cache.update.partial." + Tracked.class.getName());
+    }
+
+    private Tracked load() {
+        Tracked item = new Tracked();
+
+        item.trackedId = 1L;
+        item.name = "name";
+        item.tags = new ArrayList<String>();
+        item.tags.add("a");
+        item.updated = new Date(1000L);
+        return cache.recordLoadedState(item);
+    }
+
+    static private HashMap<String,Object> stateOf(Tracked item) {
+        HashMap<String,Object> state = new HashMap<String,Object>();
+
+        state.put("trackedId", item.trackedId);
+        state.put("name", item.name);
+        state.put("tags", item.tags);
+        state.put("updated", item.updated);
+        return state;
+    }
+
+    @Test
+    public void testUnchangedFieldsAreSkipped() {
+        Tracked item = load();
+        Set<String> changed = cache.getChangedFields(item, stateOf(item));
+
+        assertNotNull(changed);
+        assertFalse(changed.contains("trackedId"));
+        assertFalse(changed.contains("name"));
+        assertFalse(changed.contains("updated"));
+    }
+
+    @Test
+    public void testDateChangedInPlaceIsWritten() {
+        Tracked item = load();
+
+        item.updated.setTime(2000L);
+
+        Set<String> changed = cache.getChangedFields(item, stateOf(item));
+
+        assertNotNull(changed);
+        assertTrue(changed.contains("updated"));
+        assertFalse(changed.contains("name"));
+    }
+
+    @Test
+    public void testListChangedInPlaceIsWritten() {
+        Tracked item = load();
+
+        item.tags.add("b");
+
+        Set<String> changed = cache.getChangedFields(item, stateOf(item));
+
+        assertNotNull(changed);
+        assertTrue(changed.contains("tags"));
+    }
+
+    @Test
+    public void testOffByDefault() {
+        tearDown();
+
+        RelationalCache<Tracked> plain = new RelationalCache<Tracked>();
+
+        plain.initBase(Tracked.class, null, "2013-01", null, new Key("trackedId"));
+
+        Tracked item = plain.recordLoadedState(new Tracked());
+
+        assertNull(plain.getChangedFields(item, stateOf(item)));
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.jdbc.AutomatedSql.Operator;
+import org.dasein.util.CachedItem;
+import org.junit.Test;
+
+public class QueryCacheTest extends TestCase {
+    static private class Owner implements CachedItem {
+        public boolean isValidForCache() {
+            return true;
+        }
+    }
+
+    static private QueryCache.Row row(Object ... pairs) {
+        final Map<String,Object> values = new HashMap<String,Object>();
+
+        for( int i=0; i<pairs.length; i += 2 ) {
+            values.put((String)pairs[i], pairs[i+1]);
+        }
+        return new QueryCache.Row() {
+            public Object getValue(String column) {
+                return values.get(column);
+            }
+        };
+    }
+
+    static private SearchTerm[] byOwner(String owner) {
+        return new SearchTerm[] { new SearchTerm("owner", owner) };
+    }
+
+    private QueryCache cache;
+
+    @Override
+    public void setUp() {
+        cache = new QueryCache(100, 0L);
+    }
+
+    @Test
+    public void testCachesResultForTicket() {
+        QueryCache.Ticket ticket = cache.prepare(byOwner("bob"), null);
+
+        assertNull(cache.get(ticket));
+        cache.put(ticket, new Object[] { 1L, 2L });
+        Object[] keys = cache.get(cache.prepare(byOwner("bob"), null));
+
+        assertNotNull(keys);
+        assertEquals(2, keys.length);
+        assertNull(cache.get(cache.prepare(byOwner("alice"), null)));
+    }
+
+    @Test
+    public void testTermOrderDoesNotMatter() {
+        SearchTerm a = new SearchTerm("owner", "bob");
+        SearchTerm b = new SearchTerm("status", "ACTIVE");
+
+        cache.put(cache.prepare(new SearchTerm[] { a, b }, null), new Object[] { 1L });
+        assertNotNull(cache.get(cache.prepare(new SearchTerm[] { b, a }, null)));
+    }
+
+    @Test
+    public void testUncacheableQueries() {
+        assertNull(cache.prepare(new SearchTerm[] { new SearchTerm("owner", new String[] { "a", "b" }) }, null));
+        assertNull(cache.prepare(new SearchTerm[] { new SearchTerm(Owner.class, "owner", Operator.EQUALS, "a") }, null));
+    }
+
+    @Test
+    public void testExactShapeDropsOnlyMatchingResult() {
+        cache.put(cache.prepare(byOwner("bob"), null), new Object[] { 1L });
+        cache.put(cache.prepare(byOwner("alice"), null), new Object[] { 2L });
+        cache.invalidate(row("owner", "bob"));
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+        assertNotNull(cache.get(cache.prepare(byOwner("alice"), null)));
+    }
+
+    @Test
+    public void testRangeShapeDropsEverything() {
+        SearchTerm[] older = new SearchTerm[] { new SearchTerm("age", Operator.GREATER_THAN, 10) };
+        SearchTerm[] younger = new SearchTerm[] { new SearchTerm("age", Operator.GREATER_THAN, 50) };
+
+        cache.put(cache.prepare(older, null), new Object[] { 1L });
+        cache.put(cache.prepare(younger, null), new Object[] { 2L });
+        cache.invalidate(row("age", 5));
+        assertNull(cache.get(cache.prepare(older, null)));
+        assertNull(cache.get(cache.prepare(younger, null)));
+    }
+
+    @Test
+    public void testUpdateOfUntouchedColumnKeepsResults() {
+        cache.put(cache.prepare(byOwner("bob"), null), new Object[] { 1L });
+        cache.invalidate(row("owner", "bob", "name", "a"), row("owner", "bob", "name", "b"));
+        assertNotNull(cache.get(cache.prepare(byOwner("bob"), null)));
+        cache.invalidate(row("owner", "bob"), row("owner", "alice"));
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+    }
+
+    @Test
+    public void testWriteAfterPrepareIsNotCached() {
+        QueryCache.Ticket ticket = cache.prepare(byOwner("bob"), null);
+
+        cache.invalidate(row("owner", "bob"));
+        cache.put(ticket, new Object[] { 1L });
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+    }
+
+    @Test
+    public void testReadBeforeCommitIsDroppedOnCommit() {
+        // the write invalidates, a query runs against the uncommitted state, then the commit invalidates again
+        cache.invalidate(row("owner", "bob"));
+        QueryCache.Ticket ticket = cache.prepare(byOwner("bob"), null);
+
+        cache.put(ticket, new Object[] { 1L });
+        assertNotNull(cache.get(cache.prepare(byOwner("bob"), null)));
+        cache.invalidate(row("owner", "bob"));
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+        cache.put(ticket, new Object[] { 1L });
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        cache.put(cache.prepare(byOwner("bob"), null), new Object[] { 1L });
+        cache.put(cache.prepare(new SearchTerm[0], true, "name"), new Object[] { 1L, 2L });
+        cache.invalidate();
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+        assertNull(cache.get(cache.prepare(new SearchTerm[0], true, "name")));
+    }
+
+    @Test
+    public void testConcurrentInvalidationNeverLeavesStaleResult() throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(4);
+
+        for( int t=0; t<4; t++ ) {
+            new Thread() {
+                public void run() {
+                    try {
+                        while( !done.get() ) {
+                            cache.put(cache.prepare(byOwner("bob"), null), new Object[] { 1L });
+                        }
+                    }
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        for( int i=0; i<2000; i++ ) {
+            QueryCache.Ticket stale = cache.prepare(byOwner("bob"), null);
+
+            cache.invalidate(row("owner", "bob"));
+            cache.put(stale, new Object[] { 99L });
+
+            Object[] keys = cache.get(cache.prepare(byOwner("bob"), null));
+
+            assertTrue("A result prepared before the write was cached", keys == null || keys.length != 1 || !Long.valueOf(99L).equals(keys[0]));
+        }
+        done.set(true);
+        finished.await();
+        cache.invalidate(row("owner", "bob"));
+        assertNull(cache.get(cache.prepare(byOwner("bob"), null)));
+    }
+}
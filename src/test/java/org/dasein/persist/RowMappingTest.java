@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.persist.annotations.Lookup;
+import org.dasein.persist.jdbc.Row;
+import org.dasein.util.CachedItem;
+import org.dasein.util.MapLoader;
+import org.junit.Test;
+
+public class RowMappingTest extends TestCase {
+    static public class Checked implements CachedItem {
+        private long   checkedId;
+        @Lookup(delegate=CountingDelegate.class)
+        private String code;
+        private int    size;
+
+        public Checked() { }
+
+        public boolean isValidForCache() {
+            return true;
+        }
+    }
+
+    static public class CountingDelegate implements LookupDelegate {
+        static private final AtomicInteger calls = new AtomicInteger();
+
+        public boolean validate(String value) {
+            calls.incrementAndGet();
+            return true;
+        }
+    }
+
+    static private <T extends CachedItem> RelationalCache<T> cache(Class<T> cls, String key) {
+        RelationalCache<T> cache = new RelationalCache<T>();
+
+        cache.initBase(cls, null, "2013-01", null, new Key(key));
+        return cache;
+    }
+
+    static private Row row(Map<String,Object> values) {
+        Row row = new Row(new Row.Layout(new ArrayList<String>(values.keySet())));
+
+        row.putAll(values);
+        return row;
+    }
+
+    static private void assertSameEntity(Object expected, Object actual) throws IllegalAccessException {
+        for( FieldPlan.Accessor accessor : FieldPlan.getInstance(expected.getClass()).getAccessors() ) {
+            assertEquals(accessor.getName(), accessor.get(expected), accessor.get(actual));
+        }
+    }
+
+    @Test
+    public void testRowMatchesMapLoader() throws Exception {
+        HashMap<String,Object> values = new HashMap<String,Object>();
+
+        values.put("keyField", 12L);
+        values.put("name", "Name");
+        values.put("description", null);
+        values.put("amount", 3.5);
+        values.put("currency", Currency.getInstance("USD"));
+        values.put("indexType", IndexType.SECONDARY);
+        values.put("otherObject", 7L);
+        values.put("indexA", "a");
+
+        RelationalCache<PersistentObject> cache = cache(PersistentObject.class, "keyField");
+        PersistentObject expected = new MapLoader<PersistentObject>(PersistentObject.class).load(values);
+
+        assertSameEntity(expected, cache.toTargetFromRow(row(values)));
+        assertSameEntity(expected, cache.toTargetFromRow(values));
+    }
+
+    @Test
+    public void testRowWithExtraColumnsMatchesMapLoader() throws Exception {
+        HashMap<String,Object> values = new HashMap<String,Object>();
+
+        values.put("keyField", 3L);
+        values.put("name", "Name");
+
+        Row row = row(values);
+
+        row.put("description", "Extra");
+        values.put("description", "Extra");
+
+        RelationalCache<PersistentObject> cache = cache(PersistentObject.class, "keyField");
+
+        assertSameEntity(new MapLoader<PersistentObject>(PersistentObject.class).load(values), cache.toTargetFromRow(row));
+    }
+
+    @Test
+    public void testTypedValuesSkipLookups() throws Exception {
+        HashMap<String,Object> values = new HashMap<String,Object>();
+
+        values.put("checkedId", 1L);
+        values.put("code", "ABC");
+        values.put("size", 4);
+
+        RelationalCache<Checked> cache = cache(Checked.class, "checkedId");
+        int before = CountingDelegate.calls.get();
+        Checked item = cache.toTargetFromRow(row(values));
+
+        assertEquals("Lookup delegate ran on an already typed value", before, CountingDelegate.calls.get());
+        assertSameEntity(new MapLoader<Checked>(Checked.class).load(values), item);
+    }
+
+    @Test
+    public void testUntypedValuesAreMapped() throws Exception {
+        HashMap<String,Object> values = new HashMap<String,Object>();
+
+        values.put("keyField", 5);
+        values.put("indexType", "FOREIGN");
+        values.put("amount", null);
+
+        List<String> columns = Arrays.asList("keyField", "indexType", "amount");
+        Row row = new Row(new Row.Layout(columns));
+
+        row.putAll(values);
+
+        PersistentObject item = cache(PersistentObject.class, "keyField").toTargetFromRow(row);
+
+        assertEquals(5L, item.getKeyField());
+        assertEquals(IndexType.FOREIGN, item.getIndexType());
+        assertEquals(0.0, item.getAmount());
+    }
+}
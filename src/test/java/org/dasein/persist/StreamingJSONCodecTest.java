@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 1998-2011 enStratusNetworks LLC
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StreamingJSONCodecTest extends TestCase {
+    static private final StreamingJSONCodec codec = new StreamingJSONCodec();
+
+    static private byte[] write(Map<String,Object> fields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONCodec.ObjectWriter writer = codec.newWriter(out);
+
+        for( Map.Entry<String,Object> entry : fields.entrySet() ) {
+            writer.field(entry.getKey(), entry.getValue());
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    static private Map<String,Object> read(byte[] json) throws IOException {
+        JSONCodec.Parser parser = codec.newParser(new ByteArrayInputStream(json));
+
+        try {
+            return parser.nextObject();
+        }
+        finally {
+            parser.close();
+        }
+    }
+
+    static private Object roundTrip(Object value) throws IOException {
+        HashMap<String,Object> fields = new HashMap<String,Object>();
+
+        fields.put("value", value);
+        return read(write(fields)).get("value");
+    }
+
+    @Test
+    public void testEscapesRoundTrip() throws Exception {
+        String str = "quote \" backslash \\ slash / \b\f\n\r\t control \u0001\u001f c1 \u0085 separators \u2028\u2029";
+
+        assertEquals(str, roundTrip(str));
+    }
+
+    @Test
+    public void testSurrogatePairsRoundTrip() throws Exception {
+        String str = "emoji \ud83d\ude00 and clef \ud834\udd1e";
+
+        assertEquals(str, roundTrip(str));
+    }
+
+    @Test
+    public void testEscapedSurrogatesParse() throws Exception {
+        JSONCodec.Parser parser = codec.newParser(new StringReader("{\"value\":\"\\ud83d\\ude00\\u00e9\"}"));
+
+        assertEquals("\ud83d\ude00\u00e9", parser.nextObject().get("value"));
+    }
+
+    @Test
+    public void testStringAcrossBufferBoundary() throws Exception {
+        StringBuilder str = new StringBuilder();
+
+        for( int i=0; i<3000; i++ ) {
+            str.append("a\"\ud83d\ude00\\");
+        }
+        assertEquals(str.toString(), roundTrip(str.toString()));
+    }
+
+    @Test
+    public void testNumbersRoundTrip() throws Exception {
+        assertEquals(42, roundTrip(42));
+        assertEquals(5000000000L, roundTrip(5000000000L));
+        assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+        assertEquals(new BigInteger("123456789012345678901234567890"), roundTrip(new BigInteger("123456789012345678901234567890")));
+        assertEquals(1.5, roundTrip(1.5));
+        assertEquals(-2.5E-10, roundTrip(-2.5E-10));
+        assertEquals(3, roundTrip(3.0));
+    }
+
+    @Test
+    public void testNonFiniteNumbersWriteNull() throws Exception {
+        assertNull(roundTrip(Double.NaN));
+        assertNull(roundTrip(Float.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void testNestedValuesRoundTrip() throws Exception {
+        HashMap<String,Object> nested = new HashMap<String,Object>();
+
+        nested.put("name", "inner \"value\"");
+        nested.put("none", null);
+        nested.put("flag", true);
+
+        Object value = roundTrip(Arrays.asList(1, "two", nested, new int[] { 3, 4 }, null));
+
+        assertTrue(value instanceof JSONArray);
+
+        JSONArray arr = (JSONArray)value;
+
+        assertEquals(5, arr.length());
+        assertEquals(1, arr.get(0));
+        assertEquals("two", arr.get(1));
+
+        JSONObject ob = arr.getJSONObject(2);
+
+        assertEquals("inner \"value\"", ob.getString("name"));
+        assertEquals(JSONObject.NULL, ob.get("none"));
+        assertEquals(Boolean.TRUE, ob.get("flag"));
+        assertEquals(4, arr.getJSONArray(3).get(1));
+        assertEquals(JSONObject.NULL, arr.get(4));
+    }
+
+    @Test
+    public void testTopLevelNullsFlatten() throws Exception {
+        HashMap<String,Object> fields = new HashMap<String,Object>();
+
+        fields.put("none", null);
+        fields.put("empty", "");
+
+        Map<String,Object> copy = read(write(fields));
+
+        assertTrue(copy.containsKey("none"));
+        assertNull(copy.get("none"));
+        assertEquals("", copy.get("empty"));
+    }
+
+    @Test
+    public void testCompatibleWithOrgJson() throws Exception {
+        HashMap<String,Object> fields = new HashMap<String,Object>();
+
+        fields.put("text", "line\nbreak \"quoted\" \ud83d\ude00 \u2028");
+        fields.put("number", 12.25);
+        fields.put("count", 7L);
+
+        JSONObject ob = new JSONObject(new String(write(fields), "utf-8"));
+
+        assertEquals(fields.get("text"), ob.getString("text"));
+        assertEquals(12.25, ob.getDouble("number"));
+        assertEquals(7L, ob.getLong("count"));
+
+        Map<String,Object> copy = codec.newParser(new StringReader(ob.toString())).nextObject();
+
+        assertEquals(fields.get("text"), copy.get("text"));
+        assertEquals(12.25, copy.get("number"));
+        assertEquals(7, copy.get("count"));
+    }
+
+    @Test
+    public void testSkipValue() throws Exception {
+        JSONCodec.Parser parser = codec.newParser(new StringReader("{\"skip\":{\"a\":[1,{\"b\":\"]}\"}]},\"keep\":\"yes\"}"));
+
+        parser.beginObject();
+        assertEquals("skip", parser.nextName());
+        parser.skipValue();
+        assertEquals("keep", parser.nextName());
+        assertEquals("yes", parser.nextValue());
+        parser.endObject();
+        assertEquals(JSONCodec.Token.END_DOCUMENT, parser.peek());
+    }
+
+    @Test
+    public void testMalformedInput() throws Exception {
+        String[] bad = { "", "{\"a\":}", "{\"a\":\"open}", "{\"a\" 1}", "{\"a\":\"\\u12\"}", "{\"a\":nul}" };
+
+        for( String json : bad ) {
+            try {
+                codec.newParser(new StringReader(json)).nextObject();
+                fail("Parsed malformed JSON " + json);
+            }
+            catch( IOException expected ) {
+                // expected
+            }
+        }
+        JSONCodec.Parser parser = codec.newParser(new StringReader("{\"a\":1} trailing"));
+
+        parser.nextObject();
+        try {
+            parser.peek();
+            fail("Accepted data after the document");
+        }
+        catch( IOException expected ) {
+            // expected
+        }
+    }
+}